@@ -0,0 +1,741 @@
+package chatclient;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * One user's connection to a chat server, usable many times over in one JVM (bots, bridges, tests) and by the
+ * interactive client. Requests are queued and return at once with a future completed when the request was written,
+ * or for the requests the server answers directly, with the answer: such requests carry an identity the server
+ * echoes in its answer. Requests queued together are written as one burst without waiting for the earlier answers.
+ * What the server sends is passed to the ChatListeners on the client's reader thread.
+ * The client keeps its connection: a lost connection is resumed within the server's grace window, and a redirect
+ * to another cluster node is followed under the same identity.
+ * Each client has one reader thread with a small stack; writing is done by a small pool shared by all clients.
+ */
+public class ChatClient {
+
+    private static final long READER_STACK_BYTES = 256 * 1024; // stack of each reader thread, parsing is shallow
+    private static final int MAX_WRITE_BURST = 256;            // most requests written before letting others write
+    private static final long RECONNECT_RETRY_MILLIS = 1000;   // pause between reconnection attempts
+    private static final int MAX_REDIRECTS = 3; // redirects followed in a row, guards against nodes disagreeing
+
+    // writes the requests of every client, so an idle client costs no writing thread
+    private static final ExecutorService WRITERS =
+            Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "chat-writer");
+                t.setDaemon(true);
+                return t;
+            });
+    private static final AtomicInteger CLIENTS = new AtomicInteger(); // numbers the reader threads
+
+    private final SSLSocketFactory tlsSocketFactory; // null for plain connections
+    private final String[] cipherSuites;             // TLS cipher suites, null for the JDK defaults
+    private final List<ChatListener> listeners = new ArrayList<>();
+
+    private volatile String host; // server address, changed by redirects
+    private volatile int port;
+
+    private volatile String userId;    // this client's identity, null until the server gave one
+    private volatile String roomId;    // room this client is in
+    private String sessionToken;       // token for resuming the session after losing the connection
+    private long graceSeconds;         // how long the server keeps a lost session
+    private int redirects = 0;         // redirects followed since the last successful room change
+
+    private volatile Socket socket;
+    private volatile DataOutputStream out; // output stream of the current connection, replaced when reconnecting
+    private volatile boolean closed = false;
+    private volatile boolean compression = false; // whether large frames are asked for compressed
+
+    // inflating compressed frames, only used by the reader thread
+    private final Inflater inflater = new Inflater();
+    private byte[] dictionary;                     // preset dictionary given by the server
+    private byte[] compressedBuffer = new byte[8192];
+    private byte[] frameBuffer = new byte[8192];
+
+    // requests waiting to be written, and whether a writer is already working on them
+    private final ConcurrentLinkedQueue<PendingSend> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    // requests waiting for their answer, by the request identity echoed by the server
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Map<Long, CompletableFuture<JSONObject>> awaiting = new ConcurrentHashMap<>();
+
+    /**
+     * A request waiting to be written, with the future completed once it was
+     */
+    private static class PendingSend {
+        final String frame;
+        final CompletableFuture<Void> sent = new CompletableFuture<>();
+
+        PendingSend(String frame) {
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Constructor method for ChatClient over a plain connection
+     *
+     * @param host server address
+     * @param port server port
+     */
+    public ChatClient(String host, int port) {
+        this(host, port, null, null);
+    }
+
+    /**
+     * Constructor method for ChatClient
+     *
+     * @param host server address
+     * @param port server port
+     * @param tlsSocketFactory factory of TLS connections, null for plain connections; share one factory between
+     *                         clients so its session cache lets reconnects resume the TLS session
+     * @param cipherSuites TLS cipher suites, null for the JDK defaults
+     */
+    public ChatClient(String host, int port, SSLSocketFactory tlsSocketFactory, String[] cipherSuites) {
+        this.host = host;
+        this.port = port;
+        this.tlsSocketFactory = tlsSocketFactory;
+        this.cipherSuites = cipherSuites;
+    }
+
+    /**
+     * Method for adding a listener, to be done before connecting
+     *
+     * @param listener the callbacks
+     */
+    public void addListener(ChatListener listener) {
+        listeners.add(listener);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    /**
+     * Method for connecting to the server, starting the reader thread and signing up: the server gives the client
+     * an identity and the client joins the MainHall
+     *
+     * @throws IOException
+     */
+    public void connect() throws IOException {
+        Socket s = open(host, port);
+        useSocket(s);
+        Thread reader = new Thread(null, () -> readLoop(s), "chat-reader-" + CLIENTS.incrementAndGet(),
+                READER_STACK_BYTES);
+        reader.setDaemon(true);
+        reader.start();
+        signUp();
+    }
+
+    /**
+     * Method for asking the server to compress the large frames it sends, again after every reconnection; worth it
+     * on slow links, at some processor cost on both sides
+     * @param compression true to ask for compression
+     */
+    public void setCompression(boolean compression) {
+        boolean asked = this.compression;
+        this.compression = compression;
+        if (compression && !asked && socket != null) {
+            send(new ClientMessage().requestCompression());
+        }
+    }
+
+    /**
+     * Method for closing the connection without quitting, the server keeps the session for its grace window
+     */
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * Method for queueing an encoded request, returns at once
+     *
+     * @param frame JSON format encoded text
+     * @return completed once the request was written, or exceptionally if the connection was lost first
+     */
+    public CompletableFuture<Void> send(String frame) {
+        PendingSend pending = new PendingSend(frame);
+        if (closed) {
+            pending.sent.completeExceptionally(new IOException("The client is closed"));
+            return pending.sent;
+        }
+        outbound.add(pending);
+        if (writing.compareAndSet(false, true)) {
+            WRITERS.execute(this::writeOutbound);
+        }
+        return pending.sent;
+    }
+
+    public CompletableFuture<Void> sendMessage(String content) {
+        return send(new ClientMessage().plainMessage(content));
+    }
+
+    /**
+     * Method for sending a chat message which is delivered once even if sent again: when the future fails because
+     * the connection was lost, sending the same content with the same identity after the client resumed is safe
+     * @param content plain chat message
+     * @param msgId identity of the message, unique among this user's recent messages
+     * @return completed with the server's ack, whose duplicate field tells whether an earlier copy got through
+     */
+    public CompletableFuture<JSONObject> sendMessage(String content, long msgId) {
+        return request(new ClientMessage().plainMessage(content, msgId));
+    }
+
+    public CompletableFuture<Void> sendPrivateMessage(String identity, String content) {
+        return send(new ClientMessage().privateMessage(identity, content));
+    }
+
+    public CompletableFuture<Void> watchPresence(boolean watch) {
+        return send(new ClientMessage().requestPresence(watch));
+    }
+
+    public CompletableFuture<Void> changeIdentity(String identity) {
+        return send(new ClientMessage().requestNewID(identity));
+    }
+
+    public CompletableFuture<Void> join(String roomId) {
+        return send(new ClientMessage().requestJoin(roomId));
+    }
+
+    /**
+     * Method for queueing an encoded request the server answers directly, returns at once
+     *
+     * @param frame JSON format encoded text
+     * @return completed with the answer (the last batch of a history, a throttle message when rate limited),
+     * or exceptionally if the connection was lost first
+     */
+    public CompletableFuture<JSONObject> request(String frame) {
+        long id = nextRequestId.incrementAndGet();
+        CompletableFuture<JSONObject> answer = new CompletableFuture<>();
+        awaiting.put(id, answer);
+        send(ClientMessage.withRequestId(frame, id)).whenComplete((sent, e) -> {
+            if (e != null && awaiting.remove(id) != null) {
+                answer.completeExceptionally(e);
+            }
+        });
+        return answer;
+    }
+
+    public CompletableFuture<JSONObject> createRoom(String roomId) {
+        return request(new ClientMessage().requestCreate(roomId));
+    }
+
+    public CompletableFuture<JSONObject> deleteRoom(String roomId) {
+        return request(new ClientMessage().requestDelete(roomId));
+    }
+
+    public CompletableFuture<JSONObject> who(String roomId) {
+        return request(new ClientMessage().requestRoomContents(roomId));
+    }
+
+    /**
+     * Method for following the members of a room, answered with its contents and followed by onRoomDelta
+     * @param roomId room identity
+     * @return completed with the room contents
+     */
+    public CompletableFuture<JSONObject> watch(String roomId) {
+        return request(new ClientMessage().requestWatch(roomId));
+    }
+
+    public CompletableFuture<Void> unwatch(String roomId) {
+        return send(new ClientMessage().requestUnwatch(roomId));
+    }
+
+    public CompletableFuture<JSONObject> list() {
+        return request(new ClientMessage().requestRoomList());
+    }
+
+    public CompletableFuture<JSONObject> history(String roomId, int count) {
+        return request(new ClientMessage().requestHistory(roomId, count));
+    }
+
+    public CompletableFuture<JSONObject> historySince(String roomId, long since) {
+        return request(new ClientMessage().requestHistorySince(roomId, since));
+    }
+
+    /**
+     * Method for leaving the server, the listeners get onClosed(null) once the server confirmed it
+     *
+     * @return completed once the request was written
+     */
+    public CompletableFuture<Void> quit() {
+        return send(new ClientMessage().requestQuit());
+    }
+
+    /**
+     * Method for the requests every new user sends when connected: getting the identity (auto generated by server),
+     * joining the MainHall and showing the MainHall's information
+     */
+    private void signUp() {
+        if (compression) {
+            send(new ClientMessage().requestCompression());
+        }
+        send(new ClientMessage().requestNewID(""));
+        send(new ClientMessage().requestJoin("MainHall"));
+        send(new ClientMessage().requestRoomContents("MainHall"));
+    }
+
+    /**
+     * Method for connecting to a server, over TLS when enabled
+     *
+     * @param host server address
+     * @param port server port
+     * @return the connected socket, a TLS socket has finished its handshake
+     * @throws IOException
+     */
+    private Socket open(String host, int port) throws IOException {
+        if (tlsSocketFactory == null) {
+            Socket s = new Socket(host, port);
+            s.setTcpNoDelay(true);
+            return s;
+        }
+        SSLSocket s = (SSLSocket) tlsSocketFactory.createSocket(host, port);
+        s.setTcpNoDelay(true);
+        s.setEnabledProtocols(new String[]{"TLSv1.3", "TLSv1.2"});
+        if (cipherSuites != null) {
+            s.setEnabledCipherSuites(cipherSuites);
+        }
+        s.startHandshake();
+        return s;
+    }
+
+    private void useSocket(Socket s) throws IOException {
+        socket = s;
+        out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+    }
+
+    // write what is queued as one burst, then hand the writer back to the pool
+    private void writeOutbound() {
+        List<PendingSend> burst = new ArrayList<>();
+        DataOutputStream o = out;
+        try {
+            PendingSend pending;
+            while (burst.size() < MAX_WRITE_BURST && (pending = outbound.poll()) != null) {
+                burst.add(pending);
+                o.writeUTF(pending.frame);
+            }
+            o.flush();
+            for (PendingSend p : burst) {
+                p.sent.complete(null);
+            }
+        } catch (IOException e) {
+            // the reader notices the lost connection and reconnects, what was not written is not resent
+            for (PendingSend p : burst) {
+                p.sent.completeExceptionally(e);
+            }
+        }
+        writing.set(false);
+        if (!outbound.isEmpty() && writing.compareAndSet(false, true)) {
+            WRITERS.execute(this::writeOutbound);
+        }
+    }
+
+    // read and dispatch everything the server sends, reconnecting when the connection is lost
+    private void readLoop(Socket first) {
+        Socket current = first;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(current.getInputStream()));
+            while (true) {
+                String serverToClient;
+                try {
+                    serverToClient = readFrame(in);
+                } catch (IOException e) {
+                    if (closed) {
+                        return;
+                    }
+                    // try to get the session back, unless the server never offered one
+                    if (sessionToken == null) {
+                        throw e;
+                    }
+                    for (ChatListener l : listeners) {
+                        l.onConnectionLost();
+                    }
+                    failAwaiting(e);
+                    current.close();
+                    current = reconnect();
+                    if (current == null) {
+                        throw e;
+                    }
+                    in = new DataInputStream(new BufferedInputStream(current.getInputStream()));
+                    continue;
+                }
+                //unmarshall the received encoded text, and read it
+                JSONObject frame = (JSONObject) JSONValue.parse(serverToClient);
+                String type = (String) frame.get("type");
+                if (type.equals("ping")) {
+                    // answer the server's heartbeat, nothing to tell the listeners
+                    send(new ClientMessage().pong());
+                    continue;
+                }
+                for (ChatListener l : listeners) {
+                    l.onFrame(frame);
+                }
+                if (type.equals("redirect")) {
+                    // the former node closes its side, the client carries on with the room's home node
+                    current.close();
+                    current = redirect(frame);
+                    in = new DataInputStream(new BufferedInputStream(current.getInputStream()));
+                    continue;
+                }
+                if (!dispatch(type, frame)) {
+                    return;
+                }
+                answered(frame);
+            }
+        } catch (IOException e) {
+            finish(closed ? null : "Connection to the server lost");
+        } catch (InterruptedException e) {
+            finish("Interrupted");
+        }
+    }
+
+    /**
+     * Method for reading one frame, which the server may have compressed: a compressed frame starts with a zero
+     * length, followed by its length in UTF-8, the compressed length and the compressed bytes
+     *
+     * @param in input stream of the connection
+     * @return the JSON encoded frame
+     * @throws IOException
+     */
+    private String readFrame(DataInputStream in) throws IOException {
+        in.mark(2);
+        if (in.readUnsignedShort() != 0) {
+            in.reset();
+            return in.readUTF();
+        }
+        int length = in.readInt();
+        int compressedLength = in.readInt();
+        if (compressedBuffer.length < compressedLength) {
+            compressedBuffer = new byte[compressedLength];
+        }
+        if (frameBuffer.length < length) {
+            frameBuffer = new byte[length];
+        }
+        in.readFully(compressedBuffer, 0, compressedLength);
+        inflater.reset();
+        inflater.setInput(compressedBuffer, 0, compressedLength);
+        try {
+            int inflated = 0;
+            while (inflated < length) {
+                int n = inflater.inflate(frameBuffer, inflated, length - inflated);
+                if (n == 0) {
+                    if (inflater.needsDictionary() && dictionary != null) {
+                        inflater.setDictionary(dictionary);
+                    } else {
+                        throw new IOException("Compressed frame is truncated");
+                    }
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed frame is corrupt", e);
+        }
+        return new String(frameBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Method for keeping the client's state and calling the typed callbacks for one message from the server
+     *
+     * @param type message type
+     * @param frame received json format message from server
+     * @return false if the connection ended
+     */
+    private boolean dispatch(String type, JSONObject frame) {
+        switch (type) {
+
+            case "newidentity":
+                String former = frame.get("former").toString();
+                String identity = frame.get("identity").toString();
+                // the first identity, or a change of this client's identity
+                if (userId == null || former.equals(userId)) {
+                    userId = identity;
+                }
+                for (ChatListener l : listeners) {
+                    l.onNewIdentity(former, identity);
+                }
+                break;
+
+            case "roomchange":
+                String user = frame.get("identity").toString();
+                String newRoom = frame.get("roomid").toString();
+                String formerRoom = frame.get("former").toString();
+                for (ChatListener l : listeners) {
+                    l.onRoomChange(user, formerRoom, newRoom);
+                }
+                if (user.equals(userId)) {
+                    // this user is disconnecting from the system
+                    if (newRoom.equals("")) {
+                        finish(null);
+                        return false;
+                    }
+                    roomId = newRoom;
+                    redirects = 0;
+                }
+                break;
+
+            case "roomchangemulti":
+                List<String> moved = new ArrayList<>();
+                for (Object member : (JSONArray) frame.get("identities")) {
+                    moved.add(member.toString());
+                }
+                for (ChatListener l : listeners) {
+                    l.onRoomChangeMulti(moved, frame.get("former").toString(), frame.get("roomid").toString());
+                }
+                if (moved.contains(userId)) {
+                    roomId = frame.get("roomid").toString();
+                }
+                break;
+
+            case "roomcontents":
+                List<String> members = new ArrayList<>();
+                for (Object member : (JSONArray) frame.get("identities")) {
+                    members.add(member.toString());
+                }
+                Object owner = frame.get("owner");
+                for (ChatListener l : listeners) {
+                    l.onRoomContents(frame.get("roomid").toString(), owner == null ? "" : owner.toString(), members);
+                }
+                break;
+
+            case "roomdelta":
+                List<String> joined = new ArrayList<>();
+                for (Object member : (JSONArray) frame.get("joined")) {
+                    joined.add(member.toString());
+                }
+                List<String> left = new ArrayList<>();
+                for (Object member : (JSONArray) frame.get("left")) {
+                    left.add(member.toString());
+                }
+                Map<String, String> renamed = new LinkedHashMap<>();
+                for (Object rename : ((JSONObject) frame.get("renamed")).entrySet()) {
+                    Map.Entry<?, ?> r = (Map.Entry<?, ?>) rename;
+                    renamed.put(r.getKey().toString(), r.getValue().toString());
+                }
+                for (ChatListener l : listeners) {
+                    l.onRoomDelta(frame.get("roomid").toString(), joined, left, renamed);
+                }
+                break;
+
+            case "roomlist":
+                Map<String, Integer> rooms = new LinkedHashMap<>();
+                for (Object room : (JSONArray) frame.get("rooms")) {
+                    JSONObject r = (JSONObject) room;
+                    rooms.put(r.get("roomid").toString(), Integer.parseInt(r.get("count").toString()));
+                }
+                for (ChatListener l : listeners) {
+                    l.onRoomList(rooms, frame.get("words").toString());
+                }
+                break;
+
+            case "message":
+                for (ChatListener l : listeners) {
+                    l.onMessage(frame.get("identity").toString(), frame.get("content").toString());
+                }
+                break;
+
+            case "privatemessage":
+                for (ChatListener l : listeners) {
+                    l.onPrivateMessage(frame.get("identity").toString(), frame.get("content").toString());
+                }
+                break;
+
+            case "undelivered":
+                for (ChatListener l : listeners) {
+                    l.onUndelivered(frame.get("identity").toString());
+                }
+                break;
+
+            case "history":
+                List<JSONObject> messages = new ArrayList<>();
+                for (Object message : (JSONArray) frame.get("messages")) {
+                    messages.add((JSONObject) message);
+                }
+                for (ChatListener l : listeners) {
+                    l.onHistory(frame.get("roomid").toString(), messages, Boolean.TRUE.equals(frame.get("more")));
+                }
+                break;
+
+            case "compress":
+                dictionary = frame.get("dictionary").toString().getBytes(StandardCharsets.UTF_8);
+                break;
+
+            case "session":
+                sessionToken = frame.get("token").toString();
+                graceSeconds = (Long) frame.get("grace");
+                break;
+
+            case "resumed":
+                boolean success = (Boolean) frame.get("success");
+                if (success) {
+                    userId = frame.get("identity").toString();
+                    roomId = frame.get("roomid").toString();
+                } else {
+                    // the session expired (or the server restarted), start over as a new user
+                    userId = null;
+                    sessionToken = null;
+                    signUp();
+                }
+                for (ChatListener l : listeners) {
+                    l.onResumed(success, success ? (Long) frame.get("dropped") : 0);
+                }
+                break;
+
+            case "notice":
+                for (ChatListener l : listeners) {
+                    l.onNotice(frame.get("words").toString());
+                }
+                break;
+
+            case "throttle":
+                for (ChatListener l : listeners) {
+                    l.onThrottle(frame.get("request").toString(), Long.parseLong(frame.get("retryafter").toString()));
+                }
+                break;
+
+            case "busy":
+                finish("Server busy: " + frame.get("words").toString());
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Method for reconnecting to the server after losing the connection, and asking it to resume the session
+     *
+     * @return the new socket, or null if the server could not be reached within the grace window
+     * @throws InterruptedException
+     */
+    private Socket reconnect() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + graceSeconds * 1000;
+        while (System.currentTimeMillis() < deadline && !closed) {
+            try {
+                Socket s = open(host, port);
+                // the resume request goes first, before anything queued meanwhile
+                DataOutputStream o = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                o.writeUTF(new ClientMessage().requestResume(sessionToken));
+                if (compression) {
+                    o.writeUTF(new ClientMessage().requestCompression());
+                }
+                o.flush();
+                socket = s;
+                out = o;
+                return s;
+            } catch (IOException e) {
+                Thread.sleep(RECONNECT_RETRY_MILLIS);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method for moving to the cluster node a room is homed on, after the server sent a redirect:
+     * the client connects there, signs up, takes back its identity and joins the room
+     *
+     * @param frame received json format message from server
+     * @return the socket connected to the room's home node
+     * @throws IOException
+     */
+    private Socket redirect(JSONObject frame) throws IOException {
+        String target = frame.get("roomid").toString();
+        host = frame.get("host").toString();
+        port = Integer.parseInt(frame.get("port").toString());
+        for (ChatListener l : listeners) {
+            l.onRedirect(target, host, port);
+        }
+        redirects++;
+        Socket s = open(host, port);
+        useSocket(s);
+        String identity = userId;
+        // the session of the former node ended with the redirect, a new one is issued by the new node
+        userId = null;
+        sessionToken = null;
+        if (compression) {
+            send(new ClientMessage().requestCompression());
+        }
+        send(new ClientMessage().requestNewID(""));
+        send(new ClientMessage().requestNewID(identity));
+        send(new ClientMessage().requestJoin("MainHall"));
+        if (redirects > MAX_REDIRECTS) {
+            // the nodes do not agree on the room's home yet, stay in the MainHall
+            for (ChatListener l : listeners) {
+                l.onRedirectAbandoned(target);
+            }
+        } else {
+            send(new ClientMessage().requestJoin(target));
+        }
+        return s;
+    }
+
+    // complete the request a direct answer carries the identity of, history batches wait for the last one
+    private void answered(JSONObject frame) {
+        Object id = frame.get("reqid");
+        if (id instanceof Number && !Boolean.TRUE.equals(frame.get("more"))) {
+            CompletableFuture<JSONObject> answer = awaiting.remove(((Number) id).longValue());
+            if (answer != null) {
+                answer.complete(frame);
+            }
+        }
+    }
+
+    // the answers of the requests sent so far will not come
+    private void failAwaiting(Exception cause) {
+        for (Long id : awaiting.keySet()) {
+            CompletableFuture<JSONObject> answer = awaiting.remove(id);
+            if (answer != null) {
+                answer.completeExceptionally(cause);
+            }
+        }
+    }
+
+    // the connection ended for good
+    private void finish(String reason) {
+        close();
+        failAwaiting(new IOException(reason != null ? reason : "The user quit"));
+        for (ChatListener l : listeners) {
+            l.onClosed(reason);
+        }
+    }
+}
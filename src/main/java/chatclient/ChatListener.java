@@ -0,0 +1,133 @@
+package chatclient;
+
+import org.json.simple.JSONObject;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Callbacks of a ChatClient, one for each kind of message the server sends. They all run on the client's reader
+ * thread in the order the messages arrived, so a callback which blocks holds up that client's reading (and only
+ * that client's). Every method does nothing by default, implement the ones of interest.
+ */
+public interface ChatListener {
+
+    /**
+     * Called for every message from the server before the typed callback, with the decoded message
+     * @param frame received json format message from server
+     */
+    default void onFrame(JSONObject frame) {
+    }
+
+    /**
+     * A user got or changed an identity, former is empty for this client's first identity
+     * and equal to identity when a requested change was refused
+     */
+    default void onNewIdentity(String former, String identity) {
+    }
+
+    /**
+     * A user moved between rooms, roomId is empty when the user left the server
+     */
+    default void onRoomChange(String identity, String former, String roomId) {
+    }
+
+    /**
+     * Many users were moved between rooms together, such as the members of a deleted room into the MainHall;
+     * by default each of them is reported through onRoomChange
+     */
+    default void onRoomChangeMulti(List<String> identities, String former, String roomId) {
+        for (String identity : identities) {
+            onRoomChange(identity, former, roomId);
+        }
+    }
+
+    /**
+     * Answer of who, owner is empty for the MainHall
+     */
+    default void onRoomContents(String roomId, String owner, List<String> identities) {
+    }
+
+    /**
+     * The members of a watched room changed since the contents or the last delta: applying left, then renamed (new
+     * identity by former identity), then joined to the known members gives the current ones
+     */
+    default void onRoomDelta(String roomId, List<String> joined, List<String> left, Map<String, String> renamed) {
+    }
+
+    /**
+     * Answer of list, createroom and delete: the member count of each room, and words explaining the answer
+     * (empty unless something was created or refused)
+     */
+    default void onRoomList(Map<String, Integer> rooms, String words) {
+    }
+
+    /**
+     * A chat message sent in this client's room
+     */
+    default void onMessage(String identity, String content) {
+    }
+
+    /**
+     * A chat message sent to this client only, by a user in any room
+     */
+    default void onPrivateMessage(String identity, String content) {
+    }
+
+    /**
+     * A private message was not delivered because no user has that identity
+     */
+    default void onUndelivered(String identity) {
+    }
+
+    /**
+     * One batch of a room's message history, more is true while further batches follow
+     * @param messages each message with its identity, content and timestamp
+     */
+    default void onHistory(String roomId, List<JSONObject> messages, boolean more) {
+    }
+
+    /**
+     * A notice from the operators of the server, such as a shutdown warning
+     */
+    default void onNotice(String words) {
+    }
+
+    /**
+     * A request was refused by a rate limit and may be sent again after retryAfterMillis
+     */
+    default void onThrottle(String request, long retryAfterMillis) {
+    }
+
+    /**
+     * The connection broke and the client is trying to resume its session
+     */
+    default void onConnectionLost() {
+    }
+
+    /**
+     * The session was resumed after a lost connection, or could not be and the client signed up again as new user
+     * @param dropped messages missed while away which the server could not keep
+     */
+    default void onResumed(boolean success, long dropped) {
+    }
+
+    /**
+     * The client is moving to the cluster node the room it joined is homed on
+     */
+    default void onRedirect(String roomId, String host, int port) {
+    }
+
+    /**
+     * The client followed redirects too many times in a row without getting into the room, and stays in the MainHall
+     */
+    default void onRedirectAbandoned(String roomId) {
+    }
+
+    /**
+     * The client is no longer connected and will not reconnect
+     * @param reason why, or null when the user quit
+     */
+    default void onClosed(String reason) {
+    }
+}
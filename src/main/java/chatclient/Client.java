@@ -3,15 +3,15 @@ package chatclient;
 import chatserver.Server;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 import org.kohsuke.args4j.Option;
 
-import java.io.DataInputStream;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.Socket;
-import java.util.ArrayList;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.util.Arrays;
 
 
@@ -22,205 +22,96 @@ public class Client {
     @Parameter(names = "-p", description = "port address", required = true)
     private static int port = 4444;
 
-    private static String userId; //the client (or user) identity
+    @Parameter(names = "-tls", description = "connect to the server over TLS")
+    private static boolean tls = false;
 
-    private static String currRoom; //the client is in which chatroom
+    @Parameter(names = "-truststore", description = "PKCS12 truststore with the server certificate, JDK default when empty")
+    private static String trustStore = "";
 
-    private static int trigger = 0; // when the trigger exceeds 2, it will start to show the prefix for each client
+    @Parameter(names = "-truststorepass", description = "password of the truststore")
+    private static String trustStorePassword = "changeit";
 
-    /**
-     * Method for receive the response of new user ID request from server
-     *
-     * @param jsonReceive received json format message from server
-     */
-    private static void newIdResponse(JSONObject jsonReceive) {
-        // when current user ID is null (first time connection and auto sign up),
-        // set the returned new user ID as user ID
-        if (userId == null) {
-            userId = jsonReceive.get("identity").toString();
-            System.out.print("Connected to " + host + " as " + userId);
-        }
-        // when the new user ID is same as former or current user ID (when request for user ID change), change failed
-        else if (jsonReceive.get("identity").equals(jsonReceive.get("former"))) {
-            System.out.print("\nRequested identity invalid or in use");
-        } else {
-            if (jsonReceive.get("former").equals(userId)) {
-                // when former user ID is different from new user ID, set the new user ID as user ID
-
-                userId = jsonReceive.get("identity").toString();
-            }
-            String formerId = jsonReceive.get("former").toString();
-            System.out.print("\n" + formerId + " is now " + jsonReceive.get("identity").toString());
+    @Parameter(names = "-ciphers", description = "comma separated TLS cipher suites, the JDK defaults when empty")
+    private static String ciphers = "";
 
-        }
-    }
+    @Parameter(names = "-compress", description = "ask the server to compress large frames, for slow links")
+    private static boolean compress = false;
 
-    /**
-     * Method for receive the response of room list request from server
-     *
-     * @param jsonReceive received json format message from server
-     */
-    private static void listResponse(JSONObject jsonReceive) {
-        String words = jsonReceive.get("words").toString();
-        if (!words.equals("")) {
-            System.out.print("\n" + words);
-            return;
-        }
+    // one factory for every connection of this client, its session cache lets reconnects resume the TLS session
+    private static SSLSocketFactory tlsSocketFactory;
 
-        JSONArray roomList = (JSONArray) jsonReceive.get("rooms");
-        for (int i = 0; i < roomList.size(); i++) {
-            // get each room's information from the returned list
-            JSONObject room = (JSONObject) roomList.get(i);
-            // print each room's information (state)
-            System.out.print("\n" + room.get("roomid").toString());
-            System.out.print(": ");
-            if (room.get("count").toString().equals("1")) {
-                System.out.print(room.get("count").toString() + " guest");
-            } else {
-                System.out.print(room.get("count").toString() + " guests");
-            }
-        }
-    }
+    private static final long FINISH_RENDER_MILLIS = 2000; // longest wait for the terminal before exiting
 
     /**
-     * Method for receive the response of room contents request from server
+     * Method for setting up the TLS socket factory shared by all connections
      *
-     * @param jsonReceive received json format message from server
+     * @throws IOException
+     * @throws GeneralSecurityException
      */
-    private static void contentsResponse(JSONObject jsonReceive) {
-        String roomName = jsonReceive.get("roomid").toString();
-        JSONArray roomMembers = (JSONArray) jsonReceive.get("identities");
-        // using an ArrayList to record the room members who are recorded in the JSON message
-        ArrayList<String> members = new ArrayList<>();
-        for (int i = 0; i < roomMembers.size(); i++) {
-            members.add(roomMembers.get(i).toString());
-        }
-        // MainHall doesn't have owner, simply print all members' user ID
-        if (roomName.equals("MainHall")) {
-            System.out.print("\n" + roomName + " contains");
-            for (int i = 0; i < members.size(); i++) {
-                System.out.print(" " + members.get(i));
+    private static void initTls() throws IOException, GeneralSecurityException {
+        TrustManagerFactory trustManagers = null;
+        if (!trustStore.isEmpty()) {
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            try (FileInputStream in = new FileInputStream(trustStore)) {
+                store.load(in, trustStorePassword.toCharArray());
             }
-//            System.out.println();
-        } else {
-            // The rooms except MainHall have ownership, print both members' user ID and owner
-            System.out.print("\n" + roomName + " contains ");
-            String owner = jsonReceive.get("owner").toString();
-            for (int i = 0; i < members.size(); i++) {
-                System.out.print(members.get(i));
-                if (members.get(i).equals(owner)) {
-                    System.out.print("*");
-                }
-                System.out.print(" ");
-            }
-//            System.out.println();
+            trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(store);
         }
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers == null ? null : trustManagers.getTrustManagers(), null);
+        tlsSocketFactory = context.getSocketFactory();
     }
 
     /**
-     * Method for receive the broadcast chat message from server
-     *
-     * @param jsonReceive received json format message from server
+     * The interactive client: a ChatClient whose messages are shown by a Renderer, and whose requests are typed
+     * on the keyboard and sent by ClientSend
      */
-    private static void chatResponse(JSONObject jsonReceive) {
-        // get user ID
-        String user = jsonReceive.get("identity").toString();
-        // get user's plain chat message
-        String words = jsonReceive.get("content").toString();
-        System.out.print("\n" + user + ": " + words);
-    }
-
     public static void main(String[] args) throws IOException, InterruptedException {
-        Socket socket = null;
-
         host = args[0];
 
         //
         Client c = new Client();
-        String[] argv = new String[2];
-        argv[0] = args[1];
-        argv[1] = args[2];
+        String[] argv = Arrays.copyOfRange(args, 1, args.length);
         JCommander jCommander = new JCommander(c, argv);
         //
 
-        try {
-            socket = new Socket(host, port);
-            DataInputStream in = new DataInputStream(socket.getInputStream());
-            //create a thread to send messages
-            ClientSend clientSend = new ClientSend(socket);
-            Thread send = new Thread(clientSend);
-            send.start();
-
-            while (true) {
-                String serverToClient = in.readUTF();
-                //unmarshall the received encoded text, and read it
-                JSONObject jsonReceive = (JSONObject) JSONValue.parse(serverToClient);
-                String type = (String) jsonReceive.get("type");
-                switch (type) {
-
-                    case "newidentity":
-                        newIdResponse(jsonReceive);
-                        trigger++;
-                        break;
-
-                    case "roomcontents":
-                        contentsResponse(jsonReceive);
-                        trigger++;
-                        break;
-
-                    case "roomlist":
-                        listResponse(jsonReceive);
-                        break;
-
-                    case "message":
-                        chatResponse(jsonReceive);
-                        break;
-
-                    case "roomchange":
-                        String user = jsonReceive.get("identity").toString();
-                        String newRoom = jsonReceive.get("roomid").toString();
-                        String formerRoom = jsonReceive.get("former").toString();
-                        // here need to figure out whether the user is disconnecting from the system or changing room.
-                        // if user is disconnecting
-                        if (newRoom.equals("") && user.equals(userId)) {
-
-                            System.out.print("\n" + user + " leaves " + formerRoom);
-
-                            System.out.print("\nDisconnected from " + socket.getInetAddress());
-                            // close the input stream
-                            in.close();
-                            // close the socket to communicate
-                            socket.close();
-                            // wait the client sending thread to completely dead
-                            send.join();
-                            // disconnect
-                            System.exit(0);
-                        } else {
-                            // if user is changing room
-                            if (newRoom.equals(formerRoom)) {
-                                System.out.print("\nThe requested room is invalid or non existent.");
-                            } else if (!formerRoom.equals("")) {
-                                System.out.print("\n" + user + " moves from " + formerRoom + " to " + newRoom);
-                            } else {
-                                System.out.print("\n" + user + " moves to " + newRoom);
-                            }
-                            if (user.equals(userId)) {
-                                currRoom = newRoom;
-                                trigger++;
-                            }
-                        }
-                        break;
-                }
-                if (trigger > 2) {
-                    System.out.print("\n" + "[" + currRoom + "] " + userId + "> ");
-                }
+        if (tls) {
+            try {
+                initTls();
+            } catch (GeneralSecurityException e) {
+                System.out.print("\nFail to set up TLS: " + e.getMessage());
+                return;
+            }
+        }
 
+        ChatClient client = new ChatClient(host, port, tlsSocketFactory, ciphers.isEmpty() ? null : ciphers.split(","));
+        client.setCompression(compress);
+        // shows the frames on the terminal, so a slow terminal never holds up reading the socket
+        Renderer renderer = new Renderer(host);
+        renderer.start();
+        client.addListener(renderer);
+        client.addListener(new ChatListener() {
+            @Override
+            public void onClosed(String reason) {
+                // let the terminal catch up, then disconnect
+                try {
+                    renderer.finish(FINISH_RENDER_MILLIS);
+                } catch (InterruptedException e) {
+                    // exiting anyway
+                }
+                System.exit(0);
             }
+        });
+
+        try {
+            client.connect();
         } catch (IOException e) {
-            System.out.print("\nFail to connect to server");
-            if (socket != null) {
-                socket.close();
-            }
+            renderer.note("Fail to connect to server");
+            renderer.finish(FINISH_RENDER_MILLIS);
+            return;
         }
+        // the keyboard is read on this thread until the client exits
+        new ClientSend(client, renderer).run();
     }
 }
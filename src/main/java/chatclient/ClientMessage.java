@@ -71,6 +71,30 @@ public class ClientMessage {
         return jsonFormatMsg.toJSONString() + "\n";
     }
 
+    /**
+     * Method for sending request to follow the members of a chatroom: its contents once, then every change
+     * @param roomId the room identity
+     * @return JSON format encoded text
+     */
+    public String requestWatch(String roomId) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "watch");
+        jsonFormatMsg.put("roomid", roomId);
+        return jsonFormatMsg.toJSONString() + "\n";
+    }
+
+    /**
+     * Method for sending request to stop following the members of a chatroom
+     * @param roomId the room identity
+     * @return JSON format encoded text
+     */
+    public String requestUnwatch(String roomId) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "unwatch");
+        jsonFormatMsg.put("roomid", roomId);
+        return jsonFormatMsg.toJSONString() + "\n";
+    }
+
     /**
      * Method for sending request to delete a chatroom
      * @param roomId A specific chatroom ID
@@ -83,6 +107,66 @@ public class ClientMessage {
         return jsonFormatMsg.toJSONString() + "\n";
     }
 
+    /**
+     * Method for sending request to read the latest messages of a chatroom
+     * @param roomId A specific chatroom ID
+     * @param count number of latest messages
+     * @return JSON format encoded text
+     */
+    public String requestHistory(String roomId, int count) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "history");
+        jsonFormatMsg.put("roomid", roomId);
+        jsonFormatMsg.put("count", count);
+        return jsonFormatMsg.toJSONString() + "\n";
+    }
+
+    /**
+     * Method for sending request to read the messages of a chatroom since a given time
+     * @param roomId A specific chatroom ID
+     * @param since earliest time in milliseconds
+     * @return JSON format encoded text
+     */
+    public String requestHistorySince(String roomId, long since) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "history");
+        jsonFormatMsg.put("roomid", roomId);
+        jsonFormatMsg.put("since", since);
+        return jsonFormatMsg.toJSONString() + "\n";
+    }
+
+    /**
+     * Method for sending request to resume a session after reconnecting
+     * @param token session token given by the server
+     * @return JSON format encoded text
+     */
+    public String requestResume(String token) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "resume");
+        jsonFormatMsg.put("token", token);
+        return jsonFormatMsg.toJSONString() + "\n";
+    }
+
+    /**
+     * Method for asking the server to compress the large frames it sends
+     * @return JSON format encoded text
+     */
+    public String requestCompression() {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "compress");
+        return jsonFormatMsg.toJSONString() + "\n";
+    }
+
+    /**
+     * Method for answering a heartbeat sent by the server
+     * @return JSON format encoded text
+     */
+    public String pong() {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "pong");
+        return jsonFormatMsg.toJSONString() + "\n";
+    }
+
     /**
      * Method for sending request to quit the system and disconnect in a normal way
      * @return JSON format encoded text
@@ -105,8 +189,55 @@ public class ClientMessage {
         return jsonFormatMsg.toJSONString() + "\n";
     }
 
+    /**
+     * Method for sending a chat message with an identity: the server acknowledges it, and drops a copy sent again
+     * with the same identity (after a lost connection) instead of broadcasting it twice
+     * @param msg normal chat message
+     * @param msgId identity of the message, unique among the sender's recent messages
+     * @return JSON format encoded text
+     */
+    public String plainMessage(String msg, long msgId){
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "message");
+        jsonFormatMsg.put("content", msg);
+        jsonFormatMsg.put("msgid", msgId);
+        return jsonFormatMsg.toJSONString() + "\n";
+    }
 
+    /**
+     * Method for sending a chat message to one user only, in whatever room that user is
+     * @param identity receiving user identity
+     * @param msg plain chat message
+     * @return JSON format encoded text
+     */
+    public String privateMessage(String identity, String msg){
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "privatemessage");
+        jsonFormatMsg.put("identity", identity);
+        jsonFormatMsg.put("content", msg);
+        return jsonFormatMsg.toJSONString() + "\n";
+    }
 
+    /**
+     * Method for asking to hear about the identity changes of every user, not just of the room's members
+     * @param watch true to start, false to stop
+     * @return JSON format encoded text
+     */
+    public String requestPresence(boolean watch){
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "presence");
+        jsonFormatMsg.put("watch", watch);
+        return jsonFormatMsg.toJSONString() + "\n";
+    }
 
-
+    /**
+     * Method for giving a request an identity, which the server echoes in its direct answer
+     * @param request JSON format encoded text
+     * @param requestId identity of the request
+     * @return JSON format encoded text
+     */
+    public static String withRequestId(String request, long requestId) {
+        int end = request.lastIndexOf('}');
+        return request.substring(0, end) + ",\"reqid\":" + requestId + request.substring(end);
+    }
 }
@@ -1,180 +1,253 @@
 package chatclient;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.net.Socket;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 public class ClientSend implements Runnable {
 
-    protected Socket socket;
+    private static final int DEFAULT_HISTORY_COUNT = 20; // messages requested by #history without a count
+
+    private final ChatClient client; // connection the typed requests are sent on
+    private final Renderer renderer; // shows the usage hints and errors in order with what the server sends
 
     /**
      * Constructor method for ClientSend
      *
-     * @param socket
+     * @param client connection the typed requests are sent on
+     * @param renderer terminal output of the client
      */
-    public ClientSend(Socket socket) {
-        this.socket = socket;
+    public ClientSend(ChatClient client, Renderer renderer) {
+        this.client = client;
+        this.renderer = renderer;
     }
 
-    @Override
-    public void run() {
-        try {
-
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            Scanner keyboard = new Scanner(System.in);
-            String messageToServer;
-
-            //Set up the identity (auto generated by server) when connection is established
-            //send this sign up request to the server
-            String signup = new ClientMessage().requestNewID("");
-            out.writeUTF(signup);
-            out.flush();
-
-            //Send a request to join the MainHall (automatically) when connection is established
-            // Initially, user is assigned to MainHall
-            String allocateRoom = new ClientMessage().requestJoin("MainHall");
-            out.writeUTF(allocateRoom);
-            out.flush();
-
-            //When the user is connected to the server and join the MainHall, show current MainHall's information
-            String mainHallContents = new ClientMessage().requestRoomContents("MainHall");
-            out.writeUTF(mainHallContents);
-            out.flush();
-
-            while (true) {
-
-                messageToServer = keyboard.nextLine();
-                /*
-                Check the user input message is a command to request function from server
-                , or it is just a line of plain message for chat
-                 */
-                char initialChar = messageToServer.charAt(0);
-                // if the first character of the user input message is '#', then this message is a command
-                if (initialChar == '#') {
-                    String[] strTokens = messageToServer.split(" ");
-                    //get the user's request
-                    String request = strTokens[0];
-                    switch (request) {
-
-                        case "#identitychange":
-                            try {
-                                //get new user ID
-                                String newId = strTokens[1];
-                                if (!newId.equals(null)) {
-
-                                    ClientMessage clientMessage1 = new ClientMessage();
-                                    //covert the request into JSON format encoded text, then send it to server
-                                    String reqNewUserId = clientMessage1.requestNewID(newId);
-                                    out.writeUTF(reqNewUserId);
-                                    out.flush();
-
-                                }
-                            } catch (Exception e) {
-                                System.out.println("Empty name is not allowed.");
-                            }
-                            break;
-
-                        case "#createroom":
-                            try {
-                                String newRoomId = strTokens[1];
-                                if (newRoomId != null) {
-
-                                    ClientMessage clientMessage2 = new ClientMessage();
-                                    //covert the request into JSON format encoded text, then send it to server
-                                    String reqCreateRoom = clientMessage2.requestCreate(newRoomId);
-                                    out.writeUTF(reqCreateRoom);
-                                    out.flush();
-
-                                }
-
-                            } catch (Exception e) {
-                                System.out.println("Please enter a room name.");
-                            }
-                            break;
-
-                        case "#join":
-                            try {
-                                String roomId = strTokens[1];
-                                if (!roomId.equals(null)) {
-                                    ClientMessage clientMessage3 = new ClientMessage();
-                                    //covert the request into JSON format encoded text, then send it to server
-                                    String reqJoin = clientMessage3.requestJoin(roomId);
-                                    out.writeUTF(reqJoin);
-                                    out.flush();
-                                }
-                            } catch (Exception e) {
-                                System.out.println("Please enter the room name to join in.");
-                            }
-                            break;
-
-                        case "#delete":
-                            try {
-                                String roomId = strTokens[1];
-                                if (!roomId.equals(null)) {
-                                    ClientMessage clientMessage4 = new ClientMessage();
-                                    //covert the request into JSON format encoded text, then send it to server
-                                    String reqDelete = clientMessage4.requestDelete(roomId);
-                                    out.writeUTF(reqDelete);
-                                    out.flush();
-                                }
-                            } catch (Exception e) {
-                                System.out.println("Please enter the room name to delete.");
-                            }
-                            break;
-
-                        case "#who":
-                            try {
-                                String roomId = strTokens[1];
-                                if (!roomId.equals(null)) {
-
-                                    ClientMessage clientMessage5 = new ClientMessage();
-                                    //covert the request into JSON format encoded text, then send it to server
-                                    String reqContents = clientMessage5.requestRoomContents(roomId);
-                                    out.writeUTF(reqContents);
-                                    out.flush();
-
-                                }
-                            } catch (Exception e) {
-                                System.out.println("Please enter the room name to check room contents.");
-                            }
-                            break;
-
-                        case "#list":
-                            ClientMessage clientMessage6 = new ClientMessage();
+    /**
+     * Method for sending an encoded request without waiting, telling the user when it could not be sent
+     *
+     * @param message JSON format encoded text
+     */
+    private void send(String message) {
+        client.send(message).exceptionally(e -> {
+            // the connection is being resumed, the line is not resent
+            renderer.note("Not sent, the connection to the server is lost.");
+            return null;
+        });
+    }
+
+    /**
+     * Method for converting a period such as 30s, 15m, 2h or 1d into milliseconds
+     *
+     * @param period period typed by the user
+     * @return length of the period in milliseconds
+     */
+    private long parsePeriod(String period) {
+        long amount = Long.parseLong(period.substring(0, period.length() - 1));
+        switch (period.charAt(period.length() - 1)) {
+            case 's':
+                return TimeUnit.SECONDS.toMillis(amount);
+            case 'm':
+                return TimeUnit.MINUTES.toMillis(amount);
+            case 'h':
+                return TimeUnit.HOURS.toMillis(amount);
+            case 'd':
+                return TimeUnit.DAYS.toMillis(amount);
+            default:
+                throw new IllegalArgumentException("Unknown period " + period);
+        }
+    }
+
+    /**
+     * Method for converting one line of user input into a request or a chat message, and sending it to server
+     *
+     * @param messageToServer line typed by the user
+     */
+    private void dealInput(String messageToServer) {
+        /*
+        Check the user input message is a command to request function from server
+        , or it is just a line of plain message for chat
+         */
+        char initialChar = messageToServer.charAt(0);
+        // if the first character of the user input message is '#', then this message is a command
+        if (initialChar == '#') {
+            String[] strTokens = messageToServer.split(" ");
+            //get the user's request
+            String request = strTokens[0];
+            switch (request) {
+
+                case "#identitychange":
+                    try {
+                        //get new user ID
+                        String newId = strTokens[1];
+                        if (!newId.equals(null)) {
+
+                            ClientMessage clientMessage1 = new ClientMessage();
                             //covert the request into JSON format encoded text, then send it to server
-                            String reqList = clientMessage6.requestRoomList();
-                            out.writeUTF(reqList);
-                            out.flush();
-                            break;
+                            String reqNewUserId = clientMessage1.requestNewID(newId);
+                            send(reqNewUserId);
 
-                        case "#quit":
-                            ClientMessage clientMessage7 = new ClientMessage();
+                        }
+                    } catch (Exception e) {
+                        renderer.note("Empty name is not allowed.");
+                    }
+                    break;
+
+                case "#createroom":
+                    try {
+                        String newRoomId = strTokens[1];
+                        if (newRoomId != null) {
+
+                            ClientMessage clientMessage2 = new ClientMessage();
                             //covert the request into JSON format encoded text, then send it to server
-                            String reqQuit = clientMessage7.requestQuit();
-                            out.writeUTF(reqQuit);
-                            out.flush();
-                            break;
+                            String reqCreateRoom = clientMessage2.requestCreate(newRoomId);
+                            send(reqCreateRoom);
 
-                        default:
-                            System.out.println("Wrong command");
-                            break;
+                        }
 
+                    } catch (Exception e) {
+                        renderer.note("Please enter a room name.");
                     }
-                } else {
-                    //send normal chat messages rather than a command or request
-                    ClientMessage clientMessage8 = new ClientMessage();
-                    //covert the chat message into JSON format encoded text, then send it to server
-                    String chatMsg = clientMessage8.plainMessage(messageToServer);
-                    out.writeUTF(chatMsg);
-                    out.flush();
-                }
+                    break;
+
+                case "#join":
+                    try {
+                        String roomId = strTokens[1];
+                        if (!roomId.equals(null)) {
+                            ClientMessage clientMessage3 = new ClientMessage();
+                            //covert the request into JSON format encoded text, then send it to server
+                            String reqJoin = clientMessage3.requestJoin(roomId);
+                            send(reqJoin);
+                        }
+                    } catch (Exception e) {
+                        renderer.note("Please enter the room name to join in.");
+                    }
+                    break;
+
+                case "#delete":
+                    try {
+                        String roomId = strTokens[1];
+                        if (!roomId.equals(null)) {
+                            ClientMessage clientMessage4 = new ClientMessage();
+                            //covert the request into JSON format encoded text, then send it to server
+                            String reqDelete = clientMessage4.requestDelete(roomId);
+                            send(reqDelete);
+                        }
+                    } catch (Exception e) {
+                        renderer.note("Please enter the room name to delete.");
+                    }
+                    break;
+
+                case "#who":
+                    try {
+                        String roomId = strTokens[1];
+                        if (!roomId.equals(null)) {
+
+                            ClientMessage clientMessage5 = new ClientMessage();
+                            //covert the request into JSON format encoded text, then send it to server
+                            String reqContents = clientMessage5.requestRoomContents(roomId);
+                            send(reqContents);
+
+                        }
+                    } catch (Exception e) {
+                        renderer.note("Please enter the room name to check room contents.");
+                    }
+                    break;
+
+                case "#watch":
+                case "#unwatch":
+                    if (strTokens.length < 2) {
+                        renderer.note("Please enter the room name to " + request.substring(1) + ".");
+                        break;
+                    }
+                    ClientMessage clientMessage12 = new ClientMessage();
+                    //covert the request into JSON format encoded text, then send it to server
+                    String reqWatch = request.equals("#watch") ? clientMessage12.requestWatch(strTokens[1])
+                            : clientMessage12.requestUnwatch(strTokens[1]);
+                    send(reqWatch);
+                    break;
+
+                case "#history":
+                    try {
+                        String roomId = strTokens[1];
+                        ClientMessage clientMessage9 = new ClientMessage();
+                        String reqHistory;
+                        // the optional second argument is either a message count, or a period such as
+                        // 30m, 2h or 1d meaning all messages since that long ago
+                        if (strTokens.length < 3) {
+                            reqHistory = clientMessage9.requestHistory(roomId, DEFAULT_HISTORY_COUNT);
+                        } else if (strTokens[2].matches("[0-9]+")) {
+                            reqHistory = clientMessage9.requestHistory(roomId, Integer.parseInt(strTokens[2]));
+                        } else {
+                            long since = System.currentTimeMillis() - parsePeriod(strTokens[2]);
+                            reqHistory = clientMessage9.requestHistorySince(roomId, since);
+                        }
+                        //covert the request into JSON format encoded text, then send it to server
+                        send(reqHistory);
+                    } catch (Exception e) {
+                        renderer.note("Usage: #history <room> [count|30m|2h|1d]");
+                    }
+                    break;
+
+                case "#msg":
+                    // the text may contain spaces, split it off as a whole
+                    String[] msgTokens = messageToServer.split(" ", 3);
+                    if (msgTokens.length < 3 || msgTokens[1].isEmpty() || msgTokens[2].isEmpty()) {
+                        renderer.note("Usage: #msg <user> <text>");
+                        break;
+                    }
+                    ClientMessage clientMessage10 = new ClientMessage();
+                    //covert the request into JSON format encoded text, then send it to server
+                    String privateMsg = clientMessage10.privateMessage(msgTokens[1], msgTokens[2]);
+                    send(privateMsg);
+                    break;
+
+                case "#presence":
+                    // on: hear about every user's identity changes, off: only those of the room's members
+                    if (strTokens.length < 2 || !strTokens[1].matches("on|off")) {
+                        renderer.note("Usage: #presence on|off");
+                        break;
+                    }
+                    ClientMessage clientMessage11 = new ClientMessage();
+                    //covert the request into JSON format encoded text, then send it to server
+                    String reqPresence = clientMessage11.requestPresence(strTokens[1].equals("on"));
+                    send(reqPresence);
+                    break;
+
+                case "#list":
+                    ClientMessage clientMessage6 = new ClientMessage();
+                    //covert the request into JSON format encoded text, then send it to server
+                    String reqList = clientMessage6.requestRoomList();
+                    send(reqList);
+                    break;
+
+                case "#quit":
+                    ClientMessage clientMessage7 = new ClientMessage();
+                    //covert the request into JSON format encoded text, then send it to server
+                    String reqQuit = clientMessage7.requestQuit();
+                    send(reqQuit);
+                    break;
+
+                default:
+                    renderer.note("Wrong command");
+                    break;
 
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        } else {
+            //send normal chat messages rather than a command or request
+            ClientMessage clientMessage8 = new ClientMessage();
+            //covert the chat message into JSON format encoded text, then send it to server
+            String chatMsg = clientMessage8.plainMessage(messageToServer);
+            send(chatMsg);
         }
     }
-}
 
+    @Override
+    public void run() {
+        Scanner keyboard = new Scanner(System.in);
+        while (keyboard.hasNextLine()) {
+            String messageToServer = keyboard.nextLine();
+            if (!messageToServer.isEmpty()) {
+                dealInput(messageToServer);
+            }
+        }
+    }
+}
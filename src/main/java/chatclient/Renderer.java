@@ -0,0 +1,457 @@
+package chatclient;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shows what the server sends on the terminal, on its own thread so a slow terminal never holds up reading the
+ * socket. The client's reader thread hands over decoded frames through a bounded queue; every frame waiting when the
+ * renderer wakes up is formatted into one block of text, written and flushed at once with a single prompt at the end.
+ * When the terminal falls so far behind that the queue is full, chat messages are skipped (and counted) rather than
+ * making the reader wait; every other frame is always shown.
+ */
+public class Renderer implements Runnable, ChatListener {
+
+    private static final int QUEUE_CAPACITY = 4096;  // frames waiting to be shown before chat messages are skipped
+    private static final int MAX_BURST = 512;        // most frames formatted into one write
+    private static final int MAX_NAMES_SHOWN = 10;   // users moved together listed by name, more are counted
+    private static final JSONObject STOP = new JSONObject(); // queued to end the renderer, compared by identity
+
+    private final BlockingQueue<JSONObject> frames = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong skipped = new AtomicLong(); // chat messages skipped since the last burst
+    private final PrintStream out = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    private final Thread thread = new Thread(this, "renderer");
+
+    private final String host; // server address, shown when connected
+
+    private String userId; // the identity shown in the prompt
+
+    private String currRoom; //the client is in which chatroom
+
+    private int trigger = 0; // when the trigger exceeds 2, it will start to show the prefix for each client
+
+    /**
+     * Constructor method for Renderer
+     *
+     * @param host server address, shown when connected
+     */
+    public Renderer(String host) {
+        this.host = host;
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Method for starting the rendering thread
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Method for handing a decoded frame over to be shown, called by the client's reader thread; waits only when the
+     * terminal is far behind and the frame is not a chat message
+     *
+     * @param jsonReceive received json format message from server
+     */
+    @Override
+    public void onFrame(JSONObject jsonReceive) {
+        if (frames.offer(jsonReceive)) {
+            return;
+        }
+        if ("message".equals(jsonReceive.get("type"))) {
+            skipped.incrementAndGet();
+        } else {
+            put(jsonReceive);
+        }
+    }
+
+    @Override
+    public void onConnectionLost() {
+        note("Connection lost, reconnecting...");
+    }
+
+    @Override
+    public void onRedirectAbandoned(String roomId) {
+        note("Could not join " + roomId + ", please try again later");
+    }
+
+    @Override
+    public void onClosed(String reason) {
+        note(reason != null ? reason : "Disconnected from " + host);
+    }
+
+    /**
+     * Method for showing a line which did not come from the server, in order with the frames
+     *
+     * @param words the line
+     */
+    public void note(String words) {
+        JSONObject note = new JSONObject();
+        note.put("type", "note");
+        note.put("words", words);
+        put(note);
+    }
+
+    private void put(JSONObject frame) {
+        try {
+            frames.put(frame);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Method for waiting until everything handed over so far is shown, then ending the rendering thread
+     *
+     * @param timeoutMillis longest time to wait
+     * @throws InterruptedException
+     */
+    public void finish(long timeoutMillis) throws InterruptedException {
+        frames.put(STOP);
+        thread.join(timeoutMillis);
+    }
+
+    @Override
+    public void run() {
+        List<JSONObject> burst = new ArrayList<>(MAX_BURST);
+        StringBuilder text = new StringBuilder();
+        try {
+            while (true) {
+                burst.add(frames.take());
+                frames.drainTo(burst, MAX_BURST - 1);
+                boolean stop = false;
+                for (JSONObject jsonReceive : burst) {
+                    if (jsonReceive == STOP) {
+                        stop = true;
+                        break;
+                    }
+                    render(jsonReceive, text);
+                }
+                long missed = skipped.getAndSet(0);
+                if (missed > 0) {
+                    text.append("\n(").append(missed).append(" messages skipped, the terminal could not keep up)");
+                }
+                if (trigger > 2 && !stop) {
+                    text.append("\n" + "[" + currRoom + "] " + userId + "> ");
+                }
+                out.print(text);
+                out.flush();
+                text.setLength(0);
+                burst.clear();
+                if (stop) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // the client is exiting
+        }
+    }
+
+    /**
+     * Method for formatting one frame
+     *
+     * @param jsonReceive received json format message from server
+     * @param text where the formatted lines are appended
+     */
+    private void render(JSONObject jsonReceive, StringBuilder text) {
+        String type = (String) jsonReceive.get("type");
+        switch (type) {
+
+            case "newidentity":
+                newIdResponse(jsonReceive, text);
+                trigger++;
+                break;
+
+            case "roomcontents":
+                contentsResponse(jsonReceive, text);
+                trigger++;
+                break;
+
+            case "roomlist":
+                listResponse(jsonReceive, text);
+                break;
+
+            case "roomdelta":
+                deltaResponse(jsonReceive, text);
+                break;
+
+            case "message":
+                chatResponse(jsonReceive, text);
+                break;
+
+            case "privatemessage":
+                text.append("\n").append(jsonReceive.get("identity").toString()).append(" (private): ")
+                        .append(jsonReceive.get("content").toString());
+                break;
+
+            case "undelivered":
+                text.append("\nNo user named ").append(jsonReceive.get("identity").toString())
+                        .append(", message not delivered");
+                break;
+
+            case "history":
+                historyResponse(jsonReceive, text);
+                break;
+
+            case "resumed":
+                resumedResponse(jsonReceive, text);
+                break;
+
+            case "notice":
+                text.append("\nNotice: ").append(jsonReceive.get("words").toString());
+                break;
+
+            case "note":
+                text.append("\n").append(jsonReceive.get("words").toString());
+                break;
+
+            case "throttle":
+                text.append("\nToo many requests, ").append(jsonReceive.get("request").toString())
+                        .append(" rejected, retry in ").append(jsonReceive.get("retryafter").toString())
+                        .append(" ms");
+                break;
+
+            case "redirect":
+                text.append("\n").append(jsonReceive.get("roomid").toString()).append(" is hosted on ")
+                        .append(jsonReceive.get("host").toString()).append(":")
+                        .append(jsonReceive.get("port").toString()).append(", moving there");
+                // the new node hands out the identity again
+                userId = null;
+                trigger = 0;
+                break;
+
+            case "roomchange":
+                roomChangeResponse(jsonReceive, text);
+                break;
+
+            case "roomchangemulti":
+                roomChangeMultiResponse(jsonReceive, text);
+                break;
+        }
+    }
+
+    /**
+     * Method for receive the response of new user ID request from server
+     *
+     * @param jsonReceive received json format message from server
+     * @param text where the formatted lines are appended
+     */
+    private void newIdResponse(JSONObject jsonReceive, StringBuilder text) {
+        // when current user ID is null (first time connection and auto sign up),
+        // set the returned new user ID as user ID
+        if (userId == null) {
+            userId = jsonReceive.get("identity").toString();
+            text.append("Connected to ").append(host).append(" as ").append(userId);
+        }
+        // when the new user ID is same as former or current user ID (when request for user ID change), change failed
+        else if (jsonReceive.get("identity").equals(jsonReceive.get("former"))) {
+            text.append("\nRequested identity invalid or in use");
+        } else {
+            if (jsonReceive.get("former").equals(userId)) {
+                // when former user ID is different from new user ID, set the new user ID as user ID
+                userId = jsonReceive.get("identity").toString();
+            }
+            String formerId = jsonReceive.get("former").toString();
+            text.append("\n").append(formerId).append(" is now ").append(jsonReceive.get("identity").toString());
+        }
+    }
+
+    /**
+     * Method for receive the response of room list request from server
+     *
+     * @param jsonReceive received json format message from server
+     * @param text where the formatted lines are appended
+     */
+    private void listResponse(JSONObject jsonReceive, StringBuilder text) {
+        String words = jsonReceive.get("words").toString();
+        if (!words.equals("")) {
+            text.append("\n").append(words);
+            return;
+        }
+
+        JSONArray roomList = (JSONArray) jsonReceive.get("rooms");
+        for (int i = 0; i < roomList.size(); i++) {
+            // get each room's information from the returned list
+            JSONObject room = (JSONObject) roomList.get(i);
+            // print each room's information (state)
+            String count = room.get("count").toString();
+            text.append("\n").append(room.get("roomid").toString()).append(": ").append(count)
+                    .append(count.equals("1") ? " guest" : " guests");
+        }
+    }
+
+    /**
+     * Method for receive the response of room contents request from server
+     *
+     * @param jsonReceive received json format message from server
+     * @param text where the formatted lines are appended
+     */
+    private void contentsResponse(JSONObject jsonReceive, StringBuilder text) {
+        String roomName = jsonReceive.get("roomid").toString();
+        JSONArray roomMembers = (JSONArray) jsonReceive.get("identities");
+        // MainHall doesn't have owner, simply print all members' user ID
+        if (roomName.equals("MainHall")) {
+            text.append("\n").append(roomName).append(" contains");
+            for (Object member : roomMembers) {
+                text.append(" ").append(member.toString());
+            }
+        } else {
+            // The rooms except MainHall have ownership, print both members' user ID and owner
+            text.append("\n").append(roomName).append(" contains ");
+            String owner = jsonReceive.get("owner").toString();
+            for (Object member : roomMembers) {
+                text.append(member.toString());
+                if (member.toString().equals(owner)) {
+                    text.append("*");
+                }
+                text.append(" ");
+            }
+        }
+    }
+
+    /**
+     * Method for receive the membership changes of a watched room from server
+     *
+     * @param jsonReceive received json format message from server
+     * @param text where the formatted lines are appended
+     */
+    private void deltaResponse(JSONObject jsonReceive, StringBuilder text) {
+        text.append("\n").append(jsonReceive.get("roomid").toString()).append(":");
+        for (Object member : (JSONArray) jsonReceive.get("left")) {
+            text.append(" -").append(member.toString());
+        }
+        for (Object rename : ((JSONObject) jsonReceive.get("renamed")).entrySet()) {
+            Map.Entry<?, ?> r = (Map.Entry<?, ?>) rename;
+            text.append(" ").append(r.getKey().toString()).append("->").append(r.getValue().toString());
+        }
+        for (Object member : (JSONArray) jsonReceive.get("joined")) {
+            text.append(" +").append(member.toString());
+        }
+    }
+
+    /**
+     * Method for receive the broadcast chat message from server
+     *
+     * @param jsonReceive received json format message from server
+     * @param text where the formatted lines are appended
+     */
+    private void chatResponse(JSONObject jsonReceive, StringBuilder text) {
+        // get user ID and user's plain chat message
+        text.append("\n").append(jsonReceive.get("identity").toString()).append(": ")
+                .append(jsonReceive.get("content").toString());
+    }
+
+    /**
+     * Method for receive one batch of a room's message history from server
+     *
+     * @param jsonReceive received json format message from server
+     * @param text where the formatted lines are appended
+     */
+    private void historyResponse(JSONObject jsonReceive, StringBuilder text) {
+        JSONArray messages = (JSONArray) jsonReceive.get("messages");
+        if (messages.isEmpty()) {
+            text.append("\nNo message history for ").append(jsonReceive.get("roomid").toString());
+            return;
+        }
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        for (int i = 0; i < messages.size(); i++) {
+            JSONObject message = (JSONObject) messages.get(i);
+            long timestamp = Long.parseLong(message.get("timestamp").toString());
+            text.append("\n[").append(timeFormat.format(new Date(timestamp))).append("] ")
+                    .append(message.get("identity").toString()).append(": ").append(message.get("content").toString());
+        }
+    }
+
+    /**
+     * Method for receive the response of session resumption request from server
+     *
+     * @param jsonReceive received json format message from server
+     * @param text where the formatted lines are appended
+     */
+    private void resumedResponse(JSONObject jsonReceive, StringBuilder text) {
+        if ((Boolean) jsonReceive.get("success")) {
+            userId = jsonReceive.get("identity").toString();
+            currRoom = jsonReceive.get("roomid").toString();
+            text.append("\nReconnected to ").append(host).append(" as ").append(userId);
+            long dropped = (Long) jsonReceive.get("dropped");
+            if (dropped > 0) {
+                text.append("\n").append(dropped).append(" older messages were missed");
+            }
+        } else {
+            // the session expired (or the server restarted), the reader signs up as a new user
+            text.append("\nSession expired, connecting as a new user");
+            userId = null;
+            trigger = 0;
+        }
+    }
+
+    /**
+     * Method for receive the room change of many users moved together, such as the members of a deleted room
+     *
+     * @param jsonReceive received json format message from server
+     * @param text where the formatted lines are appended
+     */
+    private void roomChangeMultiResponse(JSONObject jsonReceive, StringBuilder text) {
+        JSONArray users = (JSONArray) jsonReceive.get("identities");
+        String newRoom = jsonReceive.get("roomid").toString();
+        text.append("\n");
+        if (users.size() <= MAX_NAMES_SHOWN) {
+            for (int i = 0; i < users.size(); i++) {
+                text.append(i > 0 ? ", " : "").append(users.get(i).toString());
+            }
+        } else {
+            text.append(users.size()).append(" users");
+        }
+        text.append(users.size() == 1 ? " moves from " : " move from ").append(jsonReceive.get("former").toString())
+                .append(" to ").append(newRoom);
+        if (users.contains(userId)) {
+            currRoom = newRoom;
+            trigger++;
+        }
+    }
+
+    /**
+     * Method for receive a room change of any user, including this one leaving the server
+     *
+     * @param jsonReceive received json format message from server
+     * @param text where the formatted lines are appended
+     */
+    private void roomChangeResponse(JSONObject jsonReceive, StringBuilder text) {
+        String user = jsonReceive.get("identity").toString();
+        String newRoom = jsonReceive.get("roomid").toString();
+        String formerRoom = jsonReceive.get("former").toString();
+        // here need to figure out whether the user is disconnecting from the system or changing room.
+        if (newRoom.equals("") && user.equals(userId)) {
+            text.append("\n").append(user).append(" leaves ").append(formerRoom);
+            trigger = 0;
+        } else {
+            // if user is changing room
+            if (newRoom.equals(formerRoom)) {
+                text.append("\nThe requested room is invalid or non existent.");
+            } else if (!formerRoom.equals("")) {
+                text.append("\n").append(user).append(" moves from ").append(formerRoom).append(" to ").append(newRoom);
+            } else {
+                text.append("\n").append(user).append(" moves to ").append(newRoom);
+            }
+            if (user.equals(userId)) {
+                currRoom = newRoom;
+                trigger++;
+            }
+        }
+    }
+}
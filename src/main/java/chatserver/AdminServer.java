@@ -0,0 +1,271 @@
+package chatserver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Text console for operators on a port reachable from the server's own machine only (for example with
+ * "nc localhost 4445"). It lists the busiest rooms and the deepest outbound queues, kicks slow consumers and
+ * changes limits and verbosity while running. Each command answers its lines followed by "ok" or "error: ...".
+ * Everything is read from copies of the server's registries, so no command ever holds up the chat traffic.
+ */
+public class AdminServer {
+
+    private static final int DEFAULT_TOP = 20; // lines listed when a command is not given a count
+
+    private final int port;
+    private ServerSocket serverSocket;
+
+    // message count of each room at the previous rooms command, to tell the message rate since then
+    private final Map<String, Long> previousCounts = new HashMap<>();
+    private long previousSample = System.nanoTime();
+
+    /**
+     * Constructor method for AdminServer
+     * @param port port of the console, bound to the loopback address
+     */
+    public AdminServer(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Method for opening the console port and accepting operators in the background
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptOperators, "admin-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Admin console is listening on " + serverSocket.getLocalSocketAddress());
+    }
+
+    private void acceptOperators() {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread session = new Thread(() -> serve(socket), "admin-session");
+                session.setDaemon(true);
+                session.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(s.getOutputStream(), false, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] words = line.trim().split("\\s+");
+                if (words[0].isEmpty()) {
+                    continue;
+                }
+                if (words[0].equals("quit")) {
+                    return;
+                }
+                try {
+                    execute(words, out);
+                    out.println("ok");
+                } catch (IllegalArgumentException e) {
+                    out.println("error: " + e.getMessage());
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the operator went away
+        }
+    }
+
+    /**
+     * Method for running one console command
+     * @param words the command and its arguments
+     * @param out where the answer is written
+     */
+    private void execute(String[] words, PrintWriter out) {
+        switch (words[0]) {
+            case "help":
+                out.println("stats                     connections, rooms, limits and verbosity");
+                out.println("rooms [n]                 busiest rooms by members and messages per second");
+                out.println("queues [n]                users with the most messages waiting to be sent");
+                out.println("buffers                   use of the pooled read and write buffers by size");
+                out.println("kick <user>               disconnect a user");
+                out.println("kickslow <depth>          disconnect every user with at least depth messages waiting");
+                out.println("set <name> <value>        change " + String.join(", ", Server.SETTINGS));
+                out.println("drain                     send what is queued, save and shut the server down");
+                out.println("quit                      leave the console");
+                break;
+            case "stats":
+                stats(out);
+                break;
+            case "rooms":
+                rooms(count(words), out);
+                break;
+            case "queues":
+                queues(count(words), out);
+                break;
+            case "buffers":
+                buffers(out);
+                break;
+            case "kick":
+                kick(argument(words, 1), out);
+                break;
+            case "kickslow":
+                kickSlow(number(argument(words, 1)), out);
+                break;
+            case "set":
+                Server.changeSetting(argument(words, 1), argument(words, 2));
+                out.println(words[1] + " = " + words[2]);
+                break;
+            case "drain":
+                out.println("draining");
+                out.flush();
+                // the shutdown hook finds the server drained already
+                Server.drain();
+                System.exit(0);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown command " + words[0] + ", try help");
+        }
+    }
+
+    private void stats(PrintWriter out) {
+        out.println("connections " + Server.admission.getOpenConnections()
+                + " (rejected " + Server.admission.getRejected() + ")");
+        out.println("users " + Server.userThreads.size());
+        out.println("rooms " + Server.rooms.size());
+        long in = FrameCompressor.getBytesIn();
+        out.printf("compression %d frames, %d -> %d bytes (ratio %.2f), %.1f ms cpu%n",
+                FrameCompressor.getFramesCompressed(), in, FrameCompressor.getBytesOut(),
+                in == 0 ? 1.0 : (double) FrameCompressor.getBytesOut() / in,
+                FrameCompressor.getCompressNanos() / 1e6);
+        BufferPool.reclaimLeaks();
+        out.printf("buffers %d KB in use, %d KB pooled, %d allocated for %d acquired, %d oversized, %d leaked%n",
+                BufferPool.getBytesInUse() / 1024, BufferPool.getBytesFree() / 1024, BufferPool.getAllocated(),
+                BufferPool.getAcquired(), BufferPool.getOversized(), BufferPool.getLeaks());
+        for (String setting : Server.SETTINGS) {
+            out.println(setting + " " + Server.getSetting(setting));
+        }
+    }
+
+    private void rooms(int top, PrintWriter out) {
+        Room[] rooms = Server.rooms.toArray(new Room[0]);
+        Map<String, Double> rates = sampleRates(rooms);
+        Arrays.sort(rooms, Comparator.comparingInt(Room::countAllMembers)
+                .thenComparingDouble(room -> rates.get(room.getRoomID())).reversed());
+        out.printf("%-32s %8s %10s  %s%n", "room", "members", "msg/s", "owner");
+        for (int i = 0; i < Math.min(top, rooms.length); i++) {
+            Room room = rooms[i];
+            out.printf("%-32s %8d %10.1f  %s%n", room.getRoomID(), room.countAllMembers(),
+                    rates.get(room.getRoomID()), room.getOwner() == null ? "" : room.getOwner());
+        }
+    }
+
+    /**
+     * Method for working out each room's message rate since the previous call
+     * @param rooms the current rooms
+     * @return messages per second of each room identity
+     */
+    private synchronized Map<String, Double> sampleRates(Room[] rooms) {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - previousSample) / 1e9);
+        Map<String, Double> rates = new HashMap<>();
+        Map<String, Long> counts = new HashMap<>();
+        for (Room room : rooms) {
+            long count = room.getMessageCount();
+            long previous = previousCounts.getOrDefault(room.getRoomID(), 0L);
+            rates.put(room.getRoomID(), Math.max(0, count - previous) / seconds);
+            counts.put(room.getRoomID(), count);
+        }
+        // deleted rooms are forgotten here
+        previousCounts.clear();
+        previousCounts.putAll(counts);
+        previousSample = now;
+        return rates;
+    }
+
+    private void queues(int top, PrintWriter out) {
+        Connection[] connections = Server.userThreads.toArray(new Connection[0]);
+        int[] depths = new int[connections.length];
+        Integer[] order = new Integer[connections.length];
+        for (int i = 0; i < connections.length; i++) {
+            // read once, the depth keeps changing while sorting
+            depths[i] = connections[i].getQueueDepth();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(depths[b], depths[a]));
+        out.printf("%-16s %8s  %s%n", "user", "queued", "room");
+        for (int i = 0; i < Math.min(top, order.length); i++) {
+            Connection c = connections[order[i]];
+            Room room = c.locatedRoom;
+            out.printf("%-16s %8d  %s%n", c.getUserId(), depths[order[i]], room == null ? "" : room.getRoomID());
+        }
+    }
+
+    private void buffers(PrintWriter out) {
+        BufferPool.reclaimLeaks();
+        out.printf("%8s %8s %8s %12s %10s %8s%n", "size", "in use", "pooled", "acquired", "allocated", "reused");
+        for (String line : BufferPool.describeClasses()) {
+            out.println(line);
+        }
+        out.println("oversized " + BufferPool.getOversized() + ", leaked " + BufferPool.getLeaks()
+                + (BufferPool.isTrackingLeaks() ? "" : " (leaks are only tracked with -trackleaks)"));
+    }
+
+    private void kick(String userId, PrintWriter out) {
+        Connection c = Server.users.find(userId);
+        if (c == null) {
+            throw new IllegalArgumentException("no user " + userId + " on this node");
+        }
+        if (!c.disconnect("kicked by an operator")) {
+            throw new IllegalArgumentException(userId + " is already leaving or away");
+        }
+        out.println("kicked " + userId);
+    }
+
+    private void kickSlow(int depth, PrintWriter out) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("depth must be positive");
+        }
+        int kicked = 0;
+        for (Connection c : Server.userThreads) {
+            int queued = c.getQueueDepth();
+            if (queued >= depth && c.disconnect("kicked as a slow consumer with " + queued + " messages queued")) {
+                out.println("kicked " + c.getUserId() + " (" + queued + " queued)");
+                kicked++;
+            }
+        }
+        out.println(kicked + " kicked");
+    }
+
+    private static String argument(String[] words, int index) {
+        if (words.length <= index) {
+            throw new IllegalArgumentException("missing argument, try help");
+        }
+        return words[index];
+    }
+
+    private static int count(String[] words) {
+        return words.length > 1 ? number(words[1]) : DEFAULT_TOP;
+    }
+
+    private static int number(String word) {
+        try {
+            return Integer.parseInt(word);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(word + " is not a number");
+        }
+    }
+}
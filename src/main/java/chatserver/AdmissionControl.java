@@ -0,0 +1,128 @@
+package chatserver;
+
+import javax.net.ssl.SSLSocket;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides on the accept thread whether a new socket may become a connection, so a connection flood cannot exhaust
+ * the threads and file descriptors the existing users depend on. Sockets over the total or per address limit get
+ * a busy message and are closed without ever starting a connection thread.
+ */
+public class AdmissionControl {
+
+    private static final int REJECT_TIMEOUT_MILLIS = 2000; // longest a rejected TLS client may take to handshake
+
+    private final int maxConnections;   // open connections allowed, 0 for no limit
+    private final int maxPerAddress;    // open connections allowed from one address, 0 for no limit
+    private final AtomicInteger open = new AtomicInteger();
+    private final Map<InetAddress, Integer> openPerAddress = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    // rejecting a TLS socket needs a handshake first, done by two threads so a storm never stalls the accept loop;
+    // once their queue is full rejected sockets are closed without any message
+    private final ThreadPoolExecutor tlsRejector = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(256), r -> {
+                Thread t = new Thread(r, "busy-rejector");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /**
+     * Constructor method for AdmissionControl
+     * @param maxConnections open connections allowed, 0 for no limit
+     * @param maxPerAddress open connections allowed from one address, 0 for no limit
+     */
+    public AdmissionControl(int maxConnections, int maxPerAddress) {
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+    }
+
+    /**
+     * Method for admitting a new socket, a socket which is not admitted is answered with a busy message and closed
+     * @param socket the accepted socket
+     * @return true if the socket may become a connection, which must call release() when it ends
+     */
+    public boolean admit(Socket socket) {
+        if (open.incrementAndGet() > maxConnections && maxConnections > 0) {
+            open.decrementAndGet();
+            reject(socket, "Server is full, please try again later");
+            return false;
+        }
+        int fromAddress = openPerAddress.merge(socket.getInetAddress(), 1, Integer::sum);
+        if (fromAddress > maxPerAddress && maxPerAddress > 0) {
+            release(socket);
+            reject(socket, "Too many connections from " + socket.getInetAddress().getHostAddress());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Method for giving back the place of a connection which ended
+     * @param socket the connection's socket
+     */
+    public void release(Socket socket) {
+        open.decrementAndGet();
+        openPerAddress.computeIfPresent(socket.getInetAddress(), (address, count) -> count == 1 ? null : count - 1);
+    }
+
+    public int getOpenConnections() {
+        return open.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private void reject(Socket socket, String reason) {
+        long count = rejected.incrementAndGet();
+        // one line per thousand rejections, printing every one would slow the accept loop down in a storm
+        if (count % 1000 == 1) {
+            System.out.println("Rejecting connections: " + reason + " (" + count + " rejected so far)");
+        }
+        if (!(socket instanceof SSLSocket)) {
+            sendBusy(socket, reason);
+            return;
+        }
+        try {
+            tlsRejector.execute(() -> sendBusy(socket, reason));
+        } catch (RejectedExecutionException e) {
+            close(socket);
+        }
+    }
+
+    private void sendBusy(Socket socket, String reason) {
+        try {
+            socket.setSoTimeout(REJECT_TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(new ServerMessage().busy(reason));
+            out.flush();
+            if (!(socket instanceof SSLSocket)) {
+                // let the message reach the client before the close
+                socket.shutdownOutput();
+            }
+        } catch (IOException e) {
+            // the client is gone already
+        }
+        close(socket);
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
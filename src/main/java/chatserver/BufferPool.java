@@ -0,0 +1,235 @@
+package chatserver;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers the connections read frames into and write frames from, reused instead of allocated for every connection
+ * and every large frame. Buffers come in size classes of powers of two from 512 bytes to 128KB, a request is served
+ * from the smallest class which fits it; larger buffers are allocated and dropped as before. Each class keeps at most
+ * 4MB of free buffers, what is released beyond that is left to the garbage collector.
+ * When leak tracking is turned on (-trackleaks) every buffer handed out remembers where it was acquired, and a buffer
+ * collected without being released is reported with that stack trace and its bytes are taken back into the pool.
+ */
+public class BufferPool {
+
+    private static final int SMALLEST = 512;           // size of the first class in bytes
+    private static final int CLASSES = 9;              // 512 bytes up to 128KB
+    private static final int POOLED_BYTES = 4 << 20;   // most bytes kept free in one class
+
+    private static final SizeClass[] classes = new SizeClass[CLASSES];
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            classes[i] = new SizeClass(SMALLEST << i);
+        }
+    }
+
+    private static final AtomicLong oversized = new AtomicLong(); // buffers larger than every class
+    private static final AtomicLong leaks = new AtomicLong();     // buffers collected without being released
+
+    // leak tracking, only for buffers acquired while it is on; it captures a stack trace for every buffer
+    private static volatile boolean trackLeaks = false;
+    private static final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<>();
+    private static final Set<LeakRecord> tracked = ConcurrentHashMap.newKeySet(); // keeps the records reachable
+
+    // free buffers of one size and what was done with them
+    private static class SizeClass {
+        final int size;
+        final int maxFree;
+        final ConcurrentLinkedQueue<PooledBuffer> free = new ConcurrentLinkedQueue<>();
+        final AtomicInteger freeCount = new AtomicInteger();
+        final AtomicInteger inUse = new AtomicInteger();
+        final AtomicLong acquired = new AtomicLong();
+        final AtomicLong allocated = new AtomicLong();
+
+        SizeClass(int size) {
+            this.size = size;
+            this.maxFree = Math.max(4, POOLED_BYTES / size);
+        }
+    }
+
+    // noticed once the buffer it watches is no longer reachable, holds the bytes so the pool gets them back
+    static class LeakRecord extends PhantomReference<PooledBuffer> {
+        final byte[] array;
+        final int sizeClass;
+        final Throwable acquiredAt;
+
+        LeakRecord(PooledBuffer buffer) {
+            super(buffer, collected);
+            array = buffer.array();
+            sizeClass = buffer.sizeClass;
+            acquiredAt = new Throwable("buffer of " + array.length + " bytes acquired here");
+        }
+    }
+
+    /**
+     * Method for borrowing a buffer
+     * @param capacity least number of bytes needed
+     * @return a buffer of at least that capacity, to be released by the caller
+     */
+    public static PooledBuffer acquire(int capacity) {
+        int index = classOf(capacity);
+        if (index == CLASSES) {
+            oversized.incrementAndGet();
+            return new PooledBuffer(new byte[capacity], -1);
+        }
+        SizeClass sizeClass = classes[index];
+        sizeClass.acquired.incrementAndGet();
+        PooledBuffer buffer = sizeClass.free.poll();
+        if (buffer != null) {
+            sizeClass.freeCount.decrementAndGet();
+            buffer.released = false;
+        } else {
+            sizeClass.allocated.incrementAndGet();
+            buffer = new PooledBuffer(new byte[sizeClass.size], index);
+        }
+        sizeClass.inUse.incrementAndGet();
+        if (trackLeaks) {
+            reclaimLeaks();
+            buffer.leak = new LeakRecord(buffer);
+            tracked.add(buffer.leak);
+        }
+        return buffer;
+    }
+
+    /**
+     * Method for turning leak tracking on or off, buffers acquired before keep their setting
+     * @param on whether buffers acquired from now on are tracked
+     */
+    public static void setLeakTracking(boolean on) {
+        trackLeaks = on;
+    }
+
+    public static boolean isTrackingLeaks() {
+        return trackLeaks;
+    }
+
+    /**
+     * Method for giving a buffer back, it must not be used afterwards
+     * @param buffer the buffer
+     */
+    public static void release(PooledBuffer buffer) {
+        if (buffer.sizeClass < 0) {
+            return;
+        }
+        if (buffer.released) {
+            throw new IllegalStateException("buffer of " + buffer.capacity() + " bytes released twice");
+        }
+        buffer.released = true;
+        if (buffer.leak != null) {
+            tracked.remove(buffer.leak);
+            buffer.leak.clear();
+            buffer.leak = null;
+        }
+        SizeClass sizeClass = classes[buffer.sizeClass];
+        sizeClass.inUse.decrementAndGet();
+        recycle(sizeClass, buffer);
+    }
+
+    private static void recycle(SizeClass sizeClass, PooledBuffer buffer) {
+        // the count may briefly overshoot under contention, that only keeps a few buffers more
+        if (sizeClass.freeCount.get() < sizeClass.maxFree) {
+            sizeClass.freeCount.incrementAndGet();
+            sizeClass.free.add(buffer);
+        }
+    }
+
+    // index of the smallest class holding capacity bytes, CLASSES when none does
+    private static int classOf(int capacity) {
+        if (capacity <= SMALLEST) {
+            return 0;
+        }
+        int index = 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(SMALLEST);
+        return Math.min(index, CLASSES);
+    }
+
+    /**
+     * Method for reporting the buffers which were collected without being released, and taking their bytes back
+     * @return number of leaks found by this call
+     */
+    public static int reclaimLeaks() {
+        int found = 0;
+        LeakRecord record;
+        while ((record = (LeakRecord) collected.poll()) != null) {
+            if (!tracked.remove(record)) {
+                continue;
+            }
+            found++;
+            leaks.incrementAndGet();
+            System.out.println("Leak: a buffer was never released");
+            record.acquiredAt.printStackTrace(System.out);
+            SizeClass sizeClass = classes[record.sizeClass];
+            sizeClass.inUse.decrementAndGet();
+            PooledBuffer buffer = new PooledBuffer(record.array, record.sizeClass);
+            buffer.released = true;
+            recycle(sizeClass, buffer);
+        }
+        return found;
+    }
+
+    /**
+     * Method for describing the use of each size class, for the operator console
+     * @return one line per class which was ever used
+     */
+    public static String[] describeClasses() {
+        String[] lines = new String[CLASSES];
+        int count = 0;
+        for (SizeClass sizeClass : classes) {
+            long acquired = sizeClass.acquired.get();
+            if (acquired == 0) {
+                continue;
+            }
+            lines[count++] = String.format("%8d %8d %8d %12d %10d %7.1f%%", sizeClass.size, sizeClass.inUse.get(),
+                    sizeClass.freeCount.get(), acquired, sizeClass.allocated.get(),
+                    100.0 * (acquired - sizeClass.allocated.get()) / acquired);
+        }
+        return Arrays.copyOf(lines, count);
+    }
+
+    public static long getBytesInUse() {
+        long bytes = 0;
+        for (SizeClass sizeClass : classes) {
+            bytes += (long) sizeClass.inUse.get() * sizeClass.size;
+        }
+        return bytes;
+    }
+
+    public static long getBytesFree() {
+        long bytes = 0;
+        for (SizeClass sizeClass : classes) {
+            bytes += (long) sizeClass.freeCount.get() * sizeClass.size;
+        }
+        return bytes;
+    }
+
+    public static long getAcquired() {
+        long count = 0;
+        for (SizeClass sizeClass : classes) {
+            count += sizeClass.acquired.get();
+        }
+        return count;
+    }
+
+    public static long getAllocated() {
+        long count = 0;
+        for (SizeClass sizeClass : classes) {
+            count += sizeClass.allocated.get();
+        }
+        return count;
+    }
+
+    public static long getOversized() {
+        return oversized.get();
+    }
+
+    public static long getLeaks() {
+        return leaks.get();
+    }
+}
@@ -0,0 +1,789 @@
+package chatserver;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lightweight TCP bus between the server processes of a cluster. Every node keeps one outgoing link to each peer
+ * for sending and reads the peers' links on its bus port. Nodes announce the members of their rooms and the rooms
+ * they create or delete, and relay room events only to the nodes which have members in that room.
+ * Relayed events are delivered to local users only and never relayed again.
+ * Every room except the MainHall is homed on one node picked by a consistent hash ring of the nodes currently
+ * linked, users joining a room are redirected to its home so the room's fan-out stays on one node.
+ */
+public class ClusterBus {
+
+    private static final long RECONNECT_MILLIS = 1000;  // pause before a lost peer link is retried
+    private static final int SYNC_CHUNK = 500;          // most identities in one membership sync frame
+    private static final long REDIRECT_HOLD_SECONDS = 30; // how long a redirected user's identity is kept here
+
+    private final String nodeId;    // identity of this node within the cluster
+    private final String busAddress; // address the bus listens on, only the peers should be able to reach it
+    private final int busPort;      // port the peers connect to
+    private final int clientPort;   // port the chat clients of this node connect to
+    private final List<PeerLink> peers = new ArrayList<>();
+
+    // members of each room on the other nodes: room identity -> node identity -> user identities
+    private final Map<String, Map<String, Set<String>>> remoteMembers = new ConcurrentHashMap<>();
+    // node of each user on the other nodes, kept with remoteMembers so an identity is found without a scan
+    private final Map<String, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+
+    // users of this node watching everyone's presence, and the peers which have such users
+    private volatile int localPresenceWatchers = 0; // changed holding this bus
+    private final Set<String> presenceNodes = ConcurrentHashMap.newKeySet();
+
+    // this node and the peers whose links are up, deciding the home node of each room
+    private final HashRing ring = new HashRing();
+    // address the clients of each linked peer connect to
+    private final Map<String, InetSocketAddress> clientAddresses = new ConcurrentHashMap<>();
+    // current incoming link of each peer, an older link closing late must not remove a newer one
+    private final Map<String, Socket> peerSockets = new ConcurrentHashMap<>();
+    // releases the identities of redirected users once they had the time to arrive on the room's home node
+    private final ScheduledExecutorService redirectHolds = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cluster-redirect-holds");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructor method for ClusterBus
+     * @param nodeId identity of this node
+     * @param busAddress address the bus listens on
+     * @param busPort port the peers connect to
+     * @param clientPort port the chat clients of this node connect to
+     * @param peerList comma separated peers in the form nodeid@host:busport
+     */
+    public ClusterBus(String nodeId, String busAddress, int busPort, int clientPort, String peerList) {
+        this.nodeId = nodeId;
+        this.busAddress = busAddress;
+        this.busPort = busPort;
+        this.clientPort = clientPort;
+        for (String peer : peerList.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at < 0 || colon < at) {
+                throw new IllegalArgumentException("Peer " + peer + " is not in the form nodeid@host:busport");
+            }
+            peers.add(new PeerLink(peer.substring(0, at), peer.substring(at + 1, colon),
+                    Integer.parseInt(peer.substring(colon + 1))));
+        }
+        ring.add(nodeId);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Method for starting to accept the peers' links and to connect to every peer
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        ServerSocket busSocket = new ServerSocket(busPort, 50, InetAddress.getByName(busAddress));
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = busSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    new Thread(() -> readPeer(socket), "cluster-reader").start();
+                } catch (IOException e) {
+                    System.out.println("Error in accepting cluster links");
+                    return;
+                }
+            }
+        }, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink peer : peers) {
+            Thread link = new Thread(peer, "cluster-link-" + peer.peerId);
+            link.setDaemon(true);
+            link.start();
+        }
+        System.out.println("Cluster node " + nodeId + " listening on bus " + busAddress + ":" + busPort);
+    }
+
+    /**
+     * Method for keeping the identity of a user redirected to another node for a while, so no user of this node
+     * takes it (and the rooms the user owns) before the user arrived on the home node
+     * @param conn connection of the redirected user, which has quit
+     */
+    public void holdRedirected(Connection conn) {
+        redirectHolds.schedule(conn::releaseRedirected, REDIRECT_HOLD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // ---- announcements of local changes ----
+
+    /**
+     * Method for announcing a local user who joined a room
+     * @param roomId room identity
+     * @param userId user identity
+     */
+    public void memberJoined(String roomId, String userId) {
+        JSONObject frame = frame("join", roomId);
+        frame.put("identity", userId);
+        sendToAll(frame.toString());
+    }
+
+    /**
+     * Method for announcing a local user who left a room
+     * @param roomId room identity
+     * @param userId user identity
+     */
+    public void memberLeft(String roomId, String userId) {
+        JSONObject frame = frame("leave", roomId);
+        frame.put("identity", userId);
+        sendToAll(frame.toString());
+    }
+
+    /**
+     * Method for announcing the local members of a room moved into another room together
+     * @param roomId room the members left
+     * @param targetId room the members joined
+     * @param userIds user identities
+     */
+    public void membersMoved(String roomId, String targetId, List<String> userIds) {
+        for (int i = 0; i < userIds.size(); i += SYNC_CHUNK) {
+            JSONObject frame = frame("move", roomId);
+            JSONArray identities = new JSONArray();
+            identities.addAll(userIds.subList(i, Math.min(userIds.size(), i + SYNC_CHUNK)));
+            frame.put("target", targetId);
+            frame.put("identities", identities);
+            sendToAll(frame.toString());
+        }
+    }
+
+    /**
+     * Method for announcing a local user who changed identity
+     * @param roomId room the user is in
+     * @param formerId former user identity
+     * @param newId new user identity
+     */
+    public void memberRenamed(String roomId, String formerId, String newId) {
+        JSONObject frame = frame("rename", roomId);
+        frame.put("former", formerId);
+        frame.put("identity", newId);
+        sendToAll(frame.toString());
+    }
+
+    /**
+     * Method for announcing a room created on this node
+     * @param room the new room
+     */
+    public void roomCreated(Room room) {
+        sendToAll(roomFrame(room));
+    }
+
+    /**
+     * Method for announcing a room deleted on this node
+     * @param roomId room identity
+     */
+    public void roomDeleted(String roomId) {
+        sendToAll(frame("deleteroom", roomId).toString());
+    }
+
+    /**
+     * Method for announcing a changed room owner
+     * @param roomId room identity
+     * @param owner new owner identity
+     */
+    public void ownerChanged(String roomId, String owner) {
+        JSONObject frame = frame("owner", roomId);
+        frame.put("owner", owner);
+        sendToAll(frame.toString());
+    }
+
+    /**
+     * Method for relaying a message broadcast in a room, only to the nodes which have members in that room
+     * @param roomId room identity
+     * @param msg JSON encoded message
+     * @param chat whether it is a chat message, which the receiving nodes also record in their message log
+     */
+    public void relayToRoom(String roomId, String msg, boolean chat) {
+        Map<String, Set<String>> nodes = remoteMembers.get(roomId);
+        if (nodes == null) {
+            return;
+        }
+        String relay = null;
+        for (PeerLink peer : peers) {
+            Set<String> members = nodes.get(peer.peerId);
+            if (members != null && !members.isEmpty()) {
+                if (relay == null) {
+                    JSONObject frame = frame("relay", roomId);
+                    frame.put("chat", chat);
+                    frame.put("payload", msg);
+                    relay = frame.toString();
+                }
+                peer.send(relay);
+            }
+        }
+    }
+
+    /**
+     * Method for relaying a message to one user on another node, only to the node that user is on
+     * @param userId receiving user identity
+     * @param msg JSON encoded message
+     * @return false if no other node has this user
+     */
+    public boolean relayToUser(String userId, String msg) {
+        RemoteUser user = remoteUsers.get(userId);
+        if (user == null) {
+            return false;
+        }
+        for (PeerLink peer : peers) {
+            if (peer.peerId.equals(user.node)) {
+                JSONObject frame = frame("direct", "");
+                frame.put("identity", userId);
+                frame.put("payload", msg);
+                peer.send(frame.toString());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method for relaying a presence change (such as a new identity) to the nodes which have users watching it
+     * @param roomId room the change was already broadcast in, its members are not sent it again
+     * @param msg JSON encoded message
+     */
+    public void relayPresence(String roomId, String msg) {
+        String relay = null;
+        for (PeerLink peer : peers) {
+            if (presenceNodes.contains(peer.peerId)) {
+                if (relay == null) {
+                    JSONObject frame = frame("presence", roomId);
+                    frame.put("payload", msg);
+                    relay = frame.toString();
+                }
+                peer.send(relay);
+            }
+        }
+    }
+
+    /**
+     * Method for counting a local user who started or stopped watching presence, the peers are told when this node
+     * gets its first watcher or loses its last
+     * @param watch true when a user started watching
+     */
+    public synchronized void presenceWatchersChanged(boolean watch) {
+        localPresenceWatchers += watch ? 1 : -1;
+        if (localPresenceWatchers == (watch ? 1 : 0)) {
+            sendToAll(watchersFrame());
+        }
+    }
+
+    /**
+     * Method to judge whether any other node has users watching presence
+     * @return true if presence changes need to be relayed
+     */
+    public boolean hasPresenceWatchers() {
+        return !presenceNodes.isEmpty();
+    }
+
+    // ---- queries about the other nodes ----
+
+    /**
+     * Method for finding the node a room is homed on
+     * @param roomId room identity
+     * @return node identity
+     */
+    public String homeOf(String roomId) {
+        return ring.nodeFor(roomId);
+    }
+
+    /**
+     * Method to judge whether a room is homed on this node, the MainHall is on every node
+     * @param roomId room identity
+     * @return true if the room's members should connect to this node
+     */
+    public boolean isHomedHere(String roomId) {
+        return roomId.equals("MainHall") || nodeId.equals(ring.nodeFor(roomId));
+    }
+
+    /**
+     * Method for getting the address the clients of a node connect to
+     * @param node node identity
+     * @return the address, or null if the node is not linked
+     */
+    public InetSocketAddress clientAddress(String node) {
+        return clientAddresses.get(node);
+    }
+
+    /**
+     * Method for getting the members of a room on the other nodes
+     * @param roomId room identity
+     * @return user identities
+     */
+    public List<String> getRemoteMembers(String roomId) {
+        List<String> members = new ArrayList<>();
+        Map<String, Set<String>> nodes = remoteMembers.get(roomId);
+        if (nodes != null) {
+            for (Set<String> nodeMembers : nodes.values()) {
+                members.addAll(nodeMembers);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Method for counting the members of a room on the other nodes
+     * @param roomId room identity
+     * @return number of remote members
+     */
+    public int countRemoteMembers(String roomId) {
+        int count = 0;
+        Map<String, Set<String>> nodes = remoteMembers.get(roomId);
+        if (nodes != null) {
+            for (Set<String> nodeMembers : nodes.values()) {
+                count += nodeMembers.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Method to judge whether an identity is used by a user on another node
+     * @param userId user identity
+     * @return true if some other node has this user in one of its rooms
+     */
+    public boolean isRemoteIdentity(String userId) {
+        return remoteUsers.containsKey(userId);
+    }
+
+    // ---- frames ----
+
+    private JSONObject frame(String type, String roomId) {
+        JSONObject frame = new JSONObject();
+        frame.put("type", type);
+        frame.put("roomid", roomId);
+        return frame;
+    }
+
+    private String roomFrame(Room room) {
+        JSONObject frame = frame("createroom", room.getRoomID());
+        frame.put("owner", room.getOwner() == null ? "" : room.getOwner());
+        frame.put("created", room.getCreatedAt());
+        return frame.toString();
+    }
+
+    private String watchersFrame() {
+        JSONObject frame = frame("watchers", "");
+        frame.put("watch", localPresenceWatchers > 0);
+        return frame.toString();
+    }
+
+    private void sendToAll(String frame) {
+        for (PeerLink peer : peers) {
+            peer.send(frame);
+        }
+    }
+
+    /**
+     * Method for building the frames which bring a peer up to date after its link (re)connects:
+     * every room created on the cluster and every member of the rooms on this node
+     * @return the frames in the order they must be sent
+     */
+    private List<String> syncFrames() {
+        List<String> frames = new ArrayList<>();
+        Room[] rooms = Server.rooms.toArray(new Room[0]);
+        for (Room room : rooms) {
+            if (!room.getRoomID().equals("MainHall")) {
+                frames.add(roomFrame(room));
+            }
+        }
+        frames.add(watchersFrame());
+        for (Room room : rooms) {
+            String[] members = room.getRoomMembersIDs();
+            for (int i = 0; i < members.length; i += SYNC_CHUNK) {
+                JSONObject frame = frame("members", room.getRoomID());
+                JSONArray identities = new JSONArray();
+                for (int j = i; j < Math.min(members.length, i + SYNC_CHUNK); j++) {
+                    identities.add(members[j]);
+                }
+                frame.put("identities", identities);
+                frame.put("first", i == 0);
+                frames.add(frame.toString());
+            }
+        }
+        return frames;
+    }
+
+    // ---- receiving ----
+
+    private Set<String> membersOf(String roomId, String node) {
+        return remoteMembers.computeIfAbsent(roomId, r -> new ConcurrentHashMap<>())
+                .computeIfAbsent(node, n -> ConcurrentHashMap.newKeySet());
+    }
+
+    // a user on another node, counting the rooms of that node it is a member of
+    private static class RemoteUser {
+        final String node;
+        int rooms;
+
+        RemoteUser(String node) {
+            this.node = node;
+        }
+    }
+
+    // apply a change of a room's members on another node, under the room's membership lock so its watchers get it
+    private void changeRemoteMember(String roomId, String node, String formerId, String newId) {
+        Room room = Server.getRoom(roomId);
+        synchronized (room != null ? room.getMembershipLock() : remoteMembers) {
+            boolean removed = formerId != null && removeRemoteMember(roomId, node, formerId);
+            boolean added = newId != null && addRemoteMember(roomId, node, newId);
+            if (room != null && (removed || added)) {
+                room.membershipChanged(removed ? formerId : null, added ? newId : null);
+            }
+        }
+    }
+
+    private boolean addRemoteMember(String roomId, String node, String userId) {
+        if (membersOf(roomId, node).add(userId)) {
+            remoteUsers.compute(userId, (id, user) -> {
+                if (user == null || !user.node.equals(node)) {
+                    user = new RemoteUser(node);
+                }
+                user.rooms++;
+                return user;
+            });
+            return true;
+        }
+        return false;
+    }
+
+    private boolean removeRemoteMember(String roomId, String node, String userId) {
+        if (membersOf(roomId, node).remove(userId)) {
+            forgetRemoteUser(node, userId);
+            return true;
+        }
+        return false;
+    }
+
+    // one room of a node no longer has the user, which is forgotten once in none
+    private void forgetRemoteUser(String node, String userId) {
+        remoteUsers.computeIfPresent(userId, (id, user) ->
+                !user.node.equals(node) || --user.rooms > 0 ? user : null);
+    }
+
+    // read the frames sent by one peer until its link breaks
+    private void readPeer(Socket socket) {
+        String node = null;
+        FrameReader in = null;
+        try {
+            in = new FrameReader(socket.getInputStream());
+            in.next();
+            JSONObject hello = in.parse();
+            PeerLink peer = hello != null && hello.get("node") != null ? peerOf(hello.get("node").toString()) : null;
+            if (peer == null || !peer.isAt(socket.getInetAddress()) || hello.get("clientport") == null) {
+                // only the configured peers may link, from their configured host
+                System.out.println("Cluster link from " + socket.getInetAddress().getHostAddress()
+                        + " refused, not a configured peer");
+                return;
+            }
+            node = peer.peerId;
+            // a new link replaces what was known through the previous one
+            forgetNode(node);
+            peerSockets.put(node, socket);
+            clientAddresses.put(node, new InetSocketAddress(socket.getInetAddress().getHostAddress(),
+                    Integer.parseInt(hello.get("clientport").toString())));
+            System.out.println("Cluster node " + node + " connected");
+            if (ring.add(node)) {
+                rehome();
+            }
+            while (true) {
+                in.next();
+                JSONObject frame = in.parse();
+                if (frame == null) {
+                    System.out.println("Cluster node " + node + " sent a frame which is not a JSON object");
+                    continue;
+                }
+                handle(node, frame);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (node != null && peerSockets.remove(node, socket)) {
+                System.out.println("Cluster node " + node + " disconnected");
+                forgetNode(node);
+                clientAddresses.remove(node);
+                if (ring.remove(node)) {
+                    rehome();
+                }
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    // the configured peer with a node identity, null if there is none
+    private PeerLink peerOf(String node) {
+        for (PeerLink peer : peers) {
+            if (peer.peerId.equals(node)) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method for redirecting the local members of every room which is no longer homed on this node after the ring
+     * changed; only the rooms between the points of the node which joined or left move
+     */
+    private void rehome() {
+        int moved = 0;
+        for (Room room : Server.rooms.toArray(new Room[0])) {
+            if (isHomedHere(room.getRoomID())) {
+                continue;
+            }
+            for (Connection c : room.getMemberThreads()) {
+                try {
+                    if (c.redirect(room.getRoomID())) {
+                        moved++;
+                    }
+                } catch (IOException e) {
+                    // the client is gone anyway
+                }
+            }
+        }
+        if (moved > 0) {
+            System.out.println("Redirected " + moved + " users to the new home of their room");
+        }
+    }
+
+    /**
+     * Method for dropping every member known on a node, when the node leaves the cluster
+     * @param node node identity
+     */
+    private void forgetNode(String node) {
+        for (Map.Entry<String, Map<String, Set<String>>> room : remoteMembers.entrySet()) {
+            Set<String> members = room.getValue().get(node);
+            if (members != null) {
+                // one by one, so the room's watchers see them leave
+                for (String identity : members.toArray(new String[0])) {
+                    changeRemoteMember(room.getKey(), node, identity, null);
+                }
+                room.getValue().remove(node);
+            }
+        }
+        remoteUsers.values().removeIf(user -> user.node.equals(node));
+        presenceNodes.remove(node);
+    }
+
+    private void handle(String node, JSONObject frame) throws IOException {
+        String type = frame.get("type").toString();
+        String roomId = frame.get("roomid").toString();
+        Room room;
+        switch (type) {
+            case "join":
+                changeRemoteMember(roomId, node, null, frame.get("identity").toString());
+                break;
+
+            case "leave":
+                changeRemoteMember(roomId, node, frame.get("identity").toString(), null);
+                break;
+
+            case "rename":
+                changeRemoteMember(roomId, node, frame.get("former").toString(), frame.get("identity").toString());
+                break;
+
+            case "move":
+                String target = frame.get("target").toString();
+                for (Object identity : (JSONArray) frame.get("identities")) {
+                    changeRemoteMember(roomId, node, identity.toString(), null);
+                    changeRemoteMember(target, node, null, identity.toString());
+                }
+                break;
+
+            case "members":
+                if ((Boolean) frame.get("first")) {
+                    Set<String> synced = membersOf(roomId, node);
+                    for (String identity : synced.toArray(new String[0])) {
+                        changeRemoteMember(roomId, node, identity, null);
+                    }
+                }
+                for (Object identity : (JSONArray) frame.get("identities")) {
+                    changeRemoteMember(roomId, node, null, identity.toString());
+                }
+                break;
+
+            case "createroom":
+                if (Server.getRoom(roomId) == null) {
+                    long created = Long.parseLong(frame.get("created").toString());
+                    Server.createRoom(roomId, frame.get("owner").toString(), created);
+                }
+                break;
+
+            case "deleteroom":
+                if (Server.getRoom(roomId) != null) {
+                    Connection.forceToMainHall(roomId);
+                    Server.deleteRoom(roomId);
+                }
+                Map<String, Set<String>> nodes = remoteMembers.remove(roomId);
+                if (nodes != null) {
+                    nodes.forEach((member, identities) -> identities.forEach(id -> forgetRemoteUser(member, id)));
+                }
+                break;
+
+            case "owner":
+                room = Server.getRoom(roomId);
+                if (room != null) {
+                    room.setOwner(frame.get("owner").toString());
+                }
+                break;
+
+            case "relay":
+                room = Server.getRoom(roomId);
+                if (room != null) {
+                    String payload = frame.get("payload").toString();
+                    room.deliverLocally(payload);
+                    if ((Boolean) frame.get("chat")) {
+                        room.recordMessage(payload);
+                    }
+                }
+                break;
+
+            case "watchers":
+                if ((Boolean) frame.get("watch")) {
+                    presenceNodes.add(node);
+                } else {
+                    presenceNodes.remove(node);
+                }
+                break;
+
+            case "presence":
+                Server.deliverToPresenceWatchers(frame.get("payload").toString(), roomId);
+                break;
+
+            case "direct":
+                Connection receiver = Server.users.find(frame.get("identity").toString());
+                if (receiver != null && !receiver.isRedirected()) {
+                    receiver.send(frame.get("payload").toString());
+                }
+                break;
+
+            default:
+                System.out.println("Unknown cluster frame " + type + " from " + node);
+                break;
+        }
+    }
+
+    /**
+     * The outgoing link to one peer: a queue drained by a dedicated thread, which reconnects when the link breaks.
+     * Nothing is queued while the link is down, the peer gets a full sync when it comes back.
+     */
+    private class PeerLink implements Runnable {
+        final String peerId;
+        final String host;
+        final int port;
+        final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>();
+        boolean connected = false; // guarded by this link
+
+        PeerLink(String peerId, String host, int port) {
+            this.peerId = peerId;
+            this.host = host;
+            this.port = port;
+        }
+
+        synchronized void send(String frame) {
+            if (connected) {
+                // a frame the link cannot carry is dropped here, writing it would break the link
+                if (FrameWriter.encodedLength(frame) > FrameWriter.MAX_FRAME_LENGTH) {
+                    System.out.println("Cluster frame of " + FrameWriter.encodedLength(frame)
+                            + " bytes to node " + peerId + " dropped, too long");
+                    return;
+                }
+                queue.add(frame);
+            }
+        }
+
+        /**
+         * Method to judge whether a link comes from this peer's host
+         * @param address address the link comes from
+         * @return true if the peer's host resolves to the address
+         */
+        boolean isAt(InetAddress address) {
+            try {
+                for (InetAddress peerAddress : InetAddress.getAllByName(host)) {
+                    if (peerAddress.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                // not resolvable, so not that peer
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                FrameWriter out = null;
+                try (Socket socket = new Socket(host, port)) {
+                    socket.setTcpNoDelay(true);
+                    out = new FrameWriter(socket.getOutputStream());
+                    JSONObject hello = new JSONObject();
+                    hello.put("node", nodeId);
+                    hello.put("clientport", clientPort);
+                    out.writeText(hello.toString());
+                    // queue the sync and start accepting new frames at once, so no change falls in between
+                    synchronized (this) {
+                        queue.clear();
+                        queue.addAll(syncFrames());
+                        connected = true;
+                    }
+                    while (true) {
+                        // write out a burst of frames together, flushing only before waiting for more
+                        String frame = queue.poll();
+                        if (frame == null) {
+                            out.flush();
+                            frame = queue.take();
+                        }
+                        out.writeText(frame);
+                    }
+                } catch (IOException e) {
+                    // peer not reachable, retried below
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    if (out != null) {
+                        out.close();
+                    }
+                }
+                synchronized (this) {
+                    connected = false;
+                    queue.clear();
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -1,24 +1,75 @@
 package chatserver;
 
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Connection extends Thread {
 
+    private static final int DEFAULT_HISTORY_COUNT = 20; // messages replayed by a history request without a count
+    private static final long REPLY_FLUSH_MILLIS = 2000;  // longest wait for the last answers before closing
+    private static final int MAX_REQUEST_BATCH = 256;     // most requests read before handing them over
+    // the string fields each request type must carry, checked before the request is run
+    private static final Map<String, String[]> REQUIRED_FIELDS = Map.of(
+            "privatemessage", new String[]{"identity", "content"},
+            "join", new String[]{"roomid"},
+            "createroom", new String[]{"roomid"},
+            "delete", new String[]{"roomid"},
+            "who", new String[]{"roomid"},
+            "watch", new String[]{"roomid"},
+            "unwatch", new String[]{"roomid"},
+            "identitychange", new String[]{"identity"},
+            "history", new String[]{"roomid"},
+            "resume", new String[]{"token"});
+
     protected String userId; // user identity
+    protected int userHandle = -1; // handle of the user identity, kept by the rooms the user is a member of
     protected Socket socket; // socket for communication
     //using a thread safe data structure to build a buffer space or message queue to receive messages from clint side
-    protected ConcurrentLinkedQueue<String> bufferSpace = new ConcurrentLinkedQueue<String>();
+    protected ConcurrentLinkedQueue<JSONObject> bufferSpace = new ConcurrentLinkedQueue<JSONObject>();
     protected Room locatedRoom; // current located room
+    private final Set<Room> watchedRooms = ConcurrentHashMap.newKeySet(); // rooms whose membership changes are sent
+    private final ServerSend writer; // outbound queue, written by its own thread
+    protected String sessionToken; // token a reconnecting client presents to resume this session
+    private Object requestId; // identity the client gave the request being processed, null when none was given
+
+    // guards the session state below, which decides where the messages sent to this user go
+    private final Object sessionLock = new Object();
+    private boolean detached = false;   // the client went away and the session waits for it to come back
+    private boolean ended = false;      // the user quit or the session expired
+    private Connection successor;       // connection of the resumed client, which receives everything from now on
+    private ScheduledFuture<?> expiry;  // quits the session when the client does not come back in time
+    // messages broadcast while detached, replayed when the client resumes (the oldest are dropped when full)
+    private final ArrayDeque<Frame> missedMessages = new ArrayDeque<>();
+    private int droppedMessages = 0;
+    private volatile boolean quitting = false; // the user left through quit(), nothing to resume
+    private volatile boolean active = true;    // whether the request thread should keep serving this connection
+    private boolean handling = false;          // a request is being run, guarded by bufferSpace
+
+    // heartbeat state, checked by the server's timer wheel
+    private volatile long lastActivity = System.currentTimeMillis(); // when the client last sent anything
+    private volatile boolean pingOutstanding = false; // a ping was sent and nothing came back yet
+    private volatile boolean reaped = false;          // the client stopped responding or was kicked, and was disconnected
+    private volatile TimerWheel.Timeout idleCheck;
+
+    private volatile boolean redirected = false; // the client was sent to the node its room is homed on
+
+    private volatile TokenBucket messageBucket = Server.newMessageBucket(); // limit of this user's messages, may be null
+    private volatile MessageIdWindow messageIds; // identities of the user's recent messages, null until one is given
+    private final AtomicLong throttled = new AtomicLong(); // requests rejected by a rate limit since the last report
 
     /**
      * Constructor method for Connection
@@ -29,6 +80,7 @@ public class Connection extends Thread {
     public Connection(Socket socket, String identity) {
         this.userId = identity;
         this.socket = socket;
+        this.writer = new ServerSend(socket);
     }
 
     /**
@@ -41,13 +93,344 @@ public class Connection extends Thread {
     }
 
     /**
-     * Method for getting the standard output stream
+     * Accessor method for getting the handle of the user identity, which stays the same when the user is renamed
+     *
+     * @return handle in the server's user registry
+     */
+    public int getUserHandle() {
+        return userHandle;
+    }
+
+    /**
+     * Method for answering the request being processed, through the same queue as the broadcasts so the user gets
+     * everything in order; the answer carries the identity of the request when the client gave one
+     *
+     * @param msg JSON encoded response
+     * @throws IOException
+     */
+    private void reply(String msg) throws IOException {
+        reply(msg, requestId);
+    }
+
+    /**
+     * Method for answering a request, used as well for the answers sent after the request was processed
+     *
+     * @param msg       JSON encoded response
+     * @param requestId identity of the request given by the client, null when none was given
+     * @throws IOException
+     */
+    protected void reply(String msg, Object requestId) throws IOException {
+        send(requestId == null ? msg : ServerMessage.withRequestId(msg, requestId));
+    }
+
+    /**
+     * Method for waiting (briefly) until the answers queued so far were written, before the socket is closed
+     */
+    private void flushReplies() {
+        try {
+            writer.awaitFlushed(System.currentTimeMillis() + REPLY_FLUSH_MILLIS);
+        } catch (InterruptedException e) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * Method for sending a message to this user without blocking the caller, used for broadcasts
+     * (while the client is away the message is kept for resumption instead)
+     *
+     * @param msg JSON encoded message
+     * @throws IOException
+     */
+    public void send(String msg) throws IOException {
+        send(new Frame(msg));
+    }
+
+    /**
+     * Method for sending a frame to this user without blocking the caller, a broadcast sends the same frame to all
+     * its receivers so it is compressed at most once
+     *
+     * @param msg the frame
+     * @throws IOException
+     */
+    public void send(Frame msg) throws IOException {
+        Connection target = null;
+        synchronized (sessionLock) {
+            if (successor != null) {
+                target = successor;
+            } else if (detached) {
+                if (!ended) {
+                    if (missedMessages.size() >= Server.sessions.getBufferSize()) {
+                        missedMessages.pollFirst();
+                        droppedMessages++;
+                    }
+                    missedMessages.addLast(msg);
+                }
+                return;
+            }
+        }
+        if (target != null) {
+            target.send(msg);
+            return;
+        }
+        writer.send(msg);
+    }
+
+    /**
+     * Method for getting the number of messages waiting to be sent to this user
+     *
+     * @return outbound queue depth
+     */
+    public int getQueueDepth() {
+        return writer.getQueueDepth();
+    }
+
+    /**
+     * Method for waiting until every message sent to this user so far has been written to the socket
+     *
+     * @param deadlineMillis time at which to give up waiting
+     * @return true if everything was written in time
+     * @throws InterruptedException
+     */
+    protected boolean awaitFlushed(long deadlineMillis) throws InterruptedException {
+        return writer.awaitFlushed(deadlineMillis);
+    }
+
+    /**
+     * Method for closing the connection when the server shuts down, the user is not treated as leaving
+     */
+    protected void close() {
+        deactivate();
+        writer.stop();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * Method for stopping the request thread of this connection
+     */
+    private void deactivate() {
+        active = false;
+        synchronized (bufferSpace) {
+            bufferSpace.notifyAll();
+        }
+    }
+
+    /**
+     * Method for waiting until the client has sent a request, or the connection is no longer served
+     * (requests are left waiting once the server drains)
+     */
+    private void waitForRequests() {
+        synchronized (bufferSpace) {
+            while ((bufferSpace.isEmpty() || Server.draining) && active) {
+                try {
+                    bufferSpace.wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Method for taking the next request to run, none once the server drains
+     * @return the request, or null when there is none to run
+     */
+    private JSONObject nextRequest() {
+        synchronized (bufferSpace) {
+            JSONObject request = Server.draining ? null : bufferSpace.poll();
+            handling = request != null;
+            if (!handling) {
+                bufferSpace.notifyAll();
+            }
+            return request;
+        }
+    }
+
+    /**
+     * Method for marking the request taken last as finished
+     */
+    private void requestDone() {
+        synchronized (bufferSpace) {
+            handling = false;
+            bufferSpace.notifyAll();
+        }
+    }
+
+    /**
+     * Method for waiting until the request being run, if any, has finished; called once the server drains, so no
+     * further request is started
+     *
+     * @param deadlineMillis time at which to give up waiting
+     * @return true if no request is running any more
+     * @throws InterruptedException
+     */
+    protected boolean awaitRequestsStopped(long deadlineMillis) throws InterruptedException {
+        synchronized (bufferSpace) {
+            long remaining;
+            while (handling && (remaining = deadlineMillis - System.currentTimeMillis()) > 0) {
+                bufferSpace.wait(remaining);
+            }
+            return !handling;
+        }
+    }
+
+    /**
+     * Method for checking the connection's activity when its idle timer fires: an idle client is pinged, and a
+     * client which does not answer the ping in time is reaped (re-arming the timer is O(1) on the timer wheel)
+     */
+    private void checkIdle() {
+        if (!active) {
+            return;
+        }
+        long idle = System.currentTimeMillis() - lastActivity;
+        if (idle < Server.idleTimeoutMillis) {
+            idleCheck = Server.timerWheel.schedule(this::checkIdle, Server.idleTimeoutMillis - idle);
+        } else if (!pingOutstanding) {
+            pingOutstanding = true;
+            try {
+                send(new ServerMessage().ping());
+            } catch (IOException e) {
+                // the socket is broken, reaped when the pong does not come
+            }
+            idleCheck = Server.timerWheel.schedule(this::checkIdle, Server.pongTimeoutMillis);
+        } else {
+            // quitting does broadcasts and room cleanup, which do not belong on the timer thread
+            new Thread(this::reap).start();
+        }
+    }
+
+    /**
+     * Method for disconnecting a client which stopped responding, through the normal quit path
+     */
+    private void reap() {
+        disconnect("stopped responding");
+    }
+
+    /**
+     * Method for disconnecting a client from the server side through the normal quit path, nothing more is written
+     * to it (a lost session waiting for its client is left to expire)
      *
-     * @return data output stream
+     * @param reason why the client is disconnected, printed in the server output
+     * @return false if the user was already leaving or away and nothing was done
+     */
+    protected boolean disconnect(String reason) {
+        synchronized (sessionLock) {
+            if (quitting || detached || successor != null) {
+                return false;
+            }
+        }
+        System.out.println(userId + " " + reason + ", disconnecting");
+        reaped = true;
+        deactivate();
+        try {
+            quit();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        return true;
+    }
+
+    /**
+     * Method for reading and resetting the number of this user's requests rejected by a rate limit
+     *
+     * @return rejections since the last call
+     */
+    protected long takeThrottled() {
+        return throttled.getAndSet(0);
+    }
+
+    /**
+     * Method for replacing the rate limit of this user's messages after the limits were changed
+     */
+    protected void resetMessageBucket() {
+        messageBucket = Server.newMessageBucket();
+    }
+
+    /**
+     * Method for checking a request against the rate limits: chat messages against the user's and the room's
+     * limits, expensive requests against the server's; a rejected request is answered with a throttle message
+     *
+     * @param type request type
+     * @return true if the request was rejected and must not be processed
+     * @throws IOException
+     */
+    private boolean throttled(String type) throws IOException {
+        long waitNanos = 0;
+        String scope = "";
+        switch (type) {
+            case "privatemessage":
+            case "message":
+                TokenBucket userBucket = messageBucket;
+                if (userBucket != null) {
+                    waitNanos = userBucket.tryAcquire();
+                    scope = "user";
+                }
+                // a private message only costs its sender
+                TokenBucket roomBucket = locatedRoom != null && type.equals("message")
+                        ? locatedRoom.getMessageBucket() : null;
+                if (waitNanos == 0 && roomBucket != null) {
+                    waitNanos = roomBucket.tryAcquire();
+                    scope = "room";
+                    // a message the room refuses is not delivered, so it does not count against the user either
+                    if (waitNanos > 0 && userBucket != null) {
+                        userBucket.refund();
+                    }
+                }
+                break;
+            case "list":
+            case "who":
+            case "watch":
+            case "createroom":
+                TokenBucket commandBucket = Server.commandBucket;
+                if (commandBucket != null) {
+                    waitNanos = commandBucket.tryAcquire();
+                    scope = "server";
+                }
+                break;
+            default:
+                break;
+        }
+        if (waitNanos == 0) {
+            return false;
+        }
+        throttled.incrementAndGet();
+        long retryMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1;
+        reply(new ServerMessage().throttle(type, scope, retryMillis));
+        return true;
+    }
+
+    /**
+     * Method for sending the client to the node a room is homed on: the client is told where to reconnect, then
+     * leaves this node through the normal quit path, keeping the rooms it owns
+     *
+     * @param roomId room identity
+     * @return false if the home node's address is unknown (or the user already left) and nothing was done
      * @throws IOException
      */
-    public DataOutputStream getOutput() throws IOException {
-        return new DataOutputStream(socket.getOutputStream());
+    protected boolean redirect(String roomId) throws IOException {
+        InetSocketAddress home = Server.cluster.clientAddress(Server.cluster.homeOf(roomId));
+        synchronized (sessionLock) {
+            // a lost session stays until its client resumes it here
+            if (home == null || quitting || detached || successor != null) {
+                return false;
+            }
+        }
+        String redirectMsg = new ServerMessage().redirect(roomId, home.getHostString(), home.getPort());
+        reply(redirectMsg);
+        redirected = true;
+        deactivate();
+        quit();
+        flushReplies();
+        socket.close();
+        return true;
     }
 
     /**
@@ -95,18 +478,14 @@ public class Connection extends Thread {
     }
 
     /**
-     * Method to judge whether the new user identity has been used
+     * Method to judge whether the new user identity has been used, on this node or another node of the cluster
      *
      * @param newUserId new user identity
      * @return true means this user identity has been used, false means not
      */
     private boolean duplicateUserName(String newUserId) {
-        for (int i = 0; i < Server.userIdentities.size(); i++) {
-            if (Server.userIdentities.get(i).contains(newUserId)) {
-                return true;
-            }
-        }
-        return false;
+        return Server.users.contains(newUserId)
+                || (Server.cluster != null && Server.cluster.isRemoteIdentity(newUserId));
     }
 
     /**
@@ -119,12 +498,95 @@ public class Connection extends Thread {
         for (Room room : Server.rooms) {
             JSONObject roomWithCount = new JSONObject();
             roomWithCount.put("roomid", room.getRoomID());
-            roomWithCount.put("count", room.getRoomMembersList().size());
+            roomWithCount.put("count", room.countAllMembers());
             roomsWithCount.add(roomWithCount);
         }
         return roomsWithCount;
     }
 
+    /**
+     * Method for dealing a chat message: broadcast it in the user's room, unless it carries a message identity the
+     * user already sent within the dedup window (a client resending after a connection hiccup); messages with an
+     * identity are acknowledged either way
+     *
+     * @param jsonMsg the decoded message
+     * @throws IOException
+     */
+    private void chatMessage(JSONObject jsonMsg) throws IOException {
+        // the other users get neither the client's request identity nor its message identity
+        jsonMsg.remove("reqid");
+        Object msgId = jsonMsg.remove("msgid");
+        MessageIdWindow sent = msgId instanceof Long ? messageIds() : null;
+        if (sent != null && !sent.add((Long) msgId)) {
+            reply(new ServerMessage().ack(msgId, true));
+            return;
+        }
+        jsonMsg.put("identity", userId);
+        locatedRoom.broadcastChatMessage(jsonMsg.toString());
+        if (msgId != null) {
+            reply(new ServerMessage().ack(msgId, false));
+        }
+    }
+
+    // the message identities this user sent, created by the first message carrying one
+    private MessageIdWindow messageIds() {
+        if (messageIds == null) {
+            messageIds = Server.newMessageIdWindow();
+        }
+        return messageIds;
+    }
+
+    /**
+     * Method for dealing the request to compress large frames: the answer tells the client the threshold and the
+     * dictionary to inflate with, so compression starts right after the answer is written
+     *
+     * @throws IOException
+     */
+    private void startCompression() throws IOException {
+        int threshold = FrameCompressor.getThreshold();
+        String answer = new ServerMessage().compress(threshold, FrameCompressor.DICTIONARY);
+        if (requestId != null) {
+            answer = ServerMessage.withRequestId(answer, requestId);
+        }
+        send(threshold > 0 ? Frame.startingCompression(answer) : new Frame(answer));
+    }
+
+    /**
+     * Method for dealing the request to hear about the identity changes of every user on the server, rather than
+     * only of the members of the user's room
+     *
+     * @param watch true to start watching, false to stop
+     */
+    private void watchPresence(boolean watch) {
+        boolean changed = watch ? Server.presenceWatchers.add(Connection.this)
+                : Server.presenceWatchers.remove(Connection.this);
+        if (changed && Server.cluster != null) {
+            Server.cluster.presenceWatchersChanged(watch);
+        }
+    }
+
+    /**
+     * Method for dealing the request of sending a message to one user: the user is looked up in the identity index
+     * (or the cluster's) and the message queued for that user only, wherever the two users are
+     *
+     * @param target  identity of the receiving user
+     * @param content plain chat message
+     * @throws IOException
+     */
+    private void privateMessage(String target, String content) throws IOException {
+        String msg = new ServerMessage().privateMessage(userId, target, content);
+        Connection receiver = Server.users.find(target);
+        // a redirected user only keeps its identity here, it is reached on the node it moved to
+        if (receiver != null && !receiver.isRedirected()) {
+            receiver.send(msg);
+            return;
+        }
+        if (Server.cluster != null && Server.cluster.relayToUser(target, msg)) {
+            return;
+        }
+        reply(new ServerMessage().undelivered(target));
+    }
+
     /**
      * Method for dealing the request for joining a chatroom
      *
@@ -135,42 +597,43 @@ public class Connection extends Thread {
 
         if (roomId.equals("MainHall")) {
 
-            if (!isInRoom(userId, roomId)) {
-
-                if (locatedRoom != null) {
-                    removeInFormerRoom(locatedRoom.getRoomID(), userId);
-                    deleteRoomIfOwnerLeave(locatedRoom);
-                }
+            if (!isInRoom(roomId)) {
 
                 Room mainHall = Server.rooms.get(0);
-                locatedRoom = mainHall;
-                locatedRoom.getMemberThreads().add(Connection.this);
-                locatedRoom.getRoomMembersList().add(Connection.this.getUserId());
-
-                // Send room change message to all in the room
-                String response = new ServerMessage().roomChange
-                        (mainHall.getRoomMembersList().get(mainHall.getRoomMembersList().size() - 1), "", "MainHall");
-                Server.rooms.get(0).broadcastWithinRoom(response);
+                Room former = locatedRoom;
+                if (former == null) {
+                    locatedRoom = mainHall;
+                    locatedRoom.addMember(Connection.this);
+
+                    // Send room change message to all in the room
+                    String response = new ServerMessage().roomChange(userId, "", "MainHall");
+                    mainHall.broadcastWithinRoom(response);
+                } else {
+                    // tells both rooms, unless a deletion of the former room moved the user meanwhile
+                    former.moveMemberTo(Connection.this, mainHall);
+                    deleteRoomIfOwnerLeave(former);
+                }
 
                 String msg = "";
                 String roomList = new ServerMessage().roomList(getRoomlistSizePairs(), msg);
-                getOutput().writeUTF(roomList);
-                getOutput().flush();
+                reply(roomList);
+
+                sendHistoryOnJoin("MainHall");
             }
 
         } else {
+            // a room homed on another node is joined there
+            if (Server.cluster != null && Server.getRoom(roomId) != null && !Server.cluster.isHomedHere(roomId)
+                    && redirect(roomId)) {
+                return;
+            }
             // if room identity is valid
             if (isLegalRoomId(roomId)) {
-                List<Room> rooms = Server.rooms;
-                for (int i = 0; i < rooms.size(); i++) {
-                    Room room = rooms.get(i);
-                    // if roomId existed, (has been used)
-                    if (room.getRoomID().equals(roomId)) {
-                        if (!roomId.equals(locatedRoom.getRoomID())) {
-                            joinRoom(roomId);
-                            return;
-                        }
-                    }
+                // if roomId existed, (has been used)
+                Room room = Server.getRoom(roomId);
+                if (room != null && room != locatedRoom) {
+                    joinRoom(roomId);
+                    return;
                 }
                 joinRoom(locatedRoom.getRoomID());
             }
@@ -191,62 +654,67 @@ public class Connection extends Thread {
     private void joinRoom(String roomId) throws IOException {
         Room room = Server.getRoom(roomId);
         if (room != null) {
-            if (!room.getRoomID().equals(locatedRoom.getRoomID())) {
-                // broadcasting the room change messages
-                String roomChangeMsg = new ServerMessage()
-                        .roomChange(userId, locatedRoom.getRoomID(), roomId);
-
-                locatedRoom.broadcastWithinRoom(roomChangeMsg);
-                room.broadcastWithinRoom(roomChangeMsg);
-
-                // remove the connection thread in the previous room
-                locatedRoom.removeMemberThread(userId);
-
-                // record the usr with the new room
-                locatedRoom = room;
-
-                // add the user identity and connection thread to the new room
-                locatedRoom.getRoomMembersList().add(userId);
-                locatedRoom.getMemberThreads().add(Connection.this);
+            // the user leaves the previous room and is counted in the new one before the change is broadcast
+            // (a room being deleted cannot be joined any more)
+            if (room != locatedRoom && locatedRoom.moveMemberTo(Connection.this, room)) {
+                sendHistoryOnJoin(roomId);
             } else {
                 String roomChangeMsg = new ServerMessage()
-                        .roomChange(userId, locatedRoom.getRoomID(), roomId);
-                getOutput().writeUTF(roomChangeMsg);
-                getOutput().flush();
+                        .roomChange(userId, locatedRoom.getRoomID(), locatedRoom.getRoomID());
+                reply(roomChangeMsg);
             }
         }
     }
 
     /**
-     * Method for remove the user in the previous room
+     * Method for sending the latest logged messages of a room to the user who just joined it,
+     * when the server is configured to do so
      *
      * @param roomId room identity
-     * @param userId user identity
      */
-    private void removeInFormerRoom(String roomId, String userId) {
-        if (roomId != null && !roomId.equals("MainHall")) {
-            Room previousRoom = Server.getRoom(roomId);
-            previousRoom.removeMemberThread(userId);
+    private void sendHistoryOnJoin(String roomId) {
+        if (Server.messageStore != null && Server.historyOnJoin > 0) {
+            Server.messageStore.replayLast(Connection.this, requestId, roomId, Server.historyOnJoin);
         }
     }
 
+    /**
+     * Method for dealing the request of reading a room's message history, either the latest messages
+     * or all messages since a given time, a room without a log replies an empty history
+     *
+     * @param roomId  room identity
+     * @param count   number of latest messages requested, null when requested by time
+     * @param since   earliest time requested in milliseconds, null when requested by count
+     * @throws IOException
+     */
+    private void history(String roomId, Object count, Object since) throws IOException {
+        try {
+            if (Server.messageStore != null && Server.getRoom(roomId) != null) {
+                if (since != null) {
+                    Server.messageStore.replaySince(Connection.this, requestId, roomId,
+                            Long.parseLong(since.toString()));
+                } else {
+                    int n = count != null ? Integer.parseInt(count.toString()) : DEFAULT_HISTORY_COUNT;
+                    Server.messageStore.replayLast(Connection.this, requestId, roomId, Math.max(n, 0));
+                }
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // malformed count or time, answered with an empty history below
+        }
+        String emptyHistory = new ServerMessage().history(roomId, new ArrayList<>(), false);
+        reply(emptyHistory);
+    }
+
     /**
      * Method to judge whether the user is already in a specific room
      *
-     * @param userId user identity
      * @param roomId room identity
      * @return true means the user is already in, false means not
      */
-    private boolean isInRoom(String userId, String roomId) {
+    private boolean isInRoom(String roomId) {
         Room room = Server.getRoom(roomId);
-        if (room != null) {
-            for (String client : room.getRoomMembersList()) {
-                if (client.equals(userId)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return room != null && room.hasMember(userHandle);
     }
 
     /**
@@ -256,27 +724,23 @@ public class Connection extends Thread {
      * @throws IOException
      */
     private void createRoom(String newRoomId) throws IOException {
-        boolean roomNameInUseOrInvalid = false;
-        for (Room room : Server.rooms) {
-            if (room.getRoomID().equals(newRoomId) || !isLegalRoomId(newRoomId)) {
-                roomNameInUseOrInvalid = true;
-            }
-        }
-        if (roomNameInUseOrInvalid) {
+        // a room created by another user since the check is caught when creating it
+        Room newRoom = isLegalRoomId(newRoomId) && Server.getRoom(newRoomId) == null
+                ? Server.createRoom(newRoomId, userId) : null;
+        if (newRoom == null) {
             // room is in use
             ArrayList<JSONObject> roomsResponse = getRoomlistSizePairs();
             String msg = "Room " + newRoomId + " is invalid or already in use.";
             String roomListResponse = new ServerMessage().roomList(roomsResponse, msg);
-            getOutput().writeUTF(roomListResponse);
-            getOutput().flush();
+            reply(roomListResponse);
         } else {
-            // create a new room
-            Server.createRoom(newRoomId, userId);
+            if (Server.cluster != null) {
+                Server.cluster.roomCreated(newRoom);
+            }
             ArrayList<JSONObject> roomsResponse = getRoomlistSizePairs();
             String msg = "Room " + newRoomId + " created.";
             String roomListResponse = new ServerMessage().roomList(roomsResponse, msg);
-            getOutput().writeUTF(roomListResponse);
-            getOutput().flush();
+            reply(roomListResponse);
         }
     }
 
@@ -291,45 +755,63 @@ public class Connection extends Thread {
         // first time set up
         if (newIdentity.equals("")) {
             String firstIdResponse = new ServerMessage().newId("", userId);
-            getOutput().writeUTF(firstIdResponse);
-            getOutput().flush();
+            reply(firstIdResponse);
+
+            // hand out a token the client can use to resume this session after losing the connection
+            if (Server.sessions != null && sessionToken == null) {
+                sessionToken = Server.sessions.issue(Connection.this);
+                String session = new ServerMessage().session(sessionToken, Server.sessions.getGraceSeconds());
+                reply(session);
+            }
         } else {
-            // check whether it is a valid name or not used yet
-            if (duplicateUserName(newIdentity) || !isLegalUserId(newIdentity)) {
+            // check whether it is a valid name or not used yet, then claim it (two users asking for the same name
+            // at once cannot both get it)
+            if (!isLegalUserId(newIdentity) || duplicateUserName(newIdentity) || !claimIdentity(newIdentity)) {
                 //has been used or invalid, no change in identity
                 String noChangeResponse = new ServerMessage().newId(formerIdentity, formerIdentity);
-                getOutput().writeUTF(noChangeResponse);
-                getOutput().flush();
+                reply(noChangeResponse);
             }
             // available to make change in identity
             else {
-                // update the server user list
-                for (int i = 0; i < Server.userIdentities.size(); i++) {
-                    if (Server.userIdentities.get(i).equals(formerIdentity)) {
-                        Server.userIdentities.set(i, newIdentity);
-                    }
-                }
-                // update chatroom member list
-                for (int i = 0; i < locatedRoom.getRoomMembersList().size(); i++) {
-                    if (locatedRoom.getRoomMembersList().get(i).equals(formerIdentity)) {
-                        locatedRoom.getRoomMembersList().set(i, newIdentity);
-                    }
-                }
-
-                // update ownership except MainHall
-                for (int i = 1; i < Server.rooms.size(); i++) {
-                    if (Server.rooms.get(i).getOwner().equals(formerIdentity)) {
-                        Server.rooms.get(i).setOwner(newIdentity);
-                    }
+                // update ownership of this user's rooms
+                for (Room room : Server.getOwnedRooms(formerIdentity)) {
+                    changeOwner(room, newIdentity);
                 }
 
-                // broadcast identity change to all connected users
+                // the room (which includes this user) was told, now whoever watches everyone's presence
                 userId = newIdentity;
                 String updatedId = new ServerMessage().newId(formerIdentity, userId);
-                Server.broadcastToAll(updatedId);
+                Room room = locatedRoom;
+                if (room == null) {
+                    reply(updatedId);
+                }
+                Server.broadcastPresence(updatedId, room);
+
+            }
+        }
+    }
 
+    /**
+     * Method for taking a new identity in place of the current one, through the user's room so its watchers see
+     * the rename in order with the other membership changes
+     *
+     * @param newIdentity user's requested new identity
+     * @return false if another user took the identity first
+     * @throws IOException
+     */
+    private boolean claimIdentity(String newIdentity) throws IOException {
+        Room room = locatedRoom;
+        if (room == null) {
+            return Server.users.rename(userHandle, newIdentity);
+        }
+        // a deletion may move the user on meanwhile, the rename is then announced in the room it was moved to
+        while (!room.renameMember(Connection.this, newIdentity)) {
+            if (locatedRoom == room) {
+                return false;
             }
+            room = locatedRoom;
         }
+        return true;
     }
 
     /**
@@ -349,8 +831,7 @@ public class Connection extends Thread {
                 ArrayList<JSONObject> serverRooms = getRoomlistSizePairs();
                 String msg = userId + " doesn't have authority to delete the MainHall";
                 String deleteResponse = new ServerMessage().roomList(serverRooms, msg);
-                getOutput().writeUTF(deleteResponse);
-                getOutput().flush();
+                reply(deleteResponse);
                 return;
             }
             String owner = deletedRoom.getOwner();
@@ -362,15 +843,13 @@ public class Connection extends Thread {
                 // reply a room list message only to the client deleted the room
                 ArrayList<JSONObject> serverRooms = getRoomlistSizePairs();
                 String deleteResponse = new ServerMessage().roomList(serverRooms, "");
-                getOutput().writeUTF(deleteResponse);
-                getOutput().flush();
+                reply(deleteResponse);
             } else {
                 // if the user is not the owner of the room, he/she doesn't have authority to delete, reply a error message
                 ArrayList<JSONObject> serverRooms = getRoomlistSizePairs();
                 String msg = userId + " doesn't have authority to delete the room";
                 String deleteResponse = new ServerMessage().roomList(serverRooms, msg);
-                getOutput().writeUTF(deleteResponse);
-                getOutput().flush();
+                reply(deleteResponse);
 
             }
         } else {
@@ -378,8 +857,7 @@ public class Connection extends Thread {
             ArrayList<JSONObject> serverRooms = getRoomlistSizePairs();
             String msg = userId + " is trying to delete an invalid room, please try again";
             String deleteResponse = new ServerMessage().roomList(serverRooms, msg);
-            getOutput().writeUTF(deleteResponse);
-            getOutput().flush();
+            reply(deleteResponse);
         }
     }
 
@@ -392,45 +870,56 @@ public class Connection extends Thread {
         if (room.getRoomID().equals("MainHall")) {
             return;
         }
-        if (room.getOwner().equals("") && room.getMemberThreads().size() == 0) {
+        if (room.closeIfAbandoned()) {
             deleteRoom(room.getRoomID());
         }
     }
 
     /**
      * Method for move all the remaining users in the chatroom to the main hall
+     * (the users connected to other nodes are moved by their own node)
      *
      * @param roomId room identity
      * @throws IOException
      */
-    private void forceToMainHall(String roomId) throws IOException {
+    static void forceToMainHall(String roomId) throws IOException {
         Room chatRoom = Server.getRoom(roomId);
-        Room mainHall = Server.rooms.get(0);
-        for (int i = 0; i < chatRoom.getMemberThreads().size(); i++) {
-            Connection c = chatRoom.getMemberThreads().get(i);
-            mainHall.addMemberThread(c);
-            //change the room identity as well
-            c.locatedRoom = mainHall;
-        }
-        for (int i = 0; i < chatRoom.getRoomMembersList().size(); i++) {
-            String user = chatRoom.getRoomMembersList().get(i);
-            mainHall.getRoomMembersList().add(user);
+        if (chatRoom == null) {
+            return;
         }
-
-        for (String user : chatRoom.getRoomMembersList()) {
-            String roomChangeMsg = new ServerMessage().roomChange(user, chatRoom.getRoomID(), "MainHall");
-            chatRoom.broadcastWithinRoom(roomChangeMsg);
+        Room mainHall = Server.rooms.get(0);
+        // one room change for all of them, already delivered to the MainHall which now holds the moved users as well
+        List<String> roomChanges = chatRoom.transferAllTo(mainHall);
+        if (Server.cluster != null) {
+            for (String roomChangeMsg : roomChanges) {
+                Server.cluster.relayToRoom("MainHall", roomChangeMsg, false);
+            }
         }
     }
 
     /**
-     * The execution part of deleting a room
+     * The execution part of deleting a room, the other nodes of the cluster delete it as well
      *
      * @param roomId
      */
     private void deleteRoom(String roomId) {
-        Room chatRoom = Server.getRoom(roomId);
-        Server.rooms.remove(Server.rooms.indexOf(chatRoom));
+        Server.deleteRoom(roomId);
+        if (Server.cluster != null) {
+            Server.cluster.roomDeleted(roomId);
+        }
+    }
+
+    /**
+     * Method for changing the owner of a room, the other nodes of the cluster change it as well
+     *
+     * @param room  the chatroom object
+     * @param owner new owner identity
+     */
+    private void changeOwner(Room room, String owner) {
+        room.setOwner(owner);
+        if (Server.cluster != null) {
+            Server.cluster.ownerChanged(room.getRoomID(), owner);
+        }
     }
 
     /**
@@ -441,49 +930,63 @@ public class Connection extends Thread {
      */
     private void who(String roomId) throws IOException {
         if (roomId.equals("MainHall")) {
-            String[] users = Server.rooms.get(0).getRoomMembersList().toArray(
-                    new String[Server.rooms.get(0).getRoomMembersList().size()]);
+            String[] users = Server.rooms.get(0).getAllMembersIDs();
             String whoMainHallResponse = new ServerMessage().roomContents("MainHall", "", users);
-            getOutput().writeUTF(whoMainHallResponse);
-            getOutput().flush();
+            reply(whoMainHallResponse);
         } else {
             Room charRoom = Server.getRoom(roomId);
             if (charRoom != null) {
                 String roomOwner = charRoom.getOwner();
-                String[] usersInside = charRoom.getRoomMembersList().toArray(
-                        new String[Server.getRoom(roomId).getRoomMembersList().size()]);
+                String[] usersInside = charRoom.getAllMembersIDs();
                 String whoResponse = new ServerMessage().roomContents(roomId, roomOwner, usersInside);
 
-                getOutput().writeUTF(whoResponse);
-                getOutput().flush();
+                reply(whoResponse);
+            } else {
+                // an unknown room is answered as empty, so a client waiting for the answer is not left hanging
+                reply(new ServerMessage().roomContents(roomId, "", new String[0]));
             }
         }
     }
 
+    /**
+     * Method for dealing the request to follow a room's members: the room contents are sent as for who, then every
+     * change of the members (coalesced per tick) until the user stops watching or leaves, instead of polling who
+     *
+     * @param roomId the chat room identity
+     * @throws IOException
+     */
+    private void watch(String roomId) throws IOException {
+        Room room = Server.getRoom(roomId);
+        if (room != null) {
+            Server.startMembershipTicker();
+            watchedRooms.add(room);
+            room.addWatcher(Connection.this, requestId);
+        } else {
+            // nothing to follow, answered as empty like who so the client is not left waiting
+            reply(new ServerMessage().roomContents(roomId, "", new String[0]));
+        }
+    }
+
+    /**
+     * Method for forgetting a watched room, when the room is deleted
+     *
+     * @param room the chat room
+     */
+    protected void stopWatching(Room room) {
+        watchedRooms.remove(room);
+    }
+
     /**
      * Method for setting the owner identity to an empty string
      *
      * @param userId user identity
      */
     private void clearOwnership(String userId) {
-        List<Room> rooms = Server.rooms;
-        // using a while loop to refresh room list when deleted a room
-        while (true) {
-            for (int i = 0; i < rooms.size(); i++) {
-                Room room = rooms.get(i);
-                if (room.getOwner() != null) {
-                    if (room.getOwner().equals(userId)) {
-                        room.setOwner("");
-                        deleteRoomIfOwnerLeave(room);
-                        break;
-                    }
-                }
-                if (i == rooms.size()-1) {
-                    return;
-                }
-            }
+        // only this user's rooms, the empty ones are deleted in the same pass
+        for (Room room : Server.getOwnedRooms(userId)) {
+            changeOwner(room, "");
+            deleteRoomIfOwnerLeave(room);
         }
-
     }
 
     /**
@@ -492,21 +995,204 @@ public class Connection extends Thread {
      * @throws IOException
      */
     private void quit() throws IOException {
+        quitting = true;
+        if (idleCheck != null) {
+            idleCheck.cancel();
+        }
+        if (Server.sessions != null) {
+            Server.sessions.remove(sessionToken, Connection.this);
+        }
+        // release the connection and the identity, so nothing is kept for users who left
+        Server.userThreads.remove(Connection.this);
+        watchPresence(false);
+        for (Room room : watchedRooms) {
+            room.removeWatcher(Connection.this);
+        }
+        if (locatedRoom == null) {
+            // the client left before joining any room
+            Server.users.release(userHandle, Connection.this);
+            return;
+        }
 
-        // remove the user from current chat room
-        locatedRoom.removeMemberThread(userId);
+        // remove the user from current chat room, only then may its handle be handed out again (a deletion may move
+        // the user on meanwhile, it is then removed from the room it was moved to)
+        Room room = locatedRoom;
+        while (!room.removeMember(Connection.this) && locatedRoom != room) {
+            room = locatedRoom;
+        }
+        // a redirected user keeps its identity here until it arrived on the room's home node, so nobody else can
+        // take the identity and with it the user's rooms meanwhile
+        if (redirected) {
+            Server.cluster.holdRedirected(Connection.this);
+        } else {
+            Server.users.release(userHandle, Connection.this);
+        }
 
         // send the room change message to the user, then it can successfully quit
-        String roomChangeQuit = new ServerMessage().roomChange(userId, locatedRoom.getRoomID(), "");
-        getOutput().writeUTF(roomChangeQuit);
-        getOutput().flush();
+        // (a session which expired or was reaped has no client left to tell, a redirected one is moving on)
+        String roomChangeQuit = new ServerMessage().roomChange(userId, room.getRoomID(), "");
+        if (!detached && !reaped && !redirected) {
+            reply(roomChangeQuit);
+        }
 
         // broadcast the room change message that the user moves to an empty name room
-        String roomChangeMsg = new ServerMessage().roomChange(userId, locatedRoom.getRoomID(), "");
-        locatedRoom.broadcastWithinRoom(roomChangeMsg);
+        String roomChangeMsg = new ServerMessage().roomChange(userId, room.getRoomID(), "");
+        room.broadcastWithinRoom(roomChangeMsg);
 
         // if the user owns any chatroom, the owner variable would be set to an empty string
-        clearOwnership(userId);
+        // (a redirected user comes back under the same identity on the room's home node)
+        if (!redirected) {
+            clearOwnership(userId);
+        }
+    }
+
+    /**
+     * Method for giving up the identity a redirected user kept on this node while moving to the room's home node;
+     * the user's rooms stay its own if it arrived there, otherwise they lose their owner as when a user quits
+     */
+    protected void releaseRedirected() {
+        Server.users.release(userHandle, Connection.this);
+        if (!Server.cluster.isRemoteIdentity(userId)) {
+            clearOwnership(userId);
+        }
+    }
+
+    public boolean isRedirected() {
+        return redirected;
+    }
+
+    /**
+     * Method for dealing with a client which went away without quitting, the session is kept for a grace window
+     * when resumption is enabled, otherwise the user quits right away
+     *
+     * @throws IOException
+     */
+    private void connectionLost() throws IOException {
+        deactivate();
+        if (idleCheck != null) {
+            idleCheck.cancel();
+        }
+        if (Server.draining) {
+            // the server is shutting down, nobody is left to tell
+            return;
+        }
+        synchronized (sessionLock) {
+            if (quitting || successor != null) {
+                return;
+            }
+            if (Server.sessions != null && sessionToken != null && locatedRoom != null) {
+                detached = true;
+                expiry = Server.sessions.park(Connection.this);
+                System.out.println(userId + " lost connection, session kept for resumption");
+                return;
+            }
+        }
+        quit();
+    }
+
+    /**
+     * Method for ending a lost session whose client did not come back within the grace window
+     */
+    protected void expire() {
+        synchronized (sessionLock) {
+            if (successor != null || ended) {
+                return;
+            }
+            ended = true;
+            missedMessages.clear();
+        }
+        try {
+            quit();
+            System.out.println(userId + " session expired");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Method for handing this session over to the connection of the reconnected client, which is answered with the
+     * resumed message and the messages missed while away before anything sent to the session from now on;
+     * a connection that still looks alive (its peer vanished without closing it) is closed
+     *
+     * @param conn connection of the reconnected client
+     * @return number of missed messages, or -1 if the session already ended
+     * @throws IOException
+     */
+    private int handOver(Connection conn) throws IOException {
+        int missed;
+        synchronized (sessionLock) {
+            if (ended || quitting) {
+                return -1;
+            }
+            successor = conn;
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+            // queued while holding the lock, so the messages sent to this session meanwhile come after them
+            conn.reply(new ServerMessage().resumed(true, userId, locatedRoom.getRoomID(), droppedMessages));
+            for (Frame msg : missedMessages) {
+                conn.send(msg);
+            }
+            missed = missedMessages.size();
+            missedMessages.clear();
+        }
+        deactivate();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        return missed;
+    }
+
+    /**
+     * Method for dealing the request of resuming a lost session, which must be the first request of a connection;
+     * the user gets back the former identity and room without any room change broadcasts
+     *
+     * @param token session token issued to the former connection
+     * @throws IOException
+     */
+    private void resume(String token) throws IOException {
+        Connection previous = null;
+        int missed = -1;
+        if (Server.sessions != null && locatedRoom == null && sessionToken == null) {
+            previous = Server.sessions.takeOver(token, Connection.this);
+            if (previous != null) {
+                missed = previous.handOver(Connection.this);
+                if (missed < 0) {
+                    Server.sessions.remove(token, Connection.this);
+                }
+            }
+        }
+        if (missed < 0) {
+            String failed = new ServerMessage().resumed(false, "", "", 0);
+            reply(failed);
+            return;
+        }
+
+        // the guest identity given to this connection was never announced, give it back
+        Server.users.release(userHandle, Connection.this);
+        Server.userThreads.remove(previous);
+        userId = previous.userId;
+        userHandle = previous.userHandle;
+        Server.users.replace(userHandle, previous, Connection.this);
+        sessionToken = token;
+        if (Server.presenceWatchers.remove(previous)) {
+            Server.presenceWatchers.add(Connection.this);
+        }
+        // messages resent after the connection broke are still recognised
+        messageIds = previous.messageIds;
+        for (Room room : previous.watchedRooms) {
+            watchedRooms.add(room);
+            room.replaceWatcher(previous, Connection.this);
+        }
+        // a deletion may move the former connection on meanwhile, it is then taken over in the room it was moved to
+        Room room = previous.locatedRoom;
+        while (room != null && !room.replaceMemberThread(previous, Connection.this)
+                && previous.locatedRoom != room) {
+            room = previous.locatedRoom;
+        }
+        System.out.println(userId + " resumed session with " + missed + " missed messages");
     }
 
 
@@ -514,33 +1200,93 @@ public class Connection extends Thread {
     @Override
     public void run() {
 
+        FrameReader in = null;
         try {
-            DataInputStream in = new DataInputStream(socket.getInputStream());
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            in = new FrameReader(socket.getInputStream());
+            List<JSONObject> received = new ArrayList<>();
+
+            new Thread(writer).start();
 
             Thread readFromQueue = new Thread(new dealRequest());
             readFromQueue.start();
 
+            if (Server.timerWheel != null) {
+                idleCheck = Server.timerWheel.schedule(this::checkIdle, Server.idleTimeoutMillis);
+            }
+
             try {
                 while (true) {
+                    // a pipelining client's requests arrive together, hand over all those already read at once
+                    do {
+                        in.next();
+                        if (Log.isEnabled(Log.DEBUG)) {
+                            Log.debug(in.text());
+                        }
+                        // parsed here from the read buffer, the frame never becomes a string
+                        JSONObject request = in.parse();
+                        if (request != null) {
+                            received.add(request);
+                        } else {
+                            Log.info("Ignored a frame from " + userId + " which is not a JSON object");
+                        }
+                    } while (in.hasMore() && received.size() < MAX_REQUEST_BATCH);
+                    // any frame proves the client is alive, including the answer to a ping
+                    lastActivity = System.currentTimeMillis();
+                    pingOutstanding = false;
                     synchronized (bufferSpace) {
-                        String msg = in.readUTF();
-                        System.out.println(msg);
-                        bufferSpace.add(msg);
+                        bufferSpace.addAll(received);
+                        bufferSpace.notifyAll();
                     }
+                    received.clear();
                 }
             } catch (EOFException e) {
-                quit();
-                in.close();
-                out.close();
-                socket.close();
                 System.out.println(userId + " abruptly disconnected");
             }
         } catch (IOException e) {
             System.out.println(userId + " terminated connection");
 //            e.printStackTrace();
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+
+        try {
+            connectionLost();
+            socket.close();
+        } catch (IOException e) {
+            System.out.println("Error in closing connection of " + userId);
+        }
+        writer.stop();
+        Server.admission.release(socket);
+    }
+
+    /**
+     * Method for finding a field a request needs but does not carry as a string
+     * @param request the request
+     * @param type the request's type
+     * @return the name of the first missing field, or null when the request has them all
+     */
+    private static String missingField(JSONObject request, String type) {
+        for (String field : REQUIRED_FIELDS.getOrDefault(type, new String[0])) {
+            if (!(request.get(field) instanceof String)) {
+                return field;
+            }
         }
+        return null;
+    }
 
+    /**
+     * Method for answering a malformed request with the room list and the reason, keeping the connection open
+     * @param words why the request was refused
+     */
+    private void invalidRequest(String words) {
+        System.out.println("Invalid request from " + userId + ": " + words);
+        try {
+            reply(new ServerMessage().roomList(getRoomlistSizePairs(), words));
+        } catch (IOException e) {
+            System.out.println("Error in replying to " + userId);
+        }
     }
 
     // dealing the request from client
@@ -551,23 +1297,50 @@ public class Connection extends Thread {
 
             boolean read = true;
 
-            while (read) {
+            while (read && active) {
 
-                while (!bufferSpace.isEmpty() && read) {
+                waitForRequests();
 
-                    String message = bufferSpace.poll();
-                    Object obj = JSONValue.parse(message);
-                    JSONObject jsonMsg = (JSONObject) obj;
+                JSONObject jsonMsg;
+                while (read && (jsonMsg = nextRequest()) != null) {
 
-                    String type = jsonMsg.get("type").toString();
+                    // echoed in the direct responses, so a client can send many requests without waiting
+                    requestId = jsonMsg.get("reqid");
+                    Object requestType = jsonMsg.get("type");
+                    String type = requestType instanceof String ? (String) requestType : null;
 
                     try {
 
+                        if (type == null) {
+                            invalidRequest("Request without a type");
+                            continue;
+                        }
+                        String missing = missingField(jsonMsg, type);
+                        if (missing != null) {
+                            invalidRequest("Invalid " + type + " request, no " + missing);
+                            continue;
+                        }
+
+                        if (throttled(type)) {
+                            continue;
+                        }
+
                         switch (type) {
 
                             case "message":
-                                jsonMsg.put("identity", userId);
-                                locatedRoom.broadcastWithinRoom(jsonMsg.toString());
+                                chatMessage(jsonMsg);
+                                break;
+
+                            case "compress":
+                                startCompression();
+                                break;
+
+                            case "presence":
+                                watchPresence(Boolean.TRUE.equals(jsonMsg.get("watch")));
+                                break;
+
+                            case "privatemessage":
+                                privateMessage(jsonMsg.get("identity").toString(), jsonMsg.get("content").toString());
                                 break;
 
                             case "join":
@@ -580,8 +1353,7 @@ public class Connection extends Thread {
                                 String msg = "";
                                 ServerMessage serverMessage = new ServerMessage();
                                 String response = serverMessage.roomList(roomsWithCount, msg);
-                                getOutput().writeUTF(response);
-                                getOutput().flush();
+                                reply(response);
                                 break;
 
                             case "createroom":
@@ -599,12 +1371,41 @@ public class Connection extends Thread {
                                 who(roomRequested);
                                 break;
 
+                            case "watch":
+                                watch(jsonMsg.get("roomid").toString());
+                                break;
+
+                            case "unwatch":
+                                Room unwatched = Server.getRoom(jsonMsg.get("roomid").toString());
+                                if (unwatched != null && unwatched.removeWatcher(Connection.this)) {
+                                    watchedRooms.remove(unwatched);
+                                }
+                                break;
+
                             case "identitychange":
                                 String newIdentityReq = jsonMsg.get("identity").toString();
                                 String formerIdentity = userId;
                                 identityChange(newIdentityReq, formerIdentity);
                                 break;
 
+                            case "history":
+                                String historyRoom = jsonMsg.get("roomid").toString();
+                                history(historyRoom, jsonMsg.get("count"), jsonMsg.get("since"));
+                                break;
+
+                            case "ping":
+                                reply(new ServerMessage().pong());
+                                break;
+
+                            case "pong":
+                                // activity is already recorded when the frame was read
+                                break;
+
+                            case "resume":
+                                String token = jsonMsg.get("token").toString();
+                                resume(token);
+                                break;
+
                             case "quit":
                                 quit();
                                 read = false;
@@ -620,6 +1421,9 @@ public class Connection extends Thread {
                     }
                 }
             }
+            requestDone();
+            requestId = null;
+            flushReplies();
             try {
                 socket.close();
             } catch (IOException e) {
@@ -0,0 +1,91 @@
+package chatserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message queued for one or more connections. A broadcast queues the same frame for every receiver, so a frame
+ * sent to clients which asked for compression is compressed once, by the first writer which needs it, and the
+ * result is shared by all the others.
+ */
+public class Frame {
+
+    private final String text;               // JSON encoded message
+    private final boolean startsCompression; // the writer compresses what follows once this frame is written
+    private byte[] compressed;               // compressed message, guarded by this frame
+    private int rawLength;                   // length of the message in UTF-8 once compressed
+    private boolean compressionDone = false; // whether compressed was worked out, guarded by this frame
+    private volatile int encodedLength = -1; // length written uncompressed, worked out on first use
+
+    /**
+     * Constructor method for Frame
+     * @param text JSON encoded message
+     */
+    public Frame(String text) {
+        this(text, false);
+    }
+
+    private Frame(String text, boolean startsCompression) {
+        this.text = text;
+        this.startsCompression = startsCompression;
+    }
+
+    /**
+     * Method for creating the answer which agrees to compress, the frames written after it may be compressed
+     * @param text JSON encoded answer
+     * @return the frame
+     */
+    public static Frame startingCompression(String text) {
+        return new Frame(text, true);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public boolean startsCompression() {
+        return startsCompression;
+    }
+
+    /**
+     * Method to judge whether the frame can be written uncompressed, its length must fit in the frame header
+     * @return false if the frame is longer than FrameWriter.MAX_FRAME_LENGTH encoded
+     */
+    public boolean fits() {
+        // a character takes at most three bytes, shorter texts need not be measured to know
+        if (text.length() * 3 <= FrameWriter.MAX_FRAME_LENGTH) {
+            return true;
+        }
+        if (encodedLength < 0) {
+            encodedLength = FrameWriter.encodedLength(text);
+        }
+        return encodedLength <= FrameWriter.MAX_FRAME_LENGTH;
+    }
+
+    /**
+     * Method for getting the frame compressed, worked out on the first call
+     * @return the compressed frame, or null when it is below the threshold or does not get smaller
+     */
+    public synchronized byte[] compressed() {
+        if (!compressionDone) {
+            compressionDone = true;
+            int threshold = FrameCompressor.getThreshold();
+            // a character takes at most three bytes, shorter texts need not be encoded to know
+            if (threshold > 0 && text.length() * 3 >= threshold) {
+                byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+                if (raw.length >= threshold) {
+                    compressed = FrameCompressor.compress(raw);
+                    rawLength = raw.length;
+                }
+            }
+        }
+        return compressed;
+    }
+
+    /**
+     * Accessor method for getting the length of the message in UTF-8, known once it was compressed
+     * @return length in bytes
+     */
+    public synchronized int getRawLength() {
+        return rawLength;
+    }
+}
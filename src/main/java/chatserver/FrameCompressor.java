@@ -0,0 +1,101 @@
+package chatserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Compression of the frames sent to the clients which asked for it. Frames are deflated with a preset dictionary of
+ * the words every frame repeats, handed to the client when compression is agreed, so even a frame of a few hundred
+ * bytes shrinks. Deflaters and their output buffers are pooled, compressing a frame allocates only the result.
+ * Counts what went in and out and the time spent, for the operator console.
+ */
+public class FrameCompressor {
+
+    private static final int MAX_POOLED = 16; // deflaters kept for reuse, more are released after use
+
+    // most frequent words last, deflate finds the closest match first
+    public static final String DICTIONARY = "\"more\":false,\"timestamp\":\"type\":\"history\",\"messages\":[{"
+            + "\"type\":\"roomlist\",\"words\":\"\",\"rooms\":[{\"count\":1,\"roomid\":\"},{\"count\":"
+            + "\"type\":\"roomchange\",\"former\":\"\"type\":\"newidentity\",\"type\":\"roomcontents\","
+            + "\"owner\":\"\",\"identities\":[\"guest\",\"guest\",\"type\":\"message\",\"content\":\""
+            + "\",\"roomid\":\"MainHall\",\"identity\":\"guest";
+    private static final byte[] DICTIONARY_BYTES = DICTIONARY.getBytes(StandardCharsets.UTF_8);
+
+    private static volatile int threshold = 512; // smallest frame compressed in bytes, 0 when compression is off
+
+    private static final ConcurrentLinkedQueue<Compressor> pool = new ConcurrentLinkedQueue<>();
+
+    private static final AtomicLong framesCompressed = new AtomicLong();
+    private static final AtomicLong bytesIn = new AtomicLong();
+    private static final AtomicLong bytesOut = new AtomicLong();
+    private static final AtomicLong compressNanos = new AtomicLong();
+
+    // a deflater with the buffer it writes into, grown as needed and reused
+    private static class Compressor {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        byte[] buffer = new byte[8192];
+    }
+
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    public static void setThreshold(int bytes) {
+        threshold = bytes;
+    }
+
+    /**
+     * Method for compressing a frame
+     * @param raw the frame encoded in UTF-8
+     * @return the compressed frame, or null if compressing did not make it smaller
+     */
+    public static byte[] compress(byte[] raw) {
+        long start = System.nanoTime();
+        Compressor c = pool.poll();
+        if (c == null) {
+            c = new Compressor();
+        }
+        Deflater deflater = c.deflater;
+        deflater.setDictionary(DICTIONARY_BYTES);
+        deflater.setInput(raw);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == c.buffer.length) {
+                c.buffer = Arrays.copyOf(c.buffer, c.buffer.length * 2);
+            }
+            length += deflater.deflate(c.buffer, length, c.buffer.length - length);
+        }
+        byte[] compressed = length < raw.length ? Arrays.copyOf(c.buffer, length) : null;
+        deflater.reset();
+        if (pool.size() < MAX_POOLED) {
+            pool.add(c);
+        } else {
+            deflater.end();
+        }
+        framesCompressed.incrementAndGet();
+        bytesIn.addAndGet(raw.length);
+        bytesOut.addAndGet(compressed != null ? compressed.length : raw.length);
+        compressNanos.addAndGet(System.nanoTime() - start);
+        return compressed;
+    }
+
+    public static long getFramesCompressed() {
+        return framesCompressed.get();
+    }
+
+    public static long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public static long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public static long getCompressNanos() {
+        return compressNanos.get();
+    }
+}
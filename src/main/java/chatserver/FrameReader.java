@@ -0,0 +1,205 @@
+package chatserver;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UTFDataFormatException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reads the frames a client writes with writeUTF into a pooled buffer and parses each straight from the bytes, so
+ * reading a request allocates no byte array, char array or string for the frame; only the parsed request itself.
+ * Parsers are pooled as well, a new one allocates a 32KB lexer buffer. As a Reader it yields the characters of the
+ * current frame. Used by one thread, which must call close() to give the buffer back.
+ */
+public class FrameReader extends Reader {
+
+    private static final int INITIAL_CAPACITY = 2048; // kept while frames are small, a larger frame grows it
+    private static final int MAX_POOLED_PARSERS = 64;
+
+    private static final ConcurrentLinkedQueue<JSONParser> parsers = new ConcurrentLinkedQueue<>();
+
+    private final InputStream in;
+    private PooledBuffer buffer;
+    private int position = 0;    // next byte of the current frame to decode
+    private int frameStart = 0;  // first byte of the current frame, after its length
+    private int frameEnd = 0;    // end of the current frame
+    private int limit = 0;       // end of the bytes read from the stream
+
+    /**
+     * Constructor method for FrameReader
+     * @param in stream the frames are read from
+     */
+    public FrameReader(InputStream in) {
+        this.in = in;
+        this.buffer = BufferPool.acquire(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Method for waiting for the next frame, skipping whatever was not read of the current one
+     * @throws EOFException when the stream ended
+     * @throws IOException
+     */
+    public void next() throws IOException {
+        position = frameEnd;
+        if (position == limit && buffer.capacity() > INITIAL_CAPACITY) {
+            // nothing pending, the large buffer the last frames needed goes back
+            buffer.release();
+            buffer = BufferPool.acquire(INITIAL_CAPACITY);
+            position = limit = 0;
+        }
+        fill(2);
+        byte[] bytes = buffer.array();
+        int length = ((bytes[position] & 0xff) << 8) | (bytes[position + 1] & 0xff);
+        fill(2 + length);
+        frameStart = position + 2;
+        frameEnd = frameStart + length;
+        position = frameStart;
+    }
+
+    /**
+     * Method to judge whether another frame can be read without waiting, taking in what the stream has ready
+     * @return true if the whole next frame was received already
+     * @throws IOException
+     */
+    public boolean hasMore() throws IOException {
+        if (!frameBuffered() && limit < buffer.capacity()) {
+            int available = in.available();
+            if (available > 0) {
+                // the stream has these bytes ready, reading them does not wait
+                int read = in.read(buffer.array(), limit, Math.min(available, buffer.capacity() - limit));
+                if (read > 0) {
+                    limit += read;
+                }
+            }
+        }
+        return frameBuffered();
+    }
+
+    // whether the frame after the current one is wholly in the buffer
+    private boolean frameBuffered() {
+        if (limit - frameEnd < 2) {
+            return false;
+        }
+        byte[] bytes = buffer.array();
+        int length = ((bytes[frameEnd] & 0xff) << 8) | (bytes[frameEnd + 1] & 0xff);
+        return limit - frameEnd >= 2 + length;
+    }
+
+    // reads until count bytes from position on are in the buffer, moving or growing it as needed
+    private void fill(int count) throws IOException {
+        if (limit - position >= count) {
+            return;
+        }
+        if (position + count > buffer.capacity()) {
+            // move the pending bytes to the front, into a larger buffer when they would not fit
+            PooledBuffer target = count > buffer.capacity() ? BufferPool.acquire(count) : buffer;
+            System.arraycopy(buffer.array(), position, target.array(), 0, limit - position);
+            if (target != buffer) {
+                buffer.release();
+                buffer = target;
+            }
+            limit -= position;
+            frameStart = frameEnd = position = 0;
+        }
+        byte[] bytes = buffer.array();
+        while (limit - position < count) {
+            int read = in.read(bytes, limit, bytes.length - limit);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            limit += read;
+        }
+    }
+
+    /**
+     * Method for parsing the current frame
+     * @return the request, or null when the frame is not a JSON object
+     * @throws IOException when the frame is not valid modified UTF-8
+     */
+    public JSONObject parse() throws IOException {
+        JSONParser parser = parsers.poll();
+        if (parser == null) {
+            parser = new JSONParser();
+        }
+        try {
+            Object parsed = parser.parse(this);
+            return parsed instanceof JSONObject ? (JSONObject) parsed : null;
+        } catch (ParseException e) {
+            return null;
+        } finally {
+            // the pooled parser must not keep this reader reachable
+            parser.reset(null);
+            if (parsers.size() < MAX_POOLED_PARSERS) {
+                parsers.add(parser);
+            }
+        }
+    }
+
+    /**
+     * Method for getting the current frame as text, for the debug output
+     * @return the frame
+     * @throws IOException when the frame is not valid modified UTF-8
+     */
+    public String text() throws IOException {
+        int start = position;
+        position = frameStart;
+        char[] chars = new char[frameEnd - frameStart];
+        int length = Math.max(0, read(chars, 0, chars.length));
+        position = start;
+        return new String(chars, 0, length);
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) throws IOException {
+        if (position == frameEnd) {
+            return -1;
+        }
+        byte[] bytes = buffer.array();
+        int count = 0;
+        while (count < length && position < frameEnd) {
+            int b = bytes[position] & 0xff;
+            if (b < 0x80) {
+                chars[offset + count++] = (char) b;
+                position++;
+            } else if ((b & 0xe0) == 0xc0) {
+                if (position + 2 > frameEnd || (bytes[position + 1] & 0xc0) != 0x80) {
+                    throw malformed();
+                }
+                chars[offset + count++] = (char) (((b & 0x1f) << 6) | (bytes[position + 1] & 0x3f));
+                position += 2;
+            } else if ((b & 0xf0) == 0xe0) {
+                if (position + 3 > frameEnd
+                        || (bytes[position + 1] & 0xc0) != 0x80 || (bytes[position + 2] & 0xc0) != 0x80) {
+                    throw malformed();
+                }
+                chars[offset + count++] = (char) (((b & 0x0f) << 12) | ((bytes[position + 1] & 0x3f) << 6)
+                        | (bytes[position + 2] & 0x3f));
+                position += 3;
+            } else {
+                throw malformed();
+            }
+        }
+        return count;
+    }
+
+    private UTFDataFormatException malformed() {
+        return new UTFDataFormatException("malformed input around byte " + (position - frameStart));
+    }
+
+    /**
+     * Method for giving the buffer back, the reader cannot be used afterwards
+     */
+    @Override
+    public void close() {
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+
+/**
+ * Encodes frames into a pooled buffer and writes the buffer to the stream when it is full or flushed, in place of a
+ * buffered DataOutputStream: a frame is encoded as writeUTF would, straight from the string, with no array allocated
+ * for it. Used by one thread, which must call close() to give the buffer back.
+ */
+public class FrameWriter {
+
+    private static final int CAPACITY = 8192;
+    public static final int MAX_FRAME_LENGTH = 65535; // most bytes a frame can take encoded, its length is a short
+
+    private final OutputStream out;
+    private PooledBuffer buffer;
+    private int length = 0; // bytes in the buffer not written yet
+
+    /**
+     * Constructor method for FrameWriter
+     * @param out stream the frames are written to
+     */
+    public FrameWriter(OutputStream out) {
+        this.out = out;
+        this.buffer = BufferPool.acquire(CAPACITY);
+    }
+
+    /**
+     * Method for writing a frame as writeUTF does: its length in modified UTF-8 and the encoded characters
+     * @param text the frame
+     * @throws UTFDataFormatException when the frame is longer than 65535 bytes encoded
+     * @throws IOException
+     */
+    public void writeText(String text) throws IOException {
+        int chars = text.length();
+        int encoded = encodedLength(text);
+        if (encoded > MAX_FRAME_LENGTH) {
+            throw new UTFDataFormatException("frame too long: " + encoded + " bytes");
+        }
+        ensure(2);
+        byte[] bytes = buffer.array();
+        bytes[length++] = (byte) (encoded >>> 8);
+        bytes[length++] = (byte) encoded;
+        for (int i = 0; i < chars; i++) {
+            if (length > bytes.length - 3) {
+                drain();
+            }
+            char c = text.charAt(i);
+            if (c >= 1 && c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[length++] = (byte) (0xc0 | (c >> 6));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                bytes[length++] = (byte) (0xe0 | (c >> 12));
+                bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * Method for getting the length of a frame in modified UTF-8, as writeText encodes it
+     * @param text the frame
+     * @return length in bytes, more than MAX_FRAME_LENGTH when the frame cannot be written
+     */
+    public static int encodedLength(String text) {
+        int chars = text.length();
+        int encoded = 0;
+        for (int i = 0; i < chars; i++) {
+            char c = text.charAt(i);
+            encoded += c >= 1 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return encoded;
+    }
+
+    /**
+     * Method for writing a compressed frame: a zero length, the length of the frame in UTF-8, the length of the
+     * compressed frame and the compressed bytes
+     * @param rawLength length of the frame before compression
+     * @param compressed the compressed frame
+     * @throws IOException
+     */
+    public void writeCompressed(int rawLength, byte[] compressed) throws IOException {
+        ensure(10);
+        byte[] bytes = buffer.array();
+        bytes[length++] = 0;
+        bytes[length++] = 0;
+        putInt(bytes, rawLength);
+        putInt(bytes, compressed.length);
+        if (compressed.length <= bytes.length - length) {
+            System.arraycopy(compressed, 0, bytes, length, compressed.length);
+            length += compressed.length;
+        } else {
+            drain();
+            out.write(compressed);
+        }
+    }
+
+    private void putInt(byte[] bytes, int value) {
+        bytes[length++] = (byte) (value >>> 24);
+        bytes[length++] = (byte) (value >>> 16);
+        bytes[length++] = (byte) (value >>> 8);
+        bytes[length++] = (byte) value;
+    }
+
+    private void ensure(int count) throws IOException {
+        if (length > buffer.capacity() - count) {
+            drain();
+        }
+    }
+
+    // hands the buffered bytes to the stream
+    private void drain() throws IOException {
+        if (length > 0) {
+            out.write(buffer.array(), 0, length);
+            length = 0;
+        }
+    }
+
+    /**
+     * Method for writing out everything buffered
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Method for giving the buffer back, whatever was not flushed is dropped
+     */
+    public void close() {
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+    }
+}
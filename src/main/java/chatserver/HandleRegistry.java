@@ -0,0 +1,153 @@
+package chatserver;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives the identities of users or rooms int handles, so the server keeps and compares ints and turns them back into
+ * identities only for the messages it sends. A handle stays the same while it is in use, through renames and resumed
+ * sessions, and is reused once released. Identities are looked up in a hash map, handles index arrays; both are read
+ * without a lock, changes are made under the registry's lock. An identity is held by at most one handle.
+ * @param <T> what each handle stands for
+ */
+public class HandleRegistry<T> {
+
+    private final Map<String, Integer> handles = new ConcurrentHashMap<>(); // identity -> handle
+    // indexed by handle, null when the handle is free; replaced when grown, writing the fields again after changing
+    // an element publishes it to the readers, which read the fields first
+    private volatile Object[] values = new Object[64];
+    private volatile String[] identities = new String[64];
+    private int[] released = new int[16]; // handles free for reuse
+    private int releasedCount = 0;
+    private int next = 0;                  // lowest handle never used
+
+    /**
+     * Method for claiming an identity, unless another handle holds it
+     * @param identity the identity
+     * @param value what the handle stands for
+     * @return the new handle, or -1 if the identity is taken
+     */
+    public synchronized int claim(String identity, T value) {
+        if (handles.containsKey(identity)) {
+            return -1;
+        }
+        int handle = releasedCount > 0 ? released[--releasedCount] : next++;
+        if (handle == values.length) {
+            values = Arrays.copyOf(values, handle * 2);
+            identities = Arrays.copyOf(identities, handle * 2);
+        }
+        store(handle, identity, value);
+        handles.put(identity, handle);
+        return handle;
+    }
+
+    /**
+     * Method for giving a handle another identity, releasing the former one at the same time
+     * @param handle the handle
+     * @param identity the new identity
+     * @return false if another handle holds the new identity
+     */
+    public synchronized boolean rename(int handle, String identity) {
+        if (handles.putIfAbsent(identity, handle) != null) {
+            return false;
+        }
+        handles.remove(identities[handle]);
+        store(handle, identity, values[handle]);
+        return true;
+    }
+
+    /**
+     * Method for changing what a handle stands for, such as the connection of a resumed session
+     * @param handle the handle
+     * @param expected what the handle must stand for now
+     * @param value what it stands for from now on
+     * @return false if the handle stood for something else
+     */
+    public synchronized boolean replace(int handle, T expected, T value) {
+        if (handle < 0 || values[handle] != expected) {
+            return false;
+        }
+        store(handle, identities[handle], value);
+        return true;
+    }
+
+    /**
+     * Method for releasing a handle and its identity
+     * @param handle the handle
+     * @param expected what the handle must stand for
+     * @return false if the handle stood for something else, it is then kept
+     */
+    public synchronized boolean release(int handle, T expected) {
+        if (handle < 0 || values[handle] != expected) {
+            return false;
+        }
+        handles.remove(identities[handle]);
+        store(handle, null, null);
+        if (releasedCount == released.length) {
+            released = Arrays.copyOf(released, releasedCount * 2);
+        }
+        released[releasedCount++] = handle;
+        return true;
+    }
+
+    private void store(int handle, String identity, Object value) {
+        Object[] v = values;
+        String[] n = identities;
+        v[handle] = value;
+        n[handle] = identity;
+        values = v;
+        identities = n;
+    }
+
+    /**
+     * Method for getting what a handle stands for
+     * @param handle the handle
+     * @return the value, null when the handle is free
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int handle) {
+        Object[] v = values;
+        return handle >= 0 && handle < v.length ? (T) v[handle] : null;
+    }
+
+    /**
+     * Method for getting the identity of a handle, for the messages sent
+     * @param handle the handle
+     * @return the identity, null when the handle is free
+     */
+    public String identityOf(int handle) {
+        String[] n = identities;
+        return handle >= 0 && handle < n.length ? n[handle] : null;
+    }
+
+    /**
+     * Method for getting the handle of an identity, for the requests received
+     * @param identity the identity
+     * @return the handle, or -1 when no handle holds the identity
+     */
+    public int lookup(String identity) {
+        Integer handle = identity == null ? null : handles.get(identity);
+        return handle == null ? -1 : handle;
+    }
+
+    /**
+     * Method for getting what the handle of an identity stands for
+     * @param identity the identity
+     * @return the value, null when no handle holds the identity
+     */
+    public T find(String identity) {
+        int handle = lookup(identity);
+        T value = get(handle);
+        // the handle may have been released and claimed again in between
+        return identity != null && identity.equals(identityOf(handle)) ? value : null;
+    }
+
+    public boolean contains(String identity) {
+        return handles.containsKey(identity);
+    }
+
+    public int size() {
+        return handles.size();
+    }
+}
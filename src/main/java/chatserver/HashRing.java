@@ -0,0 +1,82 @@
+package chatserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring placing every room on one node of the cluster. Each node owns many points (virtual nodes)
+ * spread over the ring and a room belongs to the first point at or after its own hash, so a node joining or
+ * leaving only moves the rooms between its points and their neighbours, about 1/N of all rooms.
+ * Lookups read an immutable copy of the ring and never block; changes replace the copy.
+ */
+public class HashRing {
+
+    private static final int VIRTUAL_NODES = 160; // points per node, keeps the share of each node within a few percent
+
+    private volatile TreeMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * Method for adding a node and its points to the ring
+     * @param node node identity
+     * @return false if the node was already on the ring
+     */
+    public synchronized boolean add(String node) {
+        if (ring.containsValue(node)) {
+            return false;
+        }
+        TreeMap<Long, String> updated = new TreeMap<>(ring);
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            updated.put(hash(node + "#" + i), node);
+        }
+        ring = updated;
+        return true;
+    }
+
+    /**
+     * Method for removing a node and its points from the ring
+     * @param node node identity
+     * @return false if the node was not on the ring
+     */
+    public synchronized boolean remove(String node) {
+        TreeMap<Long, String> updated = new TreeMap<>(ring);
+        if (!updated.values().removeIf(node::equals)) {
+            return false;
+        }
+        ring = updated;
+        return true;
+    }
+
+    /**
+     * Method for finding the node a room is placed on
+     * @param roomId room identity
+     * @return node identity, or null while the ring is empty
+     */
+    public String nodeFor(String roomId) {
+        TreeMap<Long, String> current = ring;
+        if (current.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = current.ceilingEntry(hash(roomId));
+        return point != null ? point.getValue() : current.firstEntry().getValue();
+    }
+
+    /**
+     * 64 bit FNV-1a of the UTF-8 bytes, followed by a final mix so similar names land far apart on the ring
+     * @param key room or virtual node name
+     * @return position on the ring
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
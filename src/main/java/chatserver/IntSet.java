@@ -0,0 +1,145 @@
+package chatserver;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A set of non-negative ints, the handles of users or rooms, in an open addressing hash table of primitive ints:
+ * no object per element, and a membership check is a few array reads. Kept at most half full, so probes stay short.
+ * Not thread safe, the owner guards it.
+ */
+public class IntSet {
+
+    private static final int EMPTY = LinearProbing.EMPTY;
+
+    private int[] slots;
+    private int mask;
+    private int size = 0;
+    private final IntUnaryOperator home = this::home; // made once, removing allocates nothing
+
+    /**
+     * Constructor method for IntSet
+     */
+    public IntSet() {
+        this(8);
+    }
+
+    /**
+     * Constructor method for IntSet
+     * @param expected number of elements expected, the set grows beyond it as needed
+     */
+    public IntSet(int expected) {
+        allocate(Integer.highestOneBit(Math.max(expected, 4) * 4 - 1));
+    }
+
+    private void allocate(int tableSize) {
+        slots = new int[tableSize];
+        mask = tableSize - 1;
+        Arrays.fill(slots, EMPTY);
+    }
+
+    /**
+     * Method for adding an element
+     * @param value a non-negative int
+     * @return false if it was already in the set
+     */
+    public boolean add(int value) {
+        int slot = find(value);
+        if (slots[slot] == value) {
+            return false;
+        }
+        slots[slot] = value;
+        if (++size * 2 > slots.length) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Method for adding every element of another set
+     * @param other the other set
+     */
+    public void addAll(IntSet other) {
+        for (int value : other.slots) {
+            if (value != EMPTY) {
+                add(value);
+            }
+        }
+    }
+
+    /**
+     * Method for removing an element
+     * @param value a non-negative int
+     * @return false if it was not in the set
+     */
+    public boolean remove(int value) {
+        int slot = find(value);
+        if (slots[slot] != value) {
+            return false;
+        }
+        size--;
+        LinearProbing.remove(slots, slot, home);
+        return true;
+    }
+
+    public boolean contains(int value) {
+        return slots[find(value)] == value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Method for removing every element, keeping the table
+     */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(slots, EMPTY);
+            size = 0;
+        }
+    }
+
+    /**
+     * Method for copying the elements into an array
+     * @return the elements, in no particular order
+     */
+    public int[] toArray() {
+        int[] values = new int[size];
+        int count = 0;
+        for (int value : slots) {
+            if (value != EMPTY) {
+                values[count++] = value;
+            }
+        }
+        return values;
+    }
+
+    // slot holding the value, or the empty slot where it would go
+    private int find(int value) {
+        int slot = home(value);
+        while (slots[slot] != EMPTY && slots[slot] != value) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int home(int value) {
+        int h = value * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void grow() {
+        int[] old = slots;
+        allocate(old.length * 2);
+        for (int value : old) {
+            if (value != EMPTY) {
+                slots[find(value)] = value;
+            }
+        }
+    }
+}
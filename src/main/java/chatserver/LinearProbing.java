@@ -0,0 +1,43 @@
+package chatserver;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Deletion from the open addressing hash tables of primitive ints used by IntSet and MessageIdWindow: linear
+ * probing, a power of two slots, EMPTY marking a free slot.
+ */
+final class LinearProbing {
+
+    static final int EMPTY = -1;
+
+    private LinearProbing() {
+    }
+
+    /**
+     * Method for emptying a slot, moving back the entries after it which would no longer be found
+     * @param slots the table
+     * @param slot the slot to empty
+     * @param home the slot each entry hashes to, given the entry
+     */
+    static void remove(int[] slots, int slot, IntUnaryOperator home) {
+        int mask = slots.length - 1;
+        int free = slot;
+        int probe = slot;
+        while (true) {
+            probe = (probe + 1) & mask;
+            if (slots[probe] == EMPTY) {
+                break;
+            }
+            int entryHome = home.applyAsInt(slots[probe]);
+            // the entry may move into the free slot unless its home lies cyclically in (free, probe]
+            boolean stays = free <= probe
+                    ? free < entryHome && entryHome <= probe
+                    : free < entryHome || entryHome <= probe;
+            if (!stays) {
+                slots[free] = slots[probe];
+                free = probe;
+            }
+        }
+        slots[free] = EMPTY;
+    }
+}
@@ -0,0 +1,51 @@
+package chatserver;
+
+/**
+ * Verbosity of the server output, which can be changed while running. Every frame received is printed at the debug
+ * level only, on a busy server writing them all to the terminal costs more than handling them.
+ */
+public class Log {
+
+    public static final int ERROR = 0;  // failures only
+    public static final int INFO = 1;   // connections, sessions and reports
+    public static final int DEBUG = 2;  // every frame received as well
+
+    private static final String[] NAMES = {"error", "info", "debug"};
+
+    private static volatile int level = INFO;
+
+    /**
+     * Method for changing the verbosity
+     * @param name error, info or debug
+     * @return false if the name is not a known level, the verbosity is then unchanged
+     */
+    public static boolean setLevel(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name)) {
+                level = i;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static String getLevel() {
+        return NAMES[level];
+    }
+
+    public static boolean isEnabled(int atLevel) {
+        return level >= atLevel;
+    }
+
+    public static void info(String line) {
+        if (level >= INFO) {
+            System.out.println(line);
+        }
+    }
+
+    public static void debug(String line) {
+        if (level >= DEBUG) {
+            System.out.println(line);
+        }
+    }
+}
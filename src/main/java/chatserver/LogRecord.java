@@ -0,0 +1,32 @@
+package chatserver;
+
+public class LogRecord {
+
+    private final long offset;      // position of the record within its room's log
+    private final long timestamp;   // time when the message was broadcast
+    private final String message;   // JSON encoded chat message
+
+    /**
+     * Constructor method for LogRecord
+     * @param offset offset of the record
+     * @param timestamp time when the message was broadcast
+     * @param message JSON encoded chat message
+     */
+    public LogRecord(long offset, long timestamp, String message) {
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.message = message;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,246 @@
+package chatserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+public class LogSegment {
+
+    // every record is laid out as [int payload size][long offset][long timestamp][payload bytes]
+    protected static final int RECORD_HEADER_SIZE = 4 + 8 + 8;
+    // every index entry is the int position of one record, entry i belongs to offset baseOffset + i
+    private static final int INDEX_ENTRY_SIZE = 4;
+
+    private final long baseOffset;          // offset of the first record stored in this segment
+    private final File file;                // segment file on disk
+    private final File indexFile;           // offset index file next to the segment
+    private final int capacity;             // size of the mapped region in bytes
+    // memory mapped views of the whole segment and of its offset index, mapped on first read for a sealed segment;
+    // the channels are closed once mapped, a mapping stays valid without them and no file descriptor is kept
+    private volatile MappedByteBuffer buffer;
+    private volatile MappedByteBuffer index;
+    private int position;                   // write position, also the logical size of the segment
+    // published after a record and its index entry are fully written, so readers never see half a record
+    private volatile long nextOffset;
+    private volatile long lastTimestamp;    // timestamp of the latest record, used by age based retention
+    private boolean dirty = false;          // whether there are appended bytes not forced to disk yet
+
+    /**
+     * Constructor method for LogSegment, maps the segment and its index and recovers the write position
+     * @param file segment file, created if it does not exist
+     * @param baseOffset offset of the first record in this segment
+     * @param capacity size of the mapped region in bytes
+     * @throws IOException
+     */
+    public LogSegment(File file, long baseOffset, int capacity) throws IOException {
+        this.file = file;
+        this.indexFile = new File(file.getParentFile(), file.getName().replace(".log", ".idx"));
+        this.baseOffset = baseOffset;
+        this.capacity = capacity;
+        this.nextOffset = baseOffset;
+        this.lastTimestamp = file.lastModified();
+        map();
+        recover();
+    }
+
+    /**
+     * Constructor method for LogSegment, for a sealed segment of a previous run which is only mapped when first read
+     * (its size is the size of the file until then, its last timestamp the time the file was last written)
+     * @param file segment file
+     * @param baseOffset offset of the first record in this segment
+     * @param nextOffset base offset of the segment after it
+     */
+    public LogSegment(File file, long baseOffset, long nextOffset) {
+        this.file = file;
+        this.indexFile = new File(file.getParentFile(), file.getName().replace(".log", ".idx"));
+        this.baseOffset = baseOffset;
+        this.capacity = 0;
+        this.nextOffset = nextOffset;
+        this.lastTimestamp = file.lastModified();
+        this.position = (int) Math.min(file.length(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Method for mapping the segment and its index, unless they are mapped already
+     * @throws IOException
+     */
+    private synchronized void map() throws IOException {
+        if (index != null) {
+            return;
+        }
+        MappedByteBuffer mapped;
+        try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+            int size = (int) Math.max(capacity, channel.size());
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        // one entry per record is enough even if every record has an empty payload
+        try (FileChannel indexChannel = new RandomAccessFile(indexFile, "rw").getChannel()) {
+            buffer = mapped;
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) (mapped.capacity() / RECORD_HEADER_SIZE + 1) * INDEX_ENTRY_SIZE);
+        }
+    }
+
+    // the mapped index of a segment being read, mapping a sealed segment on first use
+    private MappedByteBuffer mappedIndex() {
+        if (index == null) {
+            try {
+                map();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Method for scanning the existing records to find where the next record should be written, the index is
+     * rewritten on the way so it always matches the segment (a zero size header marks the unused tail)
+     */
+    private void recover() {
+        int pos = 0;
+        long offset = baseOffset;
+        while (pos + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int size = buffer.getInt(pos);
+            if (size <= 0 || pos + RECORD_HEADER_SIZE + size > buffer.capacity()) {
+                break;
+            }
+            index.putInt((int) (offset - baseOffset) * INDEX_ENTRY_SIZE, pos);
+            offset = buffer.getLong(pos + 4) + 1;
+            lastTimestamp = buffer.getLong(pos + 12);
+            pos += RECORD_HEADER_SIZE + size;
+        }
+        position = pos;
+        nextOffset = offset;
+    }
+
+    /**
+     * Method for appending one record at the end of this segment
+     * @param timestamp time when the message was broadcast
+     * @param payload encoded message
+     * @return the offset of the record, or -1 when the segment does not have enough space left
+     */
+    public long append(long timestamp, byte[] payload) {
+        if (position + RECORD_HEADER_SIZE + payload.length > buffer.capacity()) {
+            return -1;
+        }
+        long offset = nextOffset;
+        // write the body first and the size last, so a torn write is never mistaken for a record
+        buffer.putLong(position + 4, offset);
+        buffer.putLong(position + 12, timestamp);
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.put(payload);
+        buffer.putInt(position, payload.length);
+        index.putInt((int) (offset - baseOffset) * INDEX_ENTRY_SIZE, position);
+        position += RECORD_HEADER_SIZE + payload.length;
+        lastTimestamp = timestamp;
+        nextOffset = offset + 1;
+        dirty = true;
+        return offset;
+    }
+
+    /**
+     * Method for finding where a record starts through the offset index
+     * @param offset offset of the record, must be within this segment
+     * @return byte position of the record in the segment
+     */
+    private int positionOf(long offset) {
+        return mappedIndex().getInt((int) (offset - baseOffset) * INDEX_ENTRY_SIZE);
+    }
+
+    /**
+     * Method for getting the timestamp of a record
+     * @param offset offset of the record, must be within this segment
+     * @return time when the message was broadcast
+     */
+    public long timestampAt(long offset) {
+        int pos = positionOf(offset);
+        return buffer.getLong(pos + 12);
+    }
+
+    /**
+     * Method for reading one record, can be called from any thread while the writer keeps appending
+     * @param offset offset of the record, must be within this segment
+     * @return the record
+     */
+    public LogRecord read(long offset) {
+        int pos = positionOf(offset);
+        int size = buffer.getInt(pos);
+        long timestamp = buffer.getLong(pos + 12);
+        byte[] payload = new byte[size];
+        ByteBuffer view = buffer.duplicate();
+        view.position(pos + RECORD_HEADER_SIZE);
+        view.get(payload);
+        return new LogRecord(offset, timestamp, new String(payload, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Method for finding the first record written at or after a given time by a binary search over the index
+     * @param since time in milliseconds
+     * @return offset of the first such record, or the next offset if there is none
+     */
+    public long offsetAtTime(long since) {
+        long low = baseOffset;
+        long high = nextOffset;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (timestampAt(mid) < since) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Method for flushing the appended records of this segment and its index to disk
+     */
+    public void force() {
+        if (dirty) {
+            buffer.force();
+            index.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Method for closing the segment, the mapping itself is released once no reader refers to it any more
+     */
+    public void close() {
+        force();
+    }
+
+    /**
+     * Method for removing the segment file and its index from disk
+     */
+    public void delete() {
+        file.delete();
+        indexFile.delete();
+    }
+
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public int sizeInBytes() {
+        return position;
+    }
+
+    public boolean isEmpty() {
+        return nextOffset == baseOffset;
+    }
+}
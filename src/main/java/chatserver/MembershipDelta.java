@@ -0,0 +1,92 @@
+package chatserver;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Membership changes of one room since its watchers were last told, coalesced so that each user is mentioned at most
+ * once: a user who joins and leaves within one tick is not mentioned at all, and a user renamed twice is renamed once.
+ * Applied to the members the watchers knew in the order left, renamed, joined, the changes give the current members.
+ * Not thread safe, the room guards it.
+ */
+public class MembershipDelta {
+
+    private final Set<String> joined = new LinkedHashSet<>();       // users who were not members before
+    private final Set<String> left = new LinkedHashSet<>();         // former members, by their former identity
+    private final Map<String, String> renamed = new LinkedHashMap<>(); // current identity -> former identity
+
+    /**
+     * Method for recording a user who joined the room
+     * @param userId user identity
+     */
+    public void joined(String userId) {
+        // a member who left and one with the same identity came back leaves the members as they were
+        if (!left.remove(userId)) {
+            joined.add(userId);
+        }
+    }
+
+    /**
+     * Method for recording a member who left the room
+     * @param userId user identity
+     */
+    public void left(String userId) {
+        if (joined.remove(userId)) {
+            return;
+        }
+        String former = renamed.remove(userId);
+        left.add(former != null ? former : userId);
+    }
+
+    /**
+     * Method for recording a member who changed identity
+     * @param formerId former user identity
+     * @param newId new user identity
+     */
+    public void renamed(String formerId, String newId) {
+        if (joined.remove(formerId)) {
+            joined.add(newId);
+            return;
+        }
+        String former = renamed.remove(formerId);
+        if (former == null) {
+            former = formerId;
+        }
+        if (!former.equals(newId)) {
+            renamed.put(newId, former);
+        }
+    }
+
+    /**
+     * Method to judge whether anything changed since the delta was last taken
+     * @return true if there is nothing to tell
+     */
+    public boolean isEmpty() {
+        return joined.isEmpty() && left.isEmpty() && renamed.isEmpty();
+    }
+
+    /**
+     * Method for encoding the changes as one roomdelta message and starting over empty
+     * @param roomId room identity
+     * @return JSON format encoded text
+     */
+    public String take(String roomId) {
+        JSONArray joinedIds = new JSONArray();
+        joinedIds.addAll(joined);
+        JSONArray leftIds = new JSONArray();
+        leftIds.addAll(left);
+        JSONObject renamedIds = new JSONObject();
+        for (Map.Entry<String, String> rename : renamed.entrySet()) {
+            renamedIds.put(rename.getValue(), rename.getKey());
+        }
+        joined.clear();
+        left.clear();
+        renamed.clear();
+        return new ServerMessage().roomDelta(roomId, joinedIds, leftIds, renamedIds);
+    }
+}
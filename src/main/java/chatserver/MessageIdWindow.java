@@ -0,0 +1,90 @@
+package chatserver;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The message identities one sender used most recently, to drop the messages a client sends again after a
+ * connection hiccup. Holds at most a fixed number of identities, each for a limited time: a ring of identities in the
+ * order they were seen, indexed by an open addressing hash table of primitive ints, so memory stays the same
+ * (about 20 bytes per entry) however many messages go through and nothing is allocated per message.
+ */
+public class MessageIdWindow {
+
+    private static final int EMPTY = LinearProbing.EMPTY;
+
+    private final long windowMillis;  // how long an identity is remembered
+    private final long[] ids;         // ring of identities, oldest at next once full
+    private final int[] seenAt;       // when each identity was seen, the low bits of the time in milliseconds
+    private final int[] slots;        // hash table of ring positions, EMPTY when free
+    private final int mask;
+    private int next = 0;             // ring position written next
+    private int size = 0;             // identities in the ring
+    // home slot of the identity at a ring position, made once so forgetting an identity allocates nothing
+    private final IntUnaryOperator homeOfPosition;
+
+    /**
+     * Constructor method for MessageIdWindow
+     * @param capacity most identities remembered, at least 1
+     * @param windowMillis how long an identity is remembered
+     */
+    public MessageIdWindow(int capacity, long windowMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("A message identity window holds at least one identity");
+        }
+        this.windowMillis = windowMillis;
+        ids = new long[capacity];
+        seenAt = new int[capacity];
+        // at most half full, so probes stay short
+        int tableSize = Integer.highestOneBit(capacity * 4 - 1);
+        slots = new int[tableSize];
+        mask = tableSize - 1;
+        Arrays.fill(slots, EMPTY);
+        homeOfPosition = position -> home(ids[position]);
+    }
+
+    /**
+     * Method for recording a message identity
+     * @param id message identity given by the client
+     * @return false if the identity was already seen within the window, the message is a retransmission
+     */
+    public synchronized boolean add(long id) {
+        // differences of the truncated times are right for anything seen less than 24 days ago
+        int now = (int) System.currentTimeMillis();
+        int slot = find(id);
+        if (slots[slot] != EMPTY) {
+            int position = slots[slot];
+            if (now - seenAt[position] <= windowMillis) {
+                return false;
+            }
+            // seen too long ago to count, remembered again from now on
+            seenAt[position] = now;
+            return true;
+        }
+        if (size == ids.length) {
+            // forget the oldest identity to make room
+            LinearProbing.remove(slots, find(ids[next]), homeOfPosition);
+        } else {
+            size++;
+        }
+        ids[next] = id;
+        seenAt[next] = now;
+        slots[find(id)] = next;
+        next = next + 1 == ids.length ? 0 : next + 1;
+        return true;
+    }
+
+    // slot holding the identity, or the empty slot where it would go
+    private int find(long id) {
+        int slot = home(id);
+        while (slots[slot] != EMPTY && ids[slots[slot]] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int home(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
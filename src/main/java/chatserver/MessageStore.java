@@ -0,0 +1,381 @@
+package chatserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class MessageStore {
+
+    private static final int MAX_BATCH = 1024;              // most appends written in one pass of the writer
+    private static final long RETENTION_CHECK_MILLIS = 10_000; // how often retention limits are enforced
+    private static final long LOG_IDLE_MILLIS = 60_000;        // a room's log unused this long is closed
+    private static final int HISTORY_BATCH_RECORDS = 100;     // most messages in one history frame
+    // most payload bytes in one history frame, keeps the frame well below the 64KB limit of writeUTF
+    private static final int HISTORY_BATCH_BYTES = 32 * 1024;
+    private static final int MAX_HISTORY_RECORDS = 10_000;  // most messages one history request replays
+    // the next history frame waits while this many frames are queued for the user, so live messages go first
+    private static final int HISTORY_QUEUE_LIMIT = 8;
+    private static final long HISTORY_RETRY_MILLIS = 20;       // how soon a waiting replay looks at the queue again
+    private static final long HISTORY_STALL_MILLIS = 30_000;   // a replay waiting this long for the user is dropped
+
+    private final File baseDirectory;   // each room gets a sub directory named after the room
+    private final int segmentSize;      // capacity of each log segment in bytes
+    private final long retainBytes;     // size budget of each room's log, 0 means no limit
+    private final long retainMillis;    // age limit of records, 0 means no limit
+    private volatile long fsyncMillis;  // group commit window, all appends within it share one fsync
+
+    // appends handed over by broadcasting threads, only the writer thread writes into the logs
+    private final LinkedBlockingQueue<PendingAppend> queue = new LinkedBlockingQueue<>();
+    private final Map<String, RoomLog> logs = new ConcurrentHashMap<>();
+    private final Thread writer = new Thread(this::runWriter, "message-store-writer");
+    // history replays run here one batch at a time, so neither the request threads nor the writer wait on them
+    private final ScheduledExecutorService historyReaders = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "message-store-history");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean running = true;
+
+    /**
+     * A message waiting to be appended to a room's log (a null payload means the room's log should be removed)
+     */
+    private static class PendingAppend {
+        final String roomId;
+        final long timestamp;
+        final String message;
+
+        PendingAppend(String roomId, long timestamp, String message) {
+            this.roomId = roomId;
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Constructor method for MessageStore
+     * @param baseDirectory directory holding the logs of all rooms
+     * @param segmentSize capacity of each log segment in bytes
+     * @param retainBytes size budget of each room's log, 0 means no limit
+     * @param retainMillis age limit of records, 0 means no limit
+     * @param fsyncMillis group commit window in milliseconds
+     */
+    public MessageStore(File baseDirectory, int segmentSize, long retainBytes, long retainMillis, long fsyncMillis) {
+        this.baseDirectory = baseDirectory;
+        this.segmentSize = segmentSize;
+        this.retainBytes = retainBytes;
+        this.retainMillis = retainMillis;
+        this.fsyncMillis = Math.max(1, fsyncMillis);
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Method for starting the background writer thread
+     */
+    public void start() {
+        writer.start();
+    }
+
+    /**
+     * Method for changing the group commit window while running, taking effect from the next window
+     * @param fsyncMillis group commit window in milliseconds
+     */
+    public void setFsyncMillis(long fsyncMillis) {
+        this.fsyncMillis = Math.max(1, fsyncMillis);
+    }
+
+    public long getFsyncMillis() {
+        return fsyncMillis;
+    }
+
+    /**
+     * Method for recording a chat message broadcast in a room, only a queue insertion on the caller's thread
+     * @param roomId room identity
+     * @param message JSON encoded chat message
+     */
+    public void append(String roomId, String message) {
+        if (running) {
+            queue.add(new PendingAppend(roomId, System.currentTimeMillis(), message));
+        }
+    }
+
+    /**
+     * Method for removing the log of a deleted room, so a new room with the same name starts empty
+     * @param roomId room identity
+     */
+    public void deleteRoom(String roomId) {
+        if (running) {
+            queue.add(new PendingAppend(roomId, System.currentTimeMillis(), null));
+        }
+    }
+
+    /**
+     * Method for streaming the latest messages of a room to a user
+     * @param conn connection of the user who asked for the history
+     * @param requestId identity of the request, echoed in every history frame (null when none was given)
+     * @param roomId room identity
+     * @param count how many messages to send at most, no more than MAX_HISTORY_RECORDS are sent
+     */
+    public void replayLast(Connection conn, Object requestId, String roomId, int count) {
+        schedule(new HistoryReplay(conn, requestId, roomId, count, 0));
+    }
+
+    /**
+     * Method for streaming the messages of a room written since a given time to a user
+     * @param conn connection of the user who asked for the history
+     * @param requestId identity of the request, echoed in every history frame (null when none was given)
+     * @param roomId room identity
+     * @param since time in milliseconds, no more than the latest MAX_HISTORY_RECORDS messages are sent
+     */
+    public void replaySince(Connection conn, Object requestId, String roomId, long since) {
+        schedule(new HistoryReplay(conn, requestId, roomId, -1, since));
+    }
+
+    /**
+     * Method for handing a replay's next batch to the history readers; once the store is closed the replay is
+     * ended with an empty batch instead, so the user still gets an answer
+     * @param replay the replay to run
+     */
+    private void schedule(HistoryReplay replay) {
+        schedule(replay, 0);
+    }
+
+    /**
+     * Method for handing a replay's next batch to the history readers after a delay
+     * @param replay the replay to run
+     * @param delayMillis how long to wait first
+     */
+    private void schedule(HistoryReplay replay, long delayMillis) {
+        try {
+            historyReaders.schedule(replay, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            try {
+                replay.conn.reply(new ServerMessage().history(replay.roomId, new ArrayList<>(), false),
+                        replay.requestId);
+            } catch (IOException ex) {
+                System.out.println("Error in sending history of room " + replay.roomId + " to "
+                        + replay.conn.getUserId());
+            }
+        }
+    }
+
+    /**
+     * A history request in progress, each run sends one batch and queues the next one behind other replays
+     */
+    private class HistoryReplay implements Runnable {
+        final Connection conn;
+        final Object requestId;
+        final String roomId;
+        final int count;    // how many of the latest messages were asked for, -1 when asked by time
+        final long since;   // earliest time asked for when count is -1
+        RoomLog log;        // located on the first run
+        long next;          // offset of the next record to send
+        long end;           // messages from this offset on were broadcast after the request and arrive live
+        long waitingSince;  // when the replay started waiting for the user's queue to shrink, 0 when not waiting
+
+        HistoryReplay(Connection conn, Object requestId, String roomId, int count, long since) {
+            this.conn = conn;
+            this.requestId = requestId;
+            this.roomId = roomId;
+            this.count = count;
+            this.since = since;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (log == null) {
+                    log = existingLog(roomId);
+                    if (log == null) {
+                        // nothing was ever said in the room, no log is opened for it
+                        conn.reply(new ServerMessage().history(roomId, new ArrayList<>(), false), requestId);
+                        return;
+                    }
+                    end = log.getNextOffset();
+                    next = count >= 0 ? end - Math.min(count, MAX_HISTORY_RECORDS) : log.offsetAtTime(since);
+                    next = Math.max(next, Math.max(end - MAX_HISTORY_RECORDS, log.getFirstOffset()));
+                } else if (conn.getQueueDepth() >= HISTORY_QUEUE_LIMIT) {
+                    // the user is still behind on what was sent, live messages are not queued behind the history
+                    long now = System.currentTimeMillis();
+                    if (waitingSince == 0) {
+                        waitingSince = now;
+                    } else if (now - waitingSince > HISTORY_STALL_MILLIS) {
+                        System.out.println("History of room " + roomId + " to " + conn.getUserId()
+                                + " dropped, the user is not reading");
+                        return;
+                    }
+                    schedule(this, HISTORY_RETRY_MILLIS);
+                    return;
+                }
+                waitingSince = 0;
+                int limit = (int) Math.min(HISTORY_BATCH_RECORDS, Math.max(end - next, 0));
+                List<LogRecord> records = limit > 0
+                        ? log.read(next, limit, HISTORY_BATCH_BYTES) : new ArrayList<>();
+                if (!records.isEmpty()) {
+                    next = records.get(records.size() - 1).getOffset() + 1;
+                }
+                boolean more = !records.isEmpty() && next < end;
+                String frame = new ServerMessage().history(roomId, records, more);
+                conn.reply(frame, requestId);
+                if (more) {
+                    schedule(this);
+                }
+            } catch (IOException e) {
+                System.out.println("Error in sending history of room " + roomId + " to " + conn.getUserId());
+            } catch (RuntimeException e) {
+                // the log could not be opened, or was removed together with its room while being read
+                System.out.println("History of room " + roomId + " is no longer available");
+            }
+        }
+    }
+
+    /**
+     * Method for stopping the writer after it has written and synced everything already queued
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        historyReaders.shutdownNow();
+        running = false;
+        writer.interrupt();
+        writer.join();
+    }
+
+    /**
+     * Method for getting the log of a room, opening it on first use (by either the writer or a history reader)
+     * @param roomId room identity
+     * @return the room's log
+     * @throws UncheckedIOException if the log cannot be opened
+     */
+    private RoomLog log(String roomId) {
+        return logs.computeIfAbsent(roomId, id -> {
+            try {
+                return new RoomLog(new File(baseDirectory, id), segmentSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Method for getting the log of a room for reading, without creating one for a room which has none
+     * @param roomId room identity
+     * @return the room's log, or null when there is none
+     * @throws UncheckedIOException if the log cannot be opened
+     */
+    private RoomLog existingLog(String roomId) {
+        RoomLog log = logs.get(roomId);
+        if (log == null && RoomLog.exists(new File(baseDirectory, roomId))) {
+            log = log(roomId);
+        }
+        return log;
+    }
+
+    /**
+     * Method for writing one batch of queued appends into the mapped segments
+     * @param batch appends taken from the queue
+     */
+    private void write(List<PendingAppend> batch) {
+        for (PendingAppend pending : batch) {
+            try {
+                if (pending.message == null) {
+                    // the log may not be open, or may not exist at all
+                    RoomLog removed = logs.remove(pending.roomId);
+                    if (removed != null) {
+                        removed.delete();
+                    } else {
+                        RoomLog.removeFiles(new File(baseDirectory, pending.roomId));
+                    }
+                } else {
+                    byte[] payload = pending.message.getBytes(StandardCharsets.UTF_8);
+                    log(pending.roomId).append(pending.timestamp, payload);
+                }
+            } catch (IOException | UncheckedIOException e) {
+                System.out.println("Error in writing message log of room " + pending.roomId);
+                e.printStackTrace();
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Method for forcing every log with pending writes to disk (one fsync covers the whole window)
+     */
+    private void sync() {
+        for (RoomLog log : logs.values()) {
+            log.force();
+        }
+    }
+
+    /**
+     * Method for removing segments outside of the configured retention limits
+     */
+    private void enforceRetention() {
+        if (retainBytes <= 0 && retainMillis <= 0) {
+            return;
+        }
+        for (RoomLog log : logs.values()) {
+            log.enforceRetention(retainBytes, retainMillis);
+        }
+    }
+
+    /**
+     * Method for closing the logs of rooms which were neither written nor read for a while, so only the rooms in
+     * use keep mapped segments; a log is opened again on its next use
+     */
+    private void closeIdleLogs() {
+        long idleSince = System.currentTimeMillis() - LOG_IDLE_MILLIS;
+        Iterator<RoomLog> it = logs.values().iterator();
+        while (it.hasNext()) {
+            RoomLog log = it.next();
+            if (log.getLastUsed() < idleSince) {
+                // only this thread writes, a history reader still holding the log keeps reading its mappings
+                it.remove();
+                log.close();
+            }
+        }
+    }
+
+    // drain the queue in batches, and fsync once per group commit window
+    private void runWriter() {
+        List<PendingAppend> batch = new ArrayList<>(MAX_BATCH);
+        long lastSync = System.currentTimeMillis();
+        long lastRetention = lastSync;
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingAppend first = queue.poll(fsyncMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    write(batch);
+                }
+            } catch (InterruptedException e) {
+                // woken up by close(), keep draining what is left in the queue
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastSync >= fsyncMillis) {
+                sync();
+                lastSync = now;
+            }
+            if (now - lastRetention >= RETENTION_CHECK_MILLIS) {
+                enforceRetention();
+                closeIdleLogs();
+                lastRetention = now;
+            }
+        }
+        sync();
+        for (RoomLog log : logs.values()) {
+            log.close();
+        }
+        logs.clear();
+    }
+}
@@ -0,0 +1,32 @@
+package chatserver;
+
+/**
+ * A byte buffer borrowed from the BufferPool, which its owner must release once done with it and not touch after.
+ */
+public class PooledBuffer {
+
+    private final byte[] array;       // the bytes, reused by the next owner once released
+    final int sizeClass;              // index of the size class, -1 for a buffer too large to be pooled
+    BufferPool.LeakRecord leak;       // where the buffer was acquired, only while leaks are tracked
+    boolean released = false;         // returned to the pool, guards against releasing it twice
+
+    PooledBuffer(byte[] array, int sizeClass) {
+        this.array = array;
+        this.sizeClass = sizeClass;
+    }
+
+    public byte[] array() {
+        return array;
+    }
+
+    public int capacity() {
+        return array.length;
+    }
+
+    /**
+     * Method for giving the buffer back to the pool
+     */
+    public void release() {
+        BufferPool.release(this);
+    }
+}
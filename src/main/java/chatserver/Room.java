@@ -2,23 +2,52 @@ package chatserver;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Room {
 
+    private static final int ROOM_CHANGE_CHUNK = 1000; // most users in one room change of users moved together
+    private static final AtomicLong instances = new AtomicLong(); // rooms created so far, numbers the lock order
+
     private String roomID; // room identity
-    private String owner;  // room owner's identity
-    // using thread safe list to record all users' identity and connection thread in the room
-    private List<String> roomMembers = Collections.synchronizedList(new ArrayList<String>());
+    private int handle = -1; // handle of the room identity, -1 until the room is registered
+    private volatile String owner;  // room owner's identity
+    private final long createdAt; // time when the room was created
+    private final long lockOrder = instances.incrementAndGet(); // fixed for the room's life, unlike its handle
+    private volatile TokenBucket messageBucket = Server.newRoomBucket(); // limit of the room's chat messages, may be null
+    private final AtomicLong messageCount = new AtomicLong(); // chat messages sent in the room so far
+    // handles of the members on this node, guarded by the membership lock; a member keeps its handle when renamed
+    private final IntSet members = new IntSet();
+    // using thread safe list to record all users' connection thread in the room
     private List<Connection> memberThreads = Collections.synchronizedList(new ArrayList<Connection>());
+    // users who get the room's contents once and then its membership changes, coalesced per tick of the server
+    private final Set<Connection> watchers = ConcurrentHashMap.newKeySet();
+    // membership changes not yet sent to the watchers, also guarding every change of the members on any node
+    private final MembershipDelta delta = new MembershipDelta();
+    private boolean deltaQueued = false; // the room waits for the next tick, guarded by delta
+    private boolean closed = false;      // the room is being deleted and takes no more members, guarded by delta
 
     /**
      * Chat room constructor method
      * @param roomID
      */
     public Room(String roomID){
+        this(roomID, System.currentTimeMillis());
+    }
+
+    /**
+     * Chat room constructor method for rooms restored from a snapshot
+     * @param roomID
+     * @param createdAt time when the room was originally created
+     */
+    public Room(String roomID, long createdAt){
         this.roomID = roomID;
+        this.createdAt = createdAt;
     }
 
     /**
@@ -30,11 +59,30 @@ public class Room {
     }
 
     /**
-     * Mutator method for setting chatroom's owner
+     * Accessor method for getting the handle of the chatroom's identity
+     * @return the handle, -1 when the room is not registered
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    protected void setHandle(int handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Mutator method for setting chatroom's owner, keeping the index of each owner's rooms up to date
      * @param owner user ID who is going to be set as chat room owner
      */
     public void setOwner(String owner) {
-        this.owner = owner;
+        synchronized (this) {
+            Server.unindexOwner(this.owner, this);
+            this.owner = owner;
+            Server.indexOwner(owner, this);
+        }
+        if (Server.roomSnapshotter != null) {
+            Server.roomSnapshotter.ownerChanged(roomID, owner);
+        }
     }
 
     /**
@@ -46,11 +94,45 @@ public class Room {
     }
 
     /**
-     * Accessor method for getting all members (or users) in this chatroom
-     * @return a list of all members' identities
+     * Accessor method for getting the time when the chatroom was created
+     * @return creation time in milliseconds
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Accessor method for getting the rate limit of this chatroom's messages
+     * @return the bucket, or null when rooms are not limited
      */
-    public List<String> getRoomMembersList() {
-        return roomMembers;
+    public TokenBucket getMessageBucket() {
+        return messageBucket;
+    }
+
+    /**
+     * Method for replacing the rate limit of this chatroom's messages after the limits were changed
+     */
+    public void resetMessageBucket() {
+        messageBucket = Server.newRoomBucket();
+    }
+
+    /**
+     * Accessor method for getting the number of chat messages sent in this chatroom, on any node
+     * @return message count since the room was created or restored
+     */
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    /**
+     * Method to judge whether a user is a member of this room on this node
+     * @param userHandle handle of the user identity
+     * @return true if the user is a member
+     */
+    public boolean hasMember(int userHandle) {
+        synchronized (delta) {
+            return members.contains(userHandle);
+        }
     }
 
     /**
@@ -58,52 +140,410 @@ public class Room {
      * @return a String type of array contains all users identities in this chatroom
      */
     public String[] getRoomMembersIDs() {
-        int membersAmount = roomMembers.size();
-        String[] emptyArr = new String[membersAmount];
-        //put the member identities from List into a same size String type array
-        String[] members = roomMembers.toArray(emptyArr);
-        return members;
+        synchronized (delta) {
+            return identitiesOf(members.toArray());
+        }
+    }
+
+    // the identities of the given user handles, read under the membership lock so they match the deltas; in the
+    // order of the handles, which is roughly the order the users connected in
+    private static String[] identitiesOf(int[] handles) {
+        Arrays.sort(handles);
+        String[] identities = new String[handles.length];
+        int count = 0;
+        for (int userHandle : handles) {
+            String identity = Server.users.identityOf(userHandle);
+            if (identity != null) {
+                identities[count++] = identity;
+            }
+        }
+        return count == identities.length ? identities : Arrays.copyOf(identities, count);
     }
 
     /**
      * Accessor method for getting all connected threads in this room
-     * @return a list of connection threads in this chat room
+     * @return a copy of the connection threads in this chat room, taken under the membership lock
      */
     public List<Connection> getMemberThreads() {
-        return memberThreads;
+        synchronized (delta) {
+            return new ArrayList<>(memberThreads);
+        }
     }
 
     /**
-     * Method for adding member (or user) in this room
+     * Method for adding a user with its connection thread to this room, and announcing it to the other nodes
      * @param conn user's connection thread
      */
-    public void addMemberThread(Connection conn) {
-        memberThreads.add(conn);
+    public void addMember(Connection conn) {
+        synchronized (delta) {
+            members.add(conn.getUserHandle());
+            memberThreads.add(conn);
+            membershipChanged(null, conn.getUserId());
+        }
+        if (Server.cluster != null) {
+            Server.cluster.memberJoined(roomID, conn.getUserId());
+        }
+    }
+
+    /**
+     * Method for giving a member the identity it asked for, and announcing it to the room and the other nodes; the
+     * member keeps its handle, so only the registry changes, under the membership lock so the watchers' snapshots
+     * match the deltas and the members are told before the member can be moved on
+     * @param conn the member's connection thread
+     * @param newId new user identity
+     * @return false if another user holds the new identity, or the member was moved to another room meanwhile;
+     * nothing changed then
+     * @throws IOException
+     */
+    public boolean renameMember(Connection conn, String newId) throws IOException {
+        String formerId = conn.getUserId();
+        String announcement = new ServerMessage().newId(formerId, newId);
+        synchronized (delta) {
+            if (conn.locatedRoom != this || !Server.users.rename(conn.getUserHandle(), newId)) {
+                return false;
+            }
+            membershipChanged(formerId, newId);
+            deliverLocally(announcement);
+        }
+        if (Server.cluster != null) {
+            Server.cluster.memberRenamed(roomID, formerId, newId);
+            Server.cluster.relayToRoom(roomID, announcement, false);
+        }
+        return true;
+    }
+
+    /**
+     * Method for getting the members of this room on all nodes of the cluster
+     * @return a String type of array contains the identities of local and remote members
+     */
+    public String[] getAllMembersIDs() {
+        if (Server.cluster == null) {
+            return getRoomMembersIDs();
+        }
+        List<String> allMembers = new ArrayList<>(Arrays.asList(getRoomMembersIDs()));
+        allMembers.addAll(Server.cluster.getRemoteMembers(roomID));
+        return allMembers.toArray(new String[0]);
+    }
+
+    /**
+     * Method for counting the members of this room on all nodes of the cluster
+     * @return number of members
+     */
+    public int countAllMembers() {
+        int count;
+        synchronized (delta) {
+            count = members.size();
+        }
+        if (Server.cluster != null) {
+            count += Server.cluster.countRemoteMembers(roomID);
+        }
+        return count;
+    }
+
+    /**
+     * Method for replacing a member's connection thread with the connection of the same user's resumed session,
+     * under the membership lock, so a deletion moving the members on happens either before (and the resumed
+     * connection is looked for in the room it was moved to) or after (and moves the resumed connection)
+     * @param previous the former connection thread
+     * @param conn the connection thread taking over
+     * @return false if the former connection is no longer a member of this room, nothing changed then
+     */
+    public boolean replaceMemberThread(Connection previous, Connection conn) {
+        synchronized (delta) {
+            if (previous.locatedRoom != this || !members.contains(previous.getUserHandle())) {
+                return false;
+            }
+            synchronized (memberThreads) {
+                int i = memberThreads.indexOf(previous);
+                if (i >= 0) {
+                    memberThreads.set(i, conn);
+                } else {
+                    memberThreads.add(conn);
+                }
+            }
+            conn.locatedRoom = this;
+            return true;
+        }
+    }
+
+    /**
+     * Method for removing a member and its thread from this chatroom
+     * @param conn the member's connection thread
+     * @return false if the member was moved out together with the other members meanwhile
+     */
+    public boolean removeMember(Connection conn) {
+        int userHandle = conn.getUserHandle();
+        String userID = conn.getUserId();
+        synchronized (delta) {
+            if (!members.remove(userHandle)) {
+                return false;
+            }
+            memberThreads.removeIf(c -> c.getUserHandle() == userHandle);
+            membershipChanged(userID, null);
+        }
+        if (Server.cluster != null) {
+            Server.cluster.memberLeft(roomID, userID);
+        }
+        return true;
+    }
+
+    /**
+     * Method for moving a member of this room into another room in one step, so the member is never in both rooms or
+     * in neither. The room change is delivered to the members of both rooms on this node before the rooms are let go,
+     * so whatever happens to either room next (such as a deletion moving the member on) is heard of after it
+     * @param conn the member's connection thread
+     * @param target the room the member joins
+     * @return false if the member is no longer in this room or the target is being deleted, nothing changed then
+     * @throws IOException
+     */
+    public boolean moveMemberTo(Connection conn, Room target) throws IOException {
+        int userHandle = conn.getUserHandle();
+        String userId = conn.getUserId();
+        String roomChange = new ServerMessage().roomChange(userId, roomID, target.roomID);
+        Room first = lockedFirst(this, target);
+        synchronized (first.delta) {
+            synchronized ((first == this ? target : this).delta) {
+                if (target.closed || !members.remove(userHandle)) {
+                    return false;
+                }
+                memberThreads.removeIf(c -> c.getUserHandle() == userHandle);
+                membershipChanged(userId, null);
+                target.members.add(userHandle);
+                target.memberThreads.add(conn);
+                target.membershipChanged(null, userId);
+                conn.locatedRoom = target;
+                deliverLocally(roomChange);
+                target.deliverLocally(roomChange);
+            }
+        }
+        if (Server.cluster != null) {
+            Server.cluster.memberLeft(roomID, userId);
+            Server.cluster.memberJoined(target.roomID, userId);
+            Server.cluster.relayToRoom(roomID, roomChange, false);
+            Server.cluster.relayToRoom(target.roomID, roomChange, false);
+        }
+        return true;
+    }
+
+    // two rooms are always locked in the order they were created in, so two moves between them never wait for each
+    // other; not by handle, which is reused once a room is deleted and may change between the read and the lock
+    private static Room lockedFirst(Room a, Room b) {
+        return a.lockOrder <= b.lockOrder ? a : b;
+    }
+
+    /**
+     * Method for closing this room to new members if it has neither an owner nor members on any node, so it can be
+     * deleted without a user joining it in between
+     * @return true if the room was closed and must now be deleted
+     */
+    public boolean closeIfAbandoned() {
+        synchronized (delta) {
+            if (closed || !"".equals(owner) || countAllMembers() > 0) {
+                return false;
+            }
+            closed = true;
+            return true;
+        }
     }
 
     /**
-     * Method for removing specific user's thread from this chatroom
-     * @param userID specific user need to be removed from chat room
+     * Method for moving every member of this room on this node into another room at once, when this room is being
+     * deleted, and announcing the move to the other nodes; the rooms' watchers see it in one delta each. The target's
+     * members on this node are told with one room change per chunk of moved members, before the rooms are let go
+     * @param target the room the members are moved into
+     * @return the room changes delivered, to be relayed to the target's members on the other nodes
+     * @throws IOException
      */
-    public void removeMemberThread(String userID){
-        roomMembers.remove(roomMembers.indexOf(userID));
-        for (int i = 0; i < memberThreads.size(); i++) {
-            if (memberThreads.get(i).getUserId().equals(userID)) {
-                memberThreads.remove(i);
+    public List<String> transferAllTo(Room target) throws IOException {
+        List<String> moved;
+        List<String> roomChanges = new ArrayList<>();
+        Room first = lockedFirst(this, target);
+        synchronized (first.delta) {
+            synchronized ((first == this ? target : this).delta) {
+                // no user joins once the members are moved out
+                closed = true;
+                moved = Arrays.asList(identitiesOf(members.toArray()));
+                target.members.addAll(members);
+                members.clear();
+                Connection[] movedThreads;
+                synchronized (memberThreads) {
+                    movedThreads = memberThreads.toArray(new Connection[0]);
+                    memberThreads.clear();
+                }
+                target.memberThreads.addAll(Arrays.asList(movedThreads));
+                for (Connection c : movedThreads) {
+                    c.locatedRoom = target;
+                }
+                for (String userId : moved) {
+                    membershipChanged(userId, null);
+                    target.membershipChanged(null, userId);
+                }
+                // in chunks that fit in a frame
+                for (int i = 0; i < moved.size(); i += ROOM_CHANGE_CHUNK) {
+                    List<String> chunk = moved.subList(i, Math.min(moved.size(), i + ROOM_CHANGE_CHUNK));
+                    roomChanges.add(new ServerMessage().roomChangeMulti(chunk, roomID, target.roomID));
+                }
+                for (String roomChange : roomChanges) {
+                    target.deliverLocally(roomChange);
+                }
             }
         }
+        if (Server.cluster != null && !moved.isEmpty()) {
+            Server.cluster.membersMoved(roomID, target.roomID, moved);
+        }
+        return roomChanges;
+    }
+
+    /**
+     * Accessor method for getting the lock every change of this room's members is made under, on this node or
+     * (by the cluster bus) on another one, so a watcher's snapshot and the changes after it never overlap
+     * @return the lock
+     */
+    public Object getMembershipLock() {
+        return delta;
+    }
+
+    /**
+     * Method for recording a change of this room's members for the watchers, holding the membership lock
+     * @param formerId identity of the member who left or was renamed, null when a user joined
+     * @param newId identity of the member who joined or was renamed, null when a member left
+     */
+    public void membershipChanged(String formerId, String newId) {
+        if (watchers.isEmpty()) {
+            return;
+        }
+        if (formerId == null) {
+            delta.joined(newId);
+        } else if (newId == null) {
+            delta.left(formerId);
+        } else {
+            delta.renamed(formerId, newId);
+        }
+        if (!deltaQueued) {
+            deltaQueued = true;
+            Server.queueMembershipDelta(this);
+        }
+    }
 
+    /**
+     * Method for sending the membership changes since the last tick to the watchers, as one message
+     * @throws IOException
+     */
+    public void flushMembershipDelta() throws IOException {
+        synchronized (delta) {
+            deltaQueued = false;
+            if (delta.isEmpty()) {
+                return;
+            }
+            Frame frame = new Frame(delta.take(roomID));
+            for (Connection c : watchers) {
+                c.send(frame);
+            }
+        }
     }
 
     /**
-     * Send message to all members in this chatroom
+     * Method for adding a watcher, which is sent the room's current contents first; the changes pending for the
+     * other watchers are sent to them before, as they are already part of the contents
+     * @param conn watcher's connection thread
+     * @param requestId identity of the watch request, echoed in the contents
+     * @throws IOException
+     */
+    public void addWatcher(Connection conn, Object requestId) throws IOException {
+        synchronized (delta) {
+            flushMembershipDelta();
+            String owner = roomID.equals("MainHall") ? "" : getOwner();
+            conn.reply(new ServerMessage().roomContents(roomID, owner, getAllMembersIDs()), requestId);
+            watchers.add(conn);
+        }
+    }
+
+    /**
+     * Method for removing a watcher
+     * @param conn watcher's connection thread
+     * @return false if it was not watching
+     */
+    public boolean removeWatcher(Connection conn) {
+        return watchers.remove(conn);
+    }
+
+    /**
+     * Method for replacing a watcher with the connection of the same user's resumed session
+     * @param previous the former connection thread
+     * @param conn the connection thread taking over
+     */
+    public void replaceWatcher(Connection previous, Connection conn) {
+        synchronized (delta) {
+            if (watchers.remove(previous)) {
+                watchers.add(conn);
+            }
+        }
+    }
+
+    /**
+     * Method for telling the watchers that every member left the room, which is being deleted, and dropping them
+     * @throws IOException
+     */
+    public void dropWatchers() throws IOException {
+        synchronized (delta) {
+            if (watchers.isEmpty()) {
+                return;
+            }
+            for (String member : getAllMembersIDs()) {
+                membershipChanged(member, null);
+            }
+            flushMembershipDelta();
+            for (Connection c : watchers) {
+                c.stopWatching(this);
+            }
+            watchers.clear();
+        }
+    }
+
+    /**
+     * Send message to all members in this chatroom, including the members on other nodes
      * @param msg message need to be broadcast
      */
     public void broadcastWithinRoom(String msg) throws IOException {
-        for (Connection c: memberThreads) {
-            ServerSend ss = new ServerSend(c.getOutput(), msg);
-            Thread send = new Thread(ss);
-            send.start();
+        deliverLocally(msg);
+        if (Server.cluster != null) {
+            Server.cluster.relayToRoom(roomID, msg, false);
+        }
+    }
+
+    /**
+     * Send a chat message to all members in this chatroom, and record it in the room's message log
+     * when persistence is enabled (the append is only queued, the disk write happens in the background)
+     * @param msg chat message need to be broadcast
+     */
+    public void broadcastChatMessage(String msg) throws IOException {
+        deliverLocally(msg);
+        if (Server.cluster != null) {
+            Server.cluster.relayToRoom(roomID, msg, true);
+        }
+        recordMessage(msg);
+    }
+
+    /**
+     * Send message to the members in this chatroom connected to this node only
+     * @param msg message need to be delivered
+     */
+    public void deliverLocally(String msg) throws IOException {
+        Frame frame = new Frame(msg);
+        // iterate over a copy, members joining or leaving meanwhile must not break the delivery
+        for (Connection c: memberThreads.toArray(new Connection[0])) {
+            c.send(frame);
+        }
+    }
+
+    /**
+     * Record a chat message in the room's message log when persistence is enabled, and count it
+     * @param msg chat message
+     */
+    public void recordMessage(String msg) {
+        messageCount.incrementAndGet();
+        if (Server.messageStore != null) {
+            Server.messageStore.append(roomID, msg);
         }
     }
 
@@ -0,0 +1,246 @@
+package chatserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+public class RoomLog {
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;       // directory holding all segments of this room
+    private final int segmentSize;      // capacity of each mapped segment in bytes
+    // segments ordered by their base offset, the last one is the active segment
+    // (only the writer thread adds or removes segments, history readers look them up concurrently)
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private volatile long lastUsed = System.currentTimeMillis(); // time of the last append or read
+
+    /**
+     * Constructor method for RoomLog, reopens the segments left by a previous run; only the active segment is
+     * mapped, the sealed ones are mapped when first read
+     * @param directory directory of this room's log
+     * @param segmentSize capacity of each segment in bytes
+     * @throws IOException
+     */
+    public RoomLog(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        TreeMap<Long, File> found = new TreeMap<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                found.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+        for (Map.Entry<Long, File> entry : found.entrySet()) {
+            Long next = found.higherKey(entry.getKey());
+            segments.put(entry.getKey(), next != null ? new LogSegment(entry.getValue(), entry.getKey(), next)
+                    : new LogSegment(entry.getValue(), entry.getKey(), segmentSize));
+        }
+        if (segments.isEmpty()) {
+            roll(0);
+        }
+    }
+
+    /**
+     * Method to judge whether a room has a log on disk, without opening it
+     * @param directory directory of the room's log
+     * @return true if the directory holds segments
+     */
+    public static boolean exists(File directory) {
+        String[] names = directory.list((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        return names != null && names.length > 0;
+    }
+
+    /**
+     * Method for removing a room's log from disk, whether it is open or not
+     * @param directory directory of the room's log
+     */
+    public static void removeFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Method for getting the file of a segment given its base offset, e.g. 00000000000000000042.log
+     * @param baseOffset base offset of the segment
+     * @return segment file
+     */
+    private File segmentFile(long baseOffset) {
+        return new File(directory, String.format("%020d", baseOffset) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Method for starting a new active segment
+     * @param baseOffset offset of the first record of the new segment
+     * @return the new active segment
+     * @throws IOException
+     */
+    private LogSegment roll(long baseOffset) throws IOException {
+        LogSegment segment = new LogSegment(segmentFile(baseOffset), baseOffset, segmentSize);
+        segments.put(baseOffset, segment);
+        return segment;
+    }
+
+    /**
+     * Accessor method for getting the segment new records are appended to
+     * @return active segment
+     */
+    private LogSegment activeSegment() {
+        return segments.lastEntry().getValue();
+    }
+
+    /**
+     * Method for appending a message at the end of the log, rolling to a new segment when the active one is full
+     * @param timestamp time when the message was broadcast
+     * @param payload encoded message
+     * @return offset of the appended record
+     * @throws IOException
+     */
+    public long append(long timestamp, byte[] payload) throws IOException {
+        lastUsed = System.currentTimeMillis();
+        LogSegment active = activeSegment();
+        long offset = active.append(timestamp, payload);
+        if (offset < 0) {
+            active.force();
+            offset = roll(active.getNextOffset()).append(timestamp, payload);
+            if (offset < 0) {
+                throw new IOException("Message of " + payload.length + " bytes does not fit in a log segment");
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Accessor method for getting the offset of the oldest record still retained
+     * @return first offset of the log
+     */
+    public long getFirstOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Accessor method for getting the offset the next appended record will get
+     * @return next offset of the log, equal to the first offset when the log is empty
+     */
+    public long getNextOffset() {
+        return activeSegment().getNextOffset();
+    }
+
+    /**
+     * Method for finding the first record written at or after a given time, segments are skipped by their
+     * last timestamp and the index of the matching segment is binary searched
+     * @param since time in milliseconds
+     * @return offset of the first such record, or the next offset if there is none
+     */
+    public long offsetAtTime(long since) {
+        for (LogSegment segment : segments.values()) {
+            if (!segment.isEmpty() && segment.getLastTimestamp() >= since) {
+                return segment.offsetAtTime(since);
+            }
+        }
+        return getNextOffset();
+    }
+
+    /**
+     * Method for reading consecutive records, the start is located through the offset index and the rest is
+     * a sequential read
+     * @param from offset of the first record to read, moved forward to the first retained record if needed
+     * @param maxRecords most records to return
+     * @param maxBytes most payload bytes to return (at least one record is returned if there is one)
+     * @return the records in offset order
+     */
+    public List<LogRecord> read(long from, int maxRecords, int maxBytes) {
+        lastUsed = System.currentTimeMillis();
+        List<LogRecord> records = new ArrayList<>();
+        long offset = Math.max(from, getFirstOffset());
+        int bytes = 0;
+        Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+        while (entry != null && records.size() < maxRecords) {
+            LogSegment segment = entry.getValue();
+            if (offset >= segment.getNextOffset()) {
+                entry = segments.higherEntry(entry.getKey());
+                continue;
+            }
+            LogRecord record = segment.read(offset);
+            bytes += record.getMessage().getBytes(StandardCharsets.UTF_8).length;
+            if (bytes > maxBytes && !records.isEmpty()) {
+                break;
+            }
+            records.add(record);
+            offset++;
+        }
+        return records;
+    }
+
+    /**
+     * Method for flushing every segment with pending writes to disk
+     */
+    public void force() {
+        for (LogSegment segment : segments.values()) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Method for removing the oldest segments which exceed the size budget or are older than the age limit,
+     * the active segment is always kept
+     * @param maxBytes size budget of this room's log, 0 means no limit
+     * @param maxAgeMillis age limit of records, 0 means no limit
+     */
+    public void enforceRetention(long maxBytes, long maxAgeMillis) {
+        long totalBytes = 0;
+        for (LogSegment segment : segments.values()) {
+            totalBytes += segment.sizeInBytes();
+        }
+        long oldestAllowed = System.currentTimeMillis() - maxAgeMillis;
+        Iterator<Map.Entry<Long, LogSegment>> it = segments.entrySet().iterator();
+        while (it.hasNext() && segments.size() > 1) {
+            LogSegment segment = it.next().getValue();
+            boolean overSize = maxBytes > 0 && totalBytes > maxBytes;
+            boolean expired = maxAgeMillis > 0 && segment.getLastTimestamp() < oldestAllowed;
+            if (!overSize && !expired) {
+                break;
+            }
+            totalBytes -= segment.sizeInBytes();
+            segment.delete();
+            it.remove();
+        }
+    }
+
+    /**
+     * Method for closing all segments of this log
+     */
+    public void close() {
+        for (LogSegment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Method for closing the log and removing all of its files, used when the room is deleted
+     */
+    public void delete() {
+        segments.clear();
+        removeFiles(directory);
+    }
+}
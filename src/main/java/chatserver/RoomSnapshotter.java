@@ -0,0 +1,330 @@
+package chatserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the room registry (room identities, owners and creation times) on disk so a restarted server gets its rooms back.
+ * Request threads only queue a small change event; the snapshot thread applies the events to its own copy of the
+ * registry, appends them to a journal, and from time to time compacts that copy into a full snapshot. Nothing here
+ * ever locks or iterates Server.rooms, so capturing state never pauses request processing.
+ */
+public class RoomSnapshotter {
+
+    private static final int SNAPSHOT_MAGIC = 0x43485352; // "CHSR"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final byte OP_CREATE = 1;
+    private static final byte OP_OWNER = 2;
+    private static final byte OP_DELETE = 3;
+    private static final int MIN_COMPACT_RECORDS = 1024; // journal records tolerated before compacting
+
+    private final File snapshotFile;    // full snapshot, always replaced atomically
+    private final File journalFile;     // changes since the snapshot, replayed on top of it at startup
+    private final long intervalSeconds; // how often queued changes are written
+
+    // changes waiting to be written, in the order they happened
+    private final ConcurrentLinkedQueue<RoomChange> changes = new ConcurrentLinkedQueue<>();
+    // the snapshot thread's own copy of the registry, in creation order
+    private final Map<String, RoomRecord> registry = new LinkedHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "room-snapshotter");
+        t.setDaemon(true);
+        return t;
+    });
+    private DataOutputStream journal;   // open journal, records appended since the last compaction
+    private FileOutputStream journalFileStream;
+    private int journalRecords = 0;
+    // bumped by every compaction, a journal is only replayed on top of the snapshot of the same generation
+    private long generation = 0;
+
+    /**
+     * A persisted room, the owner is an empty string once the owner has left
+     */
+    public static class RoomRecord {
+        final String roomId;
+        String owner;
+        final long createdAt;
+
+        RoomRecord(String roomId, String owner, long createdAt) {
+            this.roomId = roomId;
+            this.owner = owner;
+            this.createdAt = createdAt;
+        }
+
+        public String getRoomId() {
+            return roomId;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+    }
+
+    /**
+     * A change of the room registry, captured with the values it had when it happened
+     */
+    private static class RoomChange {
+        final byte op;
+        final String roomId;
+        final String owner;
+        final long createdAt;
+
+        RoomChange(byte op, String roomId, String owner, long createdAt) {
+            this.op = op;
+            this.roomId = roomId;
+            this.owner = owner;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * Constructor method for RoomSnapshotter
+     * @param directory directory holding the snapshot and journal files
+     * @param intervalSeconds how often queued changes are written
+     * @throws IOException
+     */
+    public RoomSnapshotter(File directory, long intervalSeconds) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create snapshot directory " + directory);
+        }
+        this.snapshotFile = new File(directory, "rooms.snapshot");
+        this.journalFile = new File(directory, "rooms.journal");
+        this.intervalSeconds = Math.max(1, intervalSeconds);
+    }
+
+    /**
+     * Method for loading the rooms saved by a previous run, must be called before start()
+     * @return the saved rooms in creation order
+     * @throws IOException
+     */
+    public List<RoomRecord> load() throws IOException {
+        if (snapshotFile.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(snapshotFile), 64 * 1024))) {
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                    throw new IOException("Unrecognised room snapshot " + snapshotFile);
+                }
+                generation = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String roomId = in.readUTF();
+                    registry.put(roomId, new RoomRecord(roomId, in.readUTF(), in.readLong()));
+                }
+            }
+        }
+        if (journalFile.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(journalFile), 64 * 1024))) {
+                // a journal left from before the latest snapshot is already part of it
+                if (in.readLong() != generation) {
+                    return new ArrayList<>(registry.values());
+                }
+                while (true) {
+                    apply(readChange(in));
+                    journalRecords++;
+                }
+            } catch (EOFException e) {
+                // end of the journal, or a record torn by a crash which is ignored
+            }
+        }
+        return new ArrayList<>(registry.values());
+    }
+
+    /**
+     * Method for starting the periodic snapshot thread
+     */
+    public void start() {
+        // first rewrite a compact snapshot so the journal starts empty, this also drops a torn record left by a
+        // crash; it runs on the snapshot thread so the server does not wait for it before accepting connections
+        scheduler.execute(this::compactOnStart);
+        scheduler.scheduleWithFixedDelay(this::writeChanges, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Method for recording a newly created room
+     * @param room the new room
+     */
+    public void roomCreated(Room room) {
+        changes.add(new RoomChange(OP_CREATE, room.getRoomID(), nullToEmpty(room.getOwner()), room.getCreatedAt()));
+    }
+
+    /**
+     * Method for recording a change of a room's owner (changes of rooms not created yet are ignored)
+     * @param roomId room identity
+     * @param owner new owner identity
+     */
+    public void ownerChanged(String roomId, String owner) {
+        changes.add(new RoomChange(OP_OWNER, roomId, nullToEmpty(owner), 0));
+    }
+
+    /**
+     * Method for recording a deleted room
+     * @param roomId room identity
+     */
+    public void roomDeleted(String roomId) {
+        changes.add(new RoomChange(OP_DELETE, roomId, "", 0));
+    }
+
+    /**
+     * Method for writing all queued changes and a final snapshot, then stopping the snapshot thread
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        writeChanges();
+        try {
+            compact();
+            journal.close();
+        } catch (IOException e) {
+            System.out.println("Error in writing the final room snapshot");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Method for writing the queued changes immediately, for example right before a shutdown
+     */
+    public synchronized void snapshotNow() {
+        writeChanges();
+    }
+
+    private synchronized void compactOnStart() {
+        try {
+            compact();
+        } catch (IOException e) {
+            System.out.println("Error in writing the room snapshot");
+            e.printStackTrace();
+        }
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * Method for applying one change to the snapshot thread's copy of the registry
+     * @param change the change
+     * @return true if the registry changed
+     */
+    private boolean apply(RoomChange change) {
+        switch (change.op) {
+            case OP_CREATE:
+                registry.put(change.roomId, new RoomRecord(change.roomId, change.owner, change.createdAt));
+                return true;
+            case OP_OWNER:
+                RoomRecord record = registry.get(change.roomId);
+                if (record == null || record.owner.equals(change.owner)) {
+                    return false;
+                }
+                record.owner = change.owner;
+                return true;
+            case OP_DELETE:
+                return registry.remove(change.roomId) != null;
+            default:
+                return false;
+        }
+    }
+
+    private static RoomChange readChange(DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        String roomId = in.readUTF();
+        String owner = in.readUTF();
+        long createdAt = in.readLong();
+        return new RoomChange(op, roomId, owner, createdAt);
+    }
+
+    private static void writeChange(DataOutputStream out, RoomChange change) throws IOException {
+        out.writeByte(change.op);
+        out.writeUTF(change.roomId);
+        out.writeUTF(change.owner);
+        out.writeLong(change.createdAt);
+    }
+
+    // append the changes queued since the last run to the journal, compacting when the journal grows too long
+    private synchronized void writeChanges() {
+        try {
+            if (journal == null) {
+                // the compaction at start failed, try again before appending to the journal
+                compact();
+            }
+            int written = 0;
+            RoomChange change;
+            while ((change = changes.poll()) != null) {
+                if (apply(change)) {
+                    writeChange(journal, change);
+                    written++;
+                }
+            }
+            if (written == 0) {
+                return;
+            }
+            journal.flush();
+            journalFileStream.getFD().sync();
+            journalRecords += written;
+            if (journalRecords > Math.max(MIN_COMPACT_RECORDS, registry.size() / 4)) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.out.println("Error in writing the room journal");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Method for writing the whole registry into a new snapshot file, atomically replacing the old snapshot,
+     * and starting a new empty journal
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(generation + 1);
+            out.writeInt(registry.size());
+            for (RoomRecord record : registry.values()) {
+                out.writeUTF(record.roomId);
+                out.writeUTF(record.owner);
+                out.writeLong(record.createdAt);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the journal is only truncated once the snapshot covering it is in place, a crash in between leaves
+        // a journal of the previous generation which load() skips
+        generation++;
+        if (journal != null) {
+            journal.close();
+        }
+        journalFileStream = new FileOutputStream(journalFile, false);
+        journal = new DataOutputStream(new BufferedOutputStream(journalFileStream));
+        journal.writeLong(generation);
+        journal.flush();
+        journalRecords = 0;
+    }
+}
@@ -4,52 +4,513 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import org.kohsuke.args4j.Option;
 
-import java.io.DataOutputStream;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server {
 
     @Parameter(names = "-p", description = "port address")
     private static int port = 4444;
 
+    @Parameter(names = "-persist", description = "record chat messages in an append-only log on disk")
+    private static boolean persist = false;
+
+    @Parameter(names = "-logdir", description = "directory of the message log")
+    private static String logDir = "chatlog";
+
+    @Parameter(names = "-segmentsize", description = "size of each message log segment in bytes, at least 128KB "
+            + "so the largest message fits")
+    private static int segmentSize = 1024 * 1024;
+    private static final int MIN_SEGMENT_SIZE = 128 * 1024; // a frame of up to 64KB always fits in a segment
+
+    @Parameter(names = "-retainbytes", description = "maximum message log size per room in bytes, 0 for no limit")
+    private static long retainBytes = 0;
+
+    @Parameter(names = "-retainhours", description = "maximum age of logged messages in hours, 0 for no limit")
+    private static long retainHours = 0;
+
+    @Parameter(names = "-fsyncms", description = "group commit window of the message log in milliseconds")
+    private static long fsyncMillis = 50;
+
+    @Parameter(names = "-snapshot", description = "save rooms and their owners on disk and restore them at startup")
+    private static boolean snapshot = false;
+
+    @Parameter(names = "-snapshotdir", description = "directory of the room snapshot")
+    private static String snapshotDir = "chatstate";
+
+    @Parameter(names = "-snapshotsec", description = "how often room changes are saved in seconds")
+    private static long snapshotSeconds = 5;
+
+    @Parameter(names = "-resumegrace", description = "seconds a lost session can be resumed, 0 to disable")
+    private static long resumeGraceSeconds = 60;
+
+    @Parameter(names = "-resumebuffer", description = "most messages kept for a lost session")
+    private static int resumeBufferSize = 256;
+
+    @Parameter(names = "-dedupsec", description = "seconds a chat message identity is remembered to drop resent "
+            + "copies, 0 to disable")
+    private static long dedupSeconds = 60;
+
+    @Parameter(names = "-dedupsize", description = "most message identities remembered for each sender, 0 to disable")
+    private static int dedupSize = 1024;
+
+    @Parameter(names = "-compressmin", description = "smallest frame in bytes compressed for the clients which "
+            + "ask for compression, 0 to disable")
+    private static int compressMin = 512;
+
+    @Parameter(names = "-idletimeout", description = "seconds of silence before a client is pinged, 0 to disable")
+    private static long idleTimeoutSeconds = 60;
+
+    @Parameter(names = "-pongtimeout", description = "seconds a pinged client has to answer before it is disconnected")
+    private static long pongTimeoutSeconds = 15;
+
+    @Parameter(names = "-historyonjoin", description = "number of logged messages sent to a user joining a room")
+    protected static int historyOnJoin = 0;
+
+    @Parameter(names = "-nodeid", description = "identity of this node when running in a cluster")
+    private static String nodeId = "";
+
+    @Parameter(names = "-busaddr", description = "address the cluster bus listens on, only the peers should reach it")
+    private static String busAddress = "127.0.0.1";
+
+    @Parameter(names = "-busport", description = "port of the cluster bus, the other nodes connect to it")
+    private static int busPort = 5444;
+
+    @Parameter(names = "-peers", description = "other nodes of the cluster, comma separated nodeid@host:busport")
+    private static String peers = "";
+
+    @Parameter(names = "-tls", description = "accept clients over TLS only")
+    private static boolean tls = false;
+
+    @Parameter(names = "-keystore", description = "PKCS12 keystore holding the server certificate and key")
+    private static String keyStore = "chatserver.p12";
+
+    @Parameter(names = "-keystorepass", description = "password of the keystore")
+    private static String keyStorePassword = "changeit";
+
+    @Parameter(names = "-ciphers", description = "comma separated TLS cipher suites, the JDK defaults when empty")
+    private static String ciphers = "";
+
+    @Parameter(names = "-tlsprotocols", description = "comma separated TLS versions accepted")
+    private static String tlsProtocols = "TLSv1.3,TLSv1.2";
+
+    @Parameter(names = "-tlssessions", description = "TLS sessions cached for resumption by reconnecting clients")
+    private static int tlsSessionCacheSize = 20000;
+
+    @Parameter(names = "-tlssessionsec", description = "seconds a cached TLS session can be resumed")
+    private static int tlsSessionTimeout = 24 * 60 * 60;
+
+    @Parameter(names = "-msgrate", description = "chat messages per second allowed to each connection, 0 for no limit")
+    private static volatile double messageRate = 0;
+
+    @Parameter(names = "-msgburst", description = "chat messages a connection can send at once")
+    private static volatile int messageBurst = 10;
+
+    @Parameter(names = "-roomrate", description = "chat messages per second allowed in each room, 0 for no limit")
+    private static volatile double roomRate = 0;
+
+    @Parameter(names = "-roomburst", description = "chat messages a room accepts at once")
+    private static volatile int roomBurst = 50;
+
+    @Parameter(names = "-cmdrate", description = "list, who and createroom requests per second on the whole server, "
+            + "0 for no limit")
+    private static volatile double commandRate = 0;
+
+    @Parameter(names = "-cmdburst", description = "list, who and createroom requests accepted at once")
+    private static volatile int commandBurst = 100;
+
+    @Parameter(names = "-maxconn", description = "most open connections, new ones are turned away when full, "
+            + "0 for no limit")
+    private static int maxConnections = 10000;
+
+    @Parameter(names = "-maxperip", description = "most open connections from one address, 0 for no limit")
+    private static int maxConnectionsPerAddress = 0;
+
+    @Parameter(names = "-backlog", description = "connections waiting to be accepted before the system refuses more")
+    private static int backlog = 1024;
+
+    @Parameter(names = "-draintimeout", description = "seconds a shutdown waits for queued messages to be sent")
+    private static long drainTimeoutSeconds = 10;
+
+    @Parameter(names = "-adminport", description = "port of the operator console on the loopback address, "
+            + "0 to disable")
+    private static int adminPort = 0;
+
+    @Parameter(names = "-loglevel", description = "verbosity of the output: error, info or debug")
+    private static String logLevel = "info";
+
+    @Parameter(names = "-trackleaks", description = "remember where each pooled buffer was taken, to report the "
+            + "buffers never given back (costs a stack trace per buffer)")
+    private static boolean trackLeaks = false;
+
     // record how many users has been connected to the server (both online and disconnected)
     // used for generating default user ID
-    protected static Integer accumulatedUserAmount = 0;
+    protected static final AtomicInteger accumulatedUserAmount = new AtomicInteger();
+
+    // the handle of every user identity on this node and the connection it stands for; rooms keep the handles of
+    // their members, identities are only looked up for the requests received and the messages sent
+    protected static HandleRegistry<Connection> users = new HandleRegistry<>();
+
+    // the rooms each user owns, kept by Room.setOwner so a user's rooms are found without scanning every room
+    private static final Map<String, Set<Room>> roomsByOwner = new ConcurrentHashMap<>();
+
+    // the users who asked to hear about the identity changes of every user, not just of their room's members
+    protected static Set<Connection> presenceWatchers = ConcurrentHashMap.newKeySet();
+
+    // using thread safe list to record all connection threads
+    // (connections are iterated for every broadcast and by the operator console, far more often than they come
+    // and go, so iterating a copy-on-write list needs no lock and never sees a change half done)
+    protected static List<Connection> userThreads = new CopyOnWriteArrayList<>();
 
-    // using thread safe list to record all user identities and connection threads
-    protected static List<String> userIdentities = Collections.synchronizedList(new ArrayList<>());
-    protected static List<Connection> userThreads = Collections.synchronizedList(new ArrayList<>());
+    // using thread safe list to record all room objects within the server, copy-on-write for the same reason
+    protected static List<Room> rooms = new CopyOnWriteArrayList<>();
+    // the handle of every room identity, so a room is found without scanning the list
+    protected static HandleRegistry<Room> roomHandles = new HandleRegistry<>();
 
-    // using thread safe list to record all room objects within the server
-    protected static List<Room> rooms = Collections.synchronizedList(new ArrayList<>());
+    // message log of all rooms, null when persistence is disabled
+    protected static MessageStore messageStore;
 
+    // saves the room registry on disk, null when snapshots are disabled
+    protected static RoomSnapshotter roomSnapshotter;
+
+    // sessions which reconnecting clients can resume, null when resumption is disabled
+    protected static SessionRegistry sessions;
+
+    // tracks the idle timer of every connection, null when heartbeats are disabled
+    protected static TimerWheel timerWheel;
+    protected static long idleTimeoutMillis;
+    protected static long pongTimeoutMillis;
+
+    // bus to the other nodes of the cluster, null when running alone
+    protected static ClusterBus cluster;
+
+    // limits the open connections, checked before a connection thread is started
+    protected static AdmissionControl admission;
+
+    // socket accepting new connections, closed when draining
+    private static ServerSocket serverSocket;
+
+    // set once the server started shutting down, connections closing from then on just end
+    protected static volatile boolean draining = false;
+    private static boolean drained = false;
+
+    // shared limit of the expensive requests, null when not limited
+    protected static volatile TokenBucket commandBucket;
+    private static ScheduledExecutorService throttleReporter;
+
+    // rooms whose watchers have membership changes waiting, sent together on each tick
+    private static final long MEMBERSHIP_TICK_MILLIS = 100;
+    private static final Queue<Room> roomsWithDeltas = new ConcurrentLinkedQueue<>();
+    private static ScheduledExecutorService membershipTicker;
+
+    private static final long THROTTLE_REPORT_SECONDS = 10; // how often rate limited users and rooms are reported
+
+    // settings the operator console can read and change while running
+    protected static final List<String> SETTINGS = Arrays.asList(
+            "msgrate", "msgburst", "roomrate", "roomburst", "cmdrate", "cmdburst", "fsyncms", "loglevel");
 
     /**
-     * Method for closing all remaining connected threads
-     * @throws InterruptedException
+     * Method for shutting the server down without losing what users were already sent: stops accepting connections,
+     * tells every user, waits (up to the drain timeout) for every outbound queue to be written, saves the message log
+     * and the rooms, then closes all connections in parallel. Calling it again waits for the first call to finish.
      */
-    private static void closeAll() throws InterruptedException {
-        for (Connection c : userThreads) {
-            c.join();
+    public static synchronized void drain() {
+        if (drained) {
+            return;
+        }
+        drained = true;
+        draining = true;
+        long start = System.nanoTime();
+        System.out.println("Draining the server...");
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // already closed
+        }
+        Connection[] connections = userThreads.toArray(new Connection[0]);
+        try {
+            deliverToLocalUsers(new ServerMessage().notice("The server is shutting down, please reconnect later"));
+        } catch (IOException e) {
+            // queued only, nothing is written here
+        }
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(drainTimeoutSeconds);
+        int unflushed = 0;
+        try {
+            // no request is started once draining, those already running may still log or replay history
+            for (Connection c : connections) {
+                c.awaitRequestsStopped(deadline);
+            }
+            for (Connection c : connections) {
+                if (!c.awaitFlushed(deadline)) {
+                    unflushed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Drain interrupted while flushing");
+        }
+        long flushed = System.nanoTime();
+
+        try {
+            if (messageStore != null) {
+                messageStore.close();
+            }
+            if (roomSnapshotter != null) {
+                roomSnapshotter.close();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Drain interrupted while saving state");
+        }
+        long saved = System.nanoTime();
+
+        Arrays.stream(connections).parallel().forEach(Connection::close);
+        long end = System.nanoTime();
+        System.out.println("Drained " + connections.length + " connections in "
+                + TimeUnit.NANOSECONDS.toMillis(end - start) + " ms (flush "
+                + TimeUnit.NANOSECONDS.toMillis(flushed - start) + " ms, " + unflushed + " not flushed in time; save "
+                + TimeUnit.NANOSECONDS.toMillis(saved - flushed) + " ms; close "
+                + TimeUnit.NANOSECONDS.toMillis(end - saved) + " ms)");
+    }
+
+    /**
+     * Method for announcing a change of a user (such as a new identity) to the users who watch the presence of
+     * everyone, on every node, except the members of the user's room, which were told by the room; the message is
+     * encoded once by the caller
+     * @param message String message need to be sent
+     * @param room the user's room, or null when the user is in none yet
+     * @throws IOException
+     */
+    public static void broadcastPresence(String message, Room room) throws IOException {
+        String roomId = room != null ? room.getRoomID() : "";
+        deliverToPresenceWatchers(message, roomId);
+        if (cluster != null && cluster.hasPresenceWatchers()) {
+            cluster.relayPresence(roomId, message);
+        }
+    }
+
+    /**
+     * Method for sending a presence change to the watchers connected to this node, except those in the room it was
+     * already sent to
+     * @param message String message need to be sent
+     * @param roomId room the message was broadcast in
+     * @throws IOException
+     */
+    public static void deliverToPresenceWatchers(String message, String roomId) throws IOException {
+        Frame frame = new Frame(message);
+        for (Connection c : presenceWatchers) {
+            Room room = c.locatedRoom;
+            if (room == null || !room.getRoomID().equals(roomId)) {
+                c.send(frame);
+            }
         }
     }
 
     /**
-     * Method for broadcasting message to all connected users
-     * @param message String message need to be broadcast
+     * Method for sending message to the users connected to this node only
+     * @param message String message need to be sent
      * @throws IOException
      */
-    public static void broadcastToAll(String message) throws IOException {
+    public static void deliverToLocalUsers(String message) throws IOException {
+        Frame frame = new Frame(message);
         for (Connection c : userThreads) {
-            DataOutputStream out = c.getOutput();
-            Thread messageSender = new Thread(new ServerSend(out, message));
-            messageSender.start();
+            c.send(frame);
+        }
+    }
+
+    /**
+     * Method for queueing a room whose watchers have membership changes to be sent on the next tick
+     * @param room the room
+     */
+    protected static void queueMembershipDelta(Room room) {
+        roomsWithDeltas.add(room);
+    }
+
+    /**
+     * Method for starting the tick which sends the membership changes of watched rooms, once a room is watched
+     */
+    protected static synchronized void startMembershipTicker() {
+        if (membershipTicker != null) {
+            return;
+        }
+        membershipTicker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "membership-ticker");
+            t.setDaemon(true);
+            return t;
+        });
+        membershipTicker.scheduleWithFixedDelay(Server::flushMembershipDeltas,
+                MEMBERSHIP_TICK_MILLIS, MEMBERSHIP_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Method for sending the membership changes of every room queued since the last tick
+     */
+    private static void flushMembershipDeltas() {
+        Room room;
+        while ((room = roomsWithDeltas.poll()) != null) {
+            try {
+                room.flushMembershipDelta();
+            } catch (IOException e) {
+                // queueing never fails
+            }
+        }
+    }
+
+    /**
+     * Method for creating the memory of one sender's chat message identities, for a sender which gave one
+     * @return the window, or null when resent messages are not dropped
+     */
+    protected static MessageIdWindow newMessageIdWindow() {
+        return dedupSeconds > 0 && dedupSize > 0
+                ? new MessageIdWindow(dedupSize, TimeUnit.SECONDS.toMillis(dedupSeconds)) : null;
+    }
+
+    /**
+     * Method for creating the rate limit of one connection's chat messages
+     * @return the bucket, or null when connections are not limited
+     */
+    protected static TokenBucket newMessageBucket() {
+        return messageRate > 0 ? new TokenBucket(messageRate, messageBurst) : null;
+    }
+
+    /**
+     * Method for creating the rate limit of all chat messages in one room
+     * @return the bucket, or null when rooms are not limited
+     */
+    protected static TokenBucket newRoomBucket() {
+        return roomRate > 0 ? new TokenBucket(roomRate, roomBurst) : null;
+    }
+
+    /**
+     * Method for reading a setting of the operator console
+     * @param name one of SETTINGS
+     * @return current value
+     */
+    protected static String getSetting(String name) {
+        switch (name) {
+            case "msgrate": return String.valueOf(messageRate);
+            case "msgburst": return String.valueOf(messageBurst);
+            case "roomrate": return String.valueOf(roomRate);
+            case "roomburst": return String.valueOf(roomBurst);
+            case "cmdrate": return String.valueOf(commandRate);
+            case "cmdburst": return String.valueOf(commandBurst);
+            case "fsyncms": return messageStore != null ? String.valueOf(messageStore.getFsyncMillis()) : "off";
+            case "loglevel": return Log.getLevel();
+            default: throw new IllegalArgumentException("unknown setting " + name);
+        }
+    }
+
+    /**
+     * Method for changing a setting of the operator console while running; changed rate limits replace the buckets
+     * of every connection and room, which start over with a full burst
+     * @param name one of SETTINGS
+     * @param value new value
+     * @throws IllegalArgumentException if the setting is unknown or the value does not fit it
+     */
+    protected static synchronized void changeSetting(String name, String value) {
+        try {
+            switch (name) {
+                case "msgrate": messageRate = Double.parseDouble(value); break;
+                case "msgburst": messageBurst = Integer.parseInt(value); break;
+                case "roomrate": roomRate = Double.parseDouble(value); break;
+                case "roomburst": roomBurst = Integer.parseInt(value); break;
+                case "cmdrate": commandRate = Double.parseDouble(value); break;
+                case "cmdburst": commandBurst = Integer.parseInt(value); break;
+                case "fsyncms":
+                    if (messageStore == null) {
+                        throw new IllegalArgumentException("the message log is not enabled");
+                    }
+                    messageStore.setFsyncMillis(Long.parseLong(value));
+                    return;
+                case "loglevel":
+                    if (!Log.setLevel(value)) {
+                        throw new IllegalArgumentException("log level must be error, info or debug");
+                    }
+                    return;
+                default: throw new IllegalArgumentException("unknown setting " + name);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(value + " is not a valid " + name);
+        }
+        if (name.startsWith("msg")) {
+            for (Connection c : userThreads) {
+                c.resetMessageBucket();
+            }
+        } else if (name.startsWith("room")) {
+            for (Room room : rooms) {
+                room.resetMessageBucket();
+            }
+        } else {
+            commandBucket = commandRate > 0 ? new TokenBucket(commandRate, commandBurst) : null;
+        }
+        startThrottleReport();
+        System.out.println("Setting " + name + " changed to " + value);
+    }
+
+    /**
+     * Method for starting the periodic report of rate limited users and rooms, once any limit is set
+     */
+    private static synchronized void startThrottleReport() {
+        if (throttleReporter != null || (messageRate <= 0 && roomRate <= 0 && commandRate <= 0)) {
+            return;
+        }
+        throttleReporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "throttle-report");
+            t.setDaemon(true);
+            return t;
+        });
+        throttleReporter.scheduleWithFixedDelay(Server::reportThrottling,
+                THROTTLE_REPORT_SECONDS, THROTTLE_REPORT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Method for printing who has been rate limited since the last report, nothing is printed when nobody was
+     */
+    private static void reportThrottling() {
+        StringBuilder report = new StringBuilder();
+        for (Connection c : userThreads) {
+            long throttled = c.takeThrottled();
+            if (throttled > 0) {
+                report.append(" user ").append(c.getUserId()).append("=").append(throttled);
+            }
+        }
+        for (Room room : rooms) {
+            TokenBucket bucket = room.getMessageBucket();
+            long throttled = bucket != null ? bucket.takeRejected() : 0;
+            if (throttled > 0) {
+                report.append(" room ").append(room.getRoomID()).append("=").append(throttled);
+            }
+        }
+        TokenBucket commands = commandBucket;
+        long commandsThrottled = commands != null ? commands.takeRejected() : 0;
+        if (commandsThrottled > 0) {
+            report.append(" commands=").append(commandsThrottled);
+        }
+        if (report.length() > 0) {
+            System.out.println("Rate limited in the last " + THROTTLE_REPORT_SECONDS + "s:" + report);
         }
     }
 
@@ -59,67 +520,287 @@ public class Server {
      * @return the room object
      */
     public static Room getRoom(String roomId) {
-        for (Room room : rooms) {
-            if (room.getRoomID().equals(roomId)) {
-                return room;
-            }
+        return roomHandles.find(roomId);
+    }
+
+    /**
+     * Method for registering a room's identity and adding it to the rooms, holding the rooms' lock (or before any
+     * connection is accepted)
+     * @param room the room
+     */
+    protected static void addRoom(Room room) {
+        room.setHandle(roomHandles.claim(room.getRoomID(), room));
+        rooms.add(room);
+    }
+
+    /**
+     * Method for getting the rooms a user owns
+     * @param owner user identity
+     * @return the rooms, a copy which stays valid while owners change
+     */
+    public static Room[] getOwnedRooms(String owner) {
+        Set<Room> owned = roomsByOwner.get(owner);
+        return owned == null ? new Room[0] : owned.toArray(new Room[0]);
+    }
+
+    /**
+     * Method for recording a room in its owner's rooms, called by the room when its owner is set
+     * @param owner user identity, nothing is recorded for none
+     * @param room the room
+     */
+    protected static void indexOwner(String owner, Room room) {
+        if (owner != null && !owner.isEmpty()) {
+            roomsByOwner.computeIfAbsent(owner, o -> ConcurrentHashMap.newKeySet()).add(room);
+        }
+    }
+
+    /**
+     * Method for removing a room from its former owner's rooms, dropping the owner once it has none
+     * @param owner user identity
+     * @param room the room
+     */
+    protected static void unindexOwner(String owner, Room room) {
+        if (owner != null && !owner.isEmpty()) {
+            roomsByOwner.computeIfPresent(owner, (o, owned) -> owned.remove(room) && owned.isEmpty() ? null : owned);
         }
-        return null;
     }
 
     /**
      * The execution part of creating a room in the server side
      * @param roomId room identity
      * @param owner owner identity
+     * @return the new room
+     */
+    public static Room createRoom(String roomId, String owner) {
+        return createRoom(roomId, owner, System.currentTimeMillis());
+    }
+
+    /**
+     * The execution part of creating a room in the server side, for rooms created on another node
+     * @param roomId room identity
+     * @param owner owner identity
+     * @param createdAt time when the room was created
+     * @return the new room, or null when a room with this identity exists already
      */
-    public static void createRoom(String roomId, String owner) {
+    public static Room createRoom(String roomId, String owner, long createdAt) {
         synchronized (rooms) {
-            Room newRoom = new Room(roomId);
+            if (roomHandles.contains(roomId)) {
+                return null;
+            }
+            Room newRoom = new Room(roomId, createdAt);
             newRoom.setOwner(owner);
-            rooms.add(newRoom);
+            addRoom(newRoom);
+            if (roomSnapshotter != null) {
+                roomSnapshotter.roomCreated(newRoom);
+            }
+            return newRoom;
         }
     }
 
+    /**
+     * The execution part of deleting a room in the server side, its members must have been moved out already
+     * @param roomId room identity
+     */
+    public static void deleteRoom(String roomId) {
+        Room room;
+        synchronized (rooms) {
+            room = getRoom(roomId);
+            if (room != null) {
+                rooms.remove(room);
+                roomHandles.release(room.getHandle(), room);
+            }
+        }
+        if (room != null) {
+            synchronized (room) {
+                unindexOwner(room.getOwner(), room);
+            }
+            try {
+                room.dropWatchers();
+            } catch (IOException e) {
+                // queueing never fails
+            }
+        }
+        if (messageStore != null) {
+            messageStore.deleteRoom(roomId);
+        }
+        if (roomSnapshotter != null) {
+            roomSnapshotter.roomDeleted(roomId);
+        }
+    }
 
 
+    /**
+     * Method for giving an admitted socket a guest identity and serving it
+     * @param socket the socket of the new connection
+     * @return the connection
+     */
+    protected static Connection connect(Socket socket) {
+        Connection client;
+        int handle;
+        do {
+            int num = accumulatedUserAmount.incrementAndGet();
+
+            // guest names carry the node identity so two nodes never hand out the same one
+            String newUser = cluster == null ? "guest" + num : "guest" + num + cluster.getNodeId();
+            client = new Connection(socket, newUser);
+            // skip the guest names a user already took
+        } while ((handle = users.claim(client.getUserId(), client)) < 0);
+        client.userHandle = handle;
+        userThreads.add(client);
+        client.start();
+        return client;
+    }
+
+    /**
+     * Method for opening the listening socket, a TLS one when enabled. The handshake of each client only runs when
+     * its connection thread first reads, so slow handshakes never hold up the accept loop
+     * @return the listening socket
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    private static ServerSocket openServerSocket() throws IOException, GeneralSecurityException {
+        if (!tls) {
+            return new ServerSocket(port, backlog);
+        }
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (FileInputStream in = new FileInputStream(keyStore)) {
+            store.load(in, keyStorePassword.toCharArray());
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(store, keyStorePassword.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        // reconnecting clients resume a cached session (TLS 1.2) or present a session ticket (TLS 1.3)
+        // instead of paying for a full handshake
+        context.getServerSessionContext().setSessionCacheSize(tlsSessionCacheSize);
+        context.getServerSessionContext().setSessionTimeout(tlsSessionTimeout);
+        SSLServerSocket tlsServerSocket =
+                (SSLServerSocket) context.getServerSocketFactory().createServerSocket(port, backlog);
+        tlsServerSocket.setEnabledProtocols(tlsProtocols.split(","));
+        if (!ciphers.isEmpty()) {
+            tlsServerSocket.setEnabledCipherSuites(ciphers.split(","));
+        }
+        return tlsServerSocket;
+    }
+
+    /**
+     * Method for recreating the rooms saved by a previous run, called before any connection is accepted
+     * @throws IOException
+     */
+    private static void restoreRooms() throws IOException {
+        long start = System.nanoTime();
+        RoomSnapshotter snapshotter = new RoomSnapshotter(new File(snapshotDir), snapshotSeconds);
+        List<RoomSnapshotter.RoomRecord> saved = snapshotter.load();
+        List<Room> restored = new ArrayList<>(saved.size());
+        for (RoomSnapshotter.RoomRecord record : saved) {
+            Room room = new Room(record.getRoomId(), record.getCreatedAt());
+            // the snapshotter is not registered yet, so restoring does not journal the owners again
+            room.setOwner(record.getOwner());
+            restored.add(room);
+        }
+        synchronized (rooms) {
+            for (Room room : restored) {
+                addRoom(room);
+            }
+        }
+        snapshotter.start();
+        roomSnapshotter = snapshotter;
+        System.out.println("Restored " + restored.size() + " rooms in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
     public static void main(String[] args) throws IOException, InterruptedException {
         //
         Server s = new Server();
         String[] argv = args;
         JCommander jCommander = new JCommander(s, argv);
         //
-        ServerSocket serverSocket = null;
+        // a termination signal drains the server instead of dropping everyone mid-message
+        Runtime.getRuntime().addShutdownHook(new Thread(Server::drain, "drain"));
+
+        if (idleTimeoutSeconds > 0) {
+            idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+            pongTimeoutMillis = TimeUnit.SECONDS.toMillis(pongTimeoutSeconds);
+            // 100 ms ticks and 1024 slots, timeouts up to 102 seconds need no extra rounds
+            timerWheel = new TimerWheel(100, 1024);
+        }
+
+        admission = new AdmissionControl(maxConnections, maxConnectionsPerAddress);
+
+        if (commandRate > 0) {
+            commandBucket = new TokenBucket(commandRate, commandBurst);
+        }
+        startThrottleReport();
+
+        if (!Log.setLevel(logLevel)) {
+            throw new IllegalArgumentException("-loglevel must be error, info or debug");
+        }
+        BufferPool.setLeakTracking(trackLeaks);
+
+        FrameCompressor.setThreshold(compressMin);
+
+        if (dedupSeconds < 0 || dedupSize < 0) {
+            throw new IllegalArgumentException("-dedupsec and -dedupsize must be 0 (disabled) or more");
+        }
+
+        if (resumeGraceSeconds > 0) {
+            sessions = new SessionRegistry(resumeGraceSeconds, resumeBufferSize);
+        }
+
+        if (persist) {
+            if (segmentSize < MIN_SEGMENT_SIZE) {
+                throw new IllegalArgumentException("-segmentsize must be at least " + MIN_SEGMENT_SIZE);
+            }
+            messageStore = new MessageStore(new File(logDir), segmentSize,
+                    retainBytes, TimeUnit.HOURS.toMillis(retainHours), fsyncMillis);
+            messageStore.start();
+        }
 
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Server is listening..." + " port address：" + port);
+            serverSocket = openServerSocket();
+            System.out.println("Server is listening..." + " port address：" + port + (tls ? " (TLS)" : ""));
 
             Room mainHall = new Room("MainHall");
-            rooms.add(mainHall);
+            addRoom(mainHall);
 
-            while (true) {
-                Socket socket = serverSocket.accept();
-                System.out.println("Connection is established.");
+            if (snapshot) {
+                restoreRooms();
+            }
 
-                accumulatedUserAmount++;
-                int num = accumulatedUserAmount;
+            if (!peers.isEmpty()) {
+                if (!nodeId.matches("[a-zA-Z0-9]+")) {
+                    throw new IllegalArgumentException("A cluster node needs an alphanumeric -nodeid");
+                }
+                cluster = new ClusterBus(nodeId, busAddress, busPort, port, peers);
+                cluster.start();
+            }
 
-                String newUser = "guest" + num;
-                userIdentities.add(newUser);
+            if (adminPort > 0) {
+                new AdminServer(adminPort).start();
+            }
 
-                Connection client = new Connection(socket, newUser);
-                userThreads.add(client);
-                client.start();
+            while (true) {
+                Socket socket = serverSocket.accept();
+                // chat frames are small, send them at once rather than waiting to coalesce them (with TLS this
+                // also keeps the handshake's last flight from being held back by delayed acknowledgements)
+                socket.setTcpNoDelay(true);
+                if (!admission.admit(socket)) {
+                    continue;
+                }
+                Log.info("Connection is established.");
+                connect(socket);
             }
         } catch (SocketException e) {
+            if (!draining) {
+                e.printStackTrace();
+            }
+        } catch (GeneralSecurityException e) {
+            System.out.println("Error in setting up TLS");
             e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            if (serverSocket != null) {
-                serverSocket.close();
-                closeAll();
-            }
+            drain();
         }
     }
 
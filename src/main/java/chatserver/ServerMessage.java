@@ -2,8 +2,10 @@ package chatserver;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class ServerMessage {
 
@@ -59,6 +61,24 @@ public class ServerMessage {
         return jsonFormatMsg.toJSONString();
     }
 
+    /**
+     * Server sends the room change of many users moved together, such as the members of a deleted room
+     * @param userIds users who were moved
+     * @param formerRoomId the users' former chat room name
+     * @param newRoomId the users' new chat room name
+     * @return JSON format encoded text
+     */
+    public String roomChangeMulti(List<String> userIds, String formerRoomId, String newRoomId) {
+        jsonFormatMsg = new JSONObject();
+        JSONArray identities = new JSONArray();
+        identities.addAll(userIds);
+        jsonFormatMsg.put("type", "roomchangemulti");
+        jsonFormatMsg.put("identities", identities);
+        jsonFormatMsg.put("former", formerRoomId);
+        jsonFormatMsg.put("roomid", newRoomId);
+        return jsonFormatMsg.toJSONString();
+    }
+
     /**
      * Server send room list message to client
      * @param rooms room list and client counts
@@ -78,5 +98,217 @@ public class ServerMessage {
         return jsonFormatMsg.toString();
     }
 
+    /**
+     * Server sends one batch of a room's message history to client
+     * @param roomId specific room identity
+     * @param records logged chat messages in the order they were broadcast
+     * @param more whether more batches of this history follow
+     * @return JSON format encoded text
+     */
+    public String history(String roomId, List<LogRecord> records, boolean more) {
+        jsonFormatMsg = new JSONObject();
+        JSONArray messages = new JSONArray();
+        for (LogRecord record : records) {
+            JSONObject message = (JSONObject) JSONValue.parse(record.getMessage());
+            message.put("timestamp", record.getTimestamp());
+            messages.add(message);
+        }
+        jsonFormatMsg.put("type", "history");
+        jsonFormatMsg.put("roomid", roomId);
+        jsonFormatMsg.put("messages", messages);
+        jsonFormatMsg.put("more", more);
+        return jsonFormatMsg.toString();
+    }
+
+    /**
+     * Server sends the session token to client, which allows resuming the session after losing the connection
+     * @param token session token
+     * @param graceSeconds how long a lost session is kept
+     * @return JSON format encoded text
+     */
+    public String session(String token, long graceSeconds) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "session");
+        jsonFormatMsg.put("token", token);
+        jsonFormatMsg.put("grace", graceSeconds);
+        return jsonFormatMsg.toString();
+    }
 
+    /**
+     * Server replies a session resumption request, missed messages follow a successful resumption
+     * @param success whether the session was resumed
+     * @param userId resumed user identity
+     * @param roomId room the resumed user is in
+     * @param dropped number of missed messages which did not fit in the session buffer
+     * @return JSON format encoded text
+     */
+    public String resumed(boolean success, String userId, String roomId, int dropped) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "resumed");
+        jsonFormatMsg.put("success", success);
+        jsonFormatMsg.put("identity", userId);
+        jsonFormatMsg.put("roomid", roomId);
+        jsonFormatMsg.put("dropped", dropped);
+        return jsonFormatMsg.toString();
+    }
+
+    /**
+     * Server sends a heartbeat to an idle client, which must answer with a pong
+     * @return JSON format encoded text
+     */
+    public String ping() {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "ping");
+        return jsonFormatMsg.toString();
+    }
+
+    /**
+     * Server answers a heartbeat sent by client
+     * @return JSON format encoded text
+     */
+    public String pong() {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "pong");
+        return jsonFormatMsg.toString();
+    }
+
+    /**
+     * Server tells client to reconnect to the node a room is homed on, and to join the room there
+     * @param roomId room the client asked to join
+     * @param host host of the room's home node
+     * @param port client port of the room's home node
+     * @return JSON format encoded text
+     */
+    public String redirect(String roomId, String host, int port) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "redirect");
+        jsonFormatMsg.put("roomid", roomId);
+        jsonFormatMsg.put("host", host);
+        jsonFormatMsg.put("port", port);
+        return jsonFormatMsg.toString();
+    }
+
+    /**
+     * Server rejects a request which exceeded a rate limit
+     * @param request type of the rejected request
+     * @param scope the limit exceeded: user, room or server
+     * @param retryAfter milliseconds until the request would be accepted again
+     * @return JSON format encoded text
+     */
+    public String throttle(String request, String scope, long retryAfter) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "throttle");
+        jsonFormatMsg.put("request", request);
+        jsonFormatMsg.put("scope", scope);
+        jsonFormatMsg.put("retryafter", retryAfter);
+        return jsonFormatMsg.toString();
+    }
+
+    /**
+     * Server turns away a new connection because it is overloaded, the connection is closed right after
+     * @param reason why the connection was turned away
+     * @return JSON format encoded text
+     */
+    public String busy(String reason) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "busy");
+        jsonFormatMsg.put("words", reason);
+        return jsonFormatMsg.toString();
+    }
+
+    /**
+     * Server announces something to all users, such as a shutdown
+     * @param words the announcement
+     * @return JSON format encoded text
+     */
+    public String notice(String words) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "notice");
+        jsonFormatMsg.put("words", words);
+        return jsonFormatMsg.toString();
+    }
+
+    /**
+     * Method for creating a message sent to one user only
+     * @param from sender identity
+     * @param to receiver identity
+     * @param content plain chat message
+     * @return JSON format encoded text
+     */
+    public String privateMessage(String from, String to, String content) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "privatemessage");
+        jsonFormatMsg.put("identity", from);
+        jsonFormatMsg.put("to", to);
+        jsonFormatMsg.put("content", content);
+        return jsonFormatMsg.toString();
+    }
+
+    /**
+     * Method for telling the sender of a private message that the receiver is not connected
+     * @param to receiver identity
+     * @return JSON format encoded text
+     */
+    public String undelivered(String to) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "undelivered");
+        jsonFormatMsg.put("identity", to);
+        return jsonFormatMsg.toString();
+    }
+
+    /**
+     * Method for creating the membership changes of a room since its watchers were last told
+     * @param roomId room identity
+     * @param joined identities of the users who joined
+     * @param left former identities of the users who left
+     * @param renamed new identity of each renamed user, by former identity
+     * @return JSON format encoded text
+     */
+    public String roomDelta(String roomId, JSONArray joined, JSONArray left, JSONObject renamed) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "roomdelta");
+        jsonFormatMsg.put("roomid", roomId);
+        jsonFormatMsg.put("joined", joined);
+        jsonFormatMsg.put("left", left);
+        jsonFormatMsg.put("renamed", renamed);
+        return jsonFormatMsg.toString();
+    }
+
+    /**
+     * Method for confirming a chat message which carried an identity was delivered to the room
+     * @param msgId message identity given by the client
+     * @param duplicate whether the message had already been delivered and this copy was dropped
+     * @return JSON format encoded text
+     */
+    public String ack(Object msgId, boolean duplicate) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "ack");
+        jsonFormatMsg.put("msgid", msgId);
+        jsonFormatMsg.put("duplicate", duplicate);
+        return jsonFormatMsg.toString();
+    }
+
+    /**
+     * Method for answering a client asking for compression
+     * @param threshold smallest frame compressed in bytes, 0 when the server does not compress
+     * @param dictionary preset dictionary the frames are deflated with
+     * @return JSON format encoded text
+     */
+    public String compress(int threshold, String dictionary) {
+        jsonFormatMsg = new JSONObject();
+        jsonFormatMsg.put("type", "compress");
+        jsonFormatMsg.put("threshold", threshold);
+        jsonFormatMsg.put("dictionary", threshold > 0 ? dictionary : "");
+        return jsonFormatMsg.toString();
+    }
+
+    /**
+     * Method for adding the identity of the request a direct response answers, without encoding the response again
+     * @param msg JSON encoded response
+     * @param requestId identity the client gave the request, a number or a string
+     * @return JSON format encoded text
+     */
+    public static String withRequestId(String msg, Object requestId) {
+        return msg.substring(0, msg.lastIndexOf('}')) + ",\"reqid\":" + JSONValue.toJSONString(requestId) + "}";
+    }
 }
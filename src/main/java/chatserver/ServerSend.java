@@ -1,33 +1,154 @@
 package chatserver;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
 
+/**
+ * Outbound queue of one connection, written by one thread in the order the messages were sent.
+ * Messages queued together are written as one burst and flushed once the queue is empty.
+ * Once the client agreed to compression, large frames are written compressed: a zero length (which a written
+ * string never has), the length of the frame in UTF-8, the length of the compressed frame and the compressed bytes.
+ */
 public class ServerSend implements Runnable {
 
-    //outputstream for sending message
-    private DataOutputStream output;
-    //content of message
-    private String message;
+    private static final Frame STOP = new Frame("stop"); // queued to end the writer, compared by identity
+
+    //socket the messages are written to
+    private final Socket socket;
+    //messages waiting to be written
+    private final LinkedBlockingQueue<Frame> queue = new LinkedBlockingQueue<>();
+    // messages queued and messages written and flushed so far, equal once everything reached the socket
+    private long queued = 0;
+    private long flushed = 0;
+    private volatile boolean closed = false; // the writer ended, later messages are dropped
+    private volatile boolean compressing = false; // the client agreed to compression, long frames may be written
 
     /**
      * Constructor method for ServerSend
-     * @param output outputstream
+     * @param socket socket the messages are written to
+     */
+    public ServerSend(Socket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Method for queueing a message, returns at once
      * @param message content of message
      */
-    public ServerSend(DataOutputStream output, String message) {
-        this.output = output;
-        this.message = message;
+    public void send(String message) {
+        send(new Frame(message));
+    }
+
+    /**
+     * Method for queueing a frame, returns at once; a frame queued for several connections is compressed once
+     * @param message the frame
+     */
+    public void send(Frame message) {
+        if (closed) {
+            return;
+        }
+        // a frame too long to be written would end the writer, a compressed one may still fit
+        if (!compressing && !message.fits()) {
+            tooLong(message);
+            return;
+        }
+        synchronized (this) {
+            queued++;
+        }
+        queue.add(message);
+    }
+
+    /**
+     * Method for getting the number of messages waiting to be written
+     * @return queue depth
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Method for stopping the writer once the messages already queued are written
+     */
+    public void stop() {
+        queue.add(STOP);
+    }
+
+    /**
+     * Method for waiting until every message queued so far has been written and flushed
+     * @param deadlineMillis time at which to give up waiting
+     * @return true if everything was flushed in time
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitFlushed(long deadlineMillis) throws InterruptedException {
+        long target = queued;
+        while (flushed < target) {
+            long wait = deadlineMillis - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+        return true;
+    }
+
+    private synchronized void markFlushed(long count) {
+        flushed += count;
+        notifyAll();
+    }
+
+    private void tooLong(Frame message) {
+        System.out.println("Frame of " + message.getText().length() + " characters dropped, too long to send");
     }
 
     @Override
     public void run() {
+        FrameWriter output = null;
         try {
-            //writing message into the outputstream
-            output.writeUTF(message);
-            output.flush();
+            output = new FrameWriter(socket.getOutputStream());
+            long written = 0;
+            while (true) {
+                Frame message = queue.poll();
+                if (message == null) {
+                    // nothing more for now, push the burst out before waiting
+                    output.flush();
+                    markFlushed(written);
+                    written = 0;
+                    message = queue.take();
+                }
+                if (message == STOP) {
+                    output.flush();
+                    markFlushed(written);
+                    return;
+                }
+                //writing message into the outputstream
+                byte[] compressed = compressing ? message.compressed() : null;
+                if (compressed != null) {
+                    output.writeCompressed(message.getRawLength(), compressed);
+                } else if (message.fits()) {
+                    output.writeText(message.getText());
+                } else {
+                    // queued for compression but did not get smaller, only this frame is lost
+                    tooLong(message);
+                }
+                compressing |= message.startsCompression();
+                written++;
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            // the connection is gone, its reader thread deals with that
+        } catch (InterruptedException e) {
+            // stopped
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+        }
+        // nothing will be written any more, release whoever waits for a flush
+        closed = true;
+        synchronized (this) {
+            flushed = Long.MAX_VALUE;
+            notifyAll();
         }
+        queue.clear();
     }
 }
@@ -0,0 +1,96 @@
+package chatserver;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class SessionRegistry {
+
+    private final long graceSeconds;    // how long a lost session waits for its client to come back
+    private final int bufferSize;       // most messages kept for a lost session
+
+    // resumable sessions by token, each token points at the connection currently owning the session
+    private final Map<String, Connection> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-expiry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructor method for SessionRegistry
+     * @param graceSeconds how long a lost session waits for its client to come back
+     * @param bufferSize most messages kept for a lost session
+     */
+    public SessionRegistry(long graceSeconds, int bufferSize) {
+        this.graceSeconds = graceSeconds;
+        this.bufferSize = bufferSize;
+    }
+
+    public long getGraceSeconds() {
+        return graceSeconds;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Method for issuing a new session token to a connection
+     * @param conn the new connection
+     * @return an unguessable token
+     */
+    public String issue(Connection conn) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        sessions.put(token.toString(), conn);
+        return token.toString();
+    }
+
+    /**
+     * Method for keeping a lost session until its grace window is over, then letting it quit
+     * @param conn the connection whose client went away
+     * @return the scheduled expiry, cancelled when the session is resumed
+     */
+    public ScheduledFuture<?> park(Connection conn) {
+        return expiry.schedule(conn::expire, graceSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Method for handing a session over to the connection of a reconnected client
+     * @param token the session token presented by the client
+     * @param conn the new connection
+     * @return the connection which owned the session, or null if the token is unknown or expired
+     */
+    public Connection takeOver(String token, Connection conn) {
+        Connection[] previous = new Connection[1];
+        sessions.computeIfPresent(token, (t, owner) -> {
+            if (owner == conn) {
+                return owner;
+            }
+            previous[0] = owner;
+            return conn;
+        });
+        return previous[0];
+    }
+
+    /**
+     * Method for forgetting a session, after its user quit or its grace window expired
+     * @param token the session token
+     * @param conn the connection which owned the session
+     */
+    public void remove(String token, Connection conn) {
+        if (token != null) {
+            sessions.remove(token, conn);
+        }
+    }
+}
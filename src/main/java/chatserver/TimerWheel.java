@@ -0,0 +1,174 @@
+package chatserver;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel: scheduling and cancelling a timeout are O(1) no matter how many timeouts are pending,
+ * which keeps per-connection timers cheap with many connections coming and going. Timeouts fire on the wheel's
+ * own thread with a precision of one tick, so tasks should be short and hand anything slow to another thread.
+ */
+public class TimerWheel {
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;       // length of one tick
+    private final int mask;             // wheel size - 1, the wheel size is a power of two
+    private final Timeout[] buckets;    // head of the doubly linked list of timeouts in each slot
+    private final long startTime = System.nanoTime();
+    private long tick = 0;              // ticks passed, only touched by the wheel thread
+
+    // timeouts scheduled or cancelled by other threads, applied to the buckets by the wheel thread on each tick
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread worker = new Thread(this::runWheel, "timer-wheel");
+    private volatile boolean running = true;
+
+    /**
+     * A task waiting for its deadline in the wheel
+     */
+    public class Timeout {
+        private final Runnable task;
+        private final long deadline;    // nanoseconds after the wheel started
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds;   // full turns of the wheel left before the timeout fires
+        private int bucket = -1;        // slot holding this timeout, -1 while not in a slot
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Method for cancelling the timeout so its task never runs
+         * @return false if the task already ran or the timeout was already cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            cancelled.add(this);
+            return true;
+        }
+    }
+
+    /**
+     * Constructor method for TimerWheel
+     * @param tickMillis precision of the timeouts in milliseconds
+     * @param wheelSize number of slots, rounded up to a power of two
+     */
+    public TimerWheel(long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Method for running a task after a delay
+     * @param task the task, run on the wheel's thread
+     * @param delayMillis delay in milliseconds
+     * @return the timeout, which can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(task, deadline);
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Method for stopping the wheel, pending timeouts never fire
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void link(Timeout timeout, int bucket) {
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = buckets[bucket];
+        if (buckets[bucket] != null) {
+            buckets[bucket].prev = timeout;
+        }
+        buckets[bucket] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.bucket = -1;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    // move newly scheduled timeouts into their slots and take cancelled ones out
+    private void transfer() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket >= 0) {
+                unlink(timeout);
+            }
+        }
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state.get() != PENDING) {
+                continue;
+            }
+            long expiryTick = (timeout.deadline + tickNanos - 1) / tickNanos;
+            timeout.remainingRounds = Math.max(0, expiryTick - tick) / buckets.length;
+            // a deadline already in the past fires on the current tick
+            link(timeout, (int) (Math.max(expiryTick, tick) & mask));
+        }
+    }
+
+    // fire every timeout of the current slot whose last round has come
+    private void expire(int bucket) {
+        Timeout timeout = buckets[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds <= 0) {
+                unlink(timeout);
+                if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private void runWheel() {
+        while (running) {
+            long sleepNanos = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            transfer();
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package chatserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limit, kept as a single theoretical arrival time (the generic cell rate algorithm): a request
+ * is admitted if it would not arrive earlier than its rate allows beyond the burst. Acquiring is one CAS on a long
+ * and never allocates or locks, so it can sit on the hot path of every chat message.
+ */
+public class TokenBucket {
+
+    private final long intervalNanos;   // time to refill one token
+    private final long toleranceNanos;  // how far ahead of the schedule a burst may run
+    private final AtomicLong arrival = new AtomicLong(System.nanoTime()); // theoretical arrival time of the next request
+    private final AtomicLong rejected = new AtomicLong(); // rejections since the last report
+
+    /**
+     * Constructor method for TokenBucket
+     * @param perSecond tokens refilled per second
+     * @param burst most tokens which can be taken at once
+     */
+    public TokenBucket(double perSecond, int burst) {
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+        this.toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+    }
+
+    /**
+     * Method for taking one token
+     * @return 0 if the token was taken, otherwise how many nanoseconds until one is available
+     */
+    public long tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long current = arrival.get();
+            long next = Math.max(current, now) + intervalNanos;
+            long early = next - now - intervalNanos - toleranceNanos;
+            if (early > 0) {
+                rejected.incrementAndGet();
+                return early;
+            }
+            if (arrival.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Method for giving back a token taken for a request which a later limit refused, so it costs nothing
+     */
+    public void refund() {
+        // an arrival time left in the past has the same effect as now, so it needs no lower bound
+        arrival.addAndGet(-intervalNanos);
+    }
+
+    /**
+     * Method for reading and resetting the number of rejected requests
+     * @return rejections since the last call
+     */
+    public long takeRejected() {
+        return rejected.getAndSet(0);
+    }
+}
@@ -0,0 +1,597 @@
+package chatserver;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress test of the room and identity operations: starts a server in this process and drives many clients through
+ * concurrent joins, leaves, renames, room creations and deletions and reconnections, over in-memory sockets. The
+ * clients work in rounds; between two rounds, once everything sent was received, the server's state and what every
+ * client was told are checked against each other:
+ * every identity is held by one user only, each client knows its identity and its room, every user is a member of
+ * exactly one room, and the member counts of #list match the members. Prints the operations per second of each
+ * round, so a change made for speed can be checked for safety with the same run.
+ * Each client draws its operations from its own generator seeded by -seed, so a run can be repeated; how the clients
+ * interleave is up to the scheduler. Exits with status 1 when an invariant does not hold.
+ * Kept with the test classes so it is not part of the server's jar; run it with
+ * {@code mvn test-compile exec:java -Dexec.args="-clients 100 -rounds 10"}.
+ */
+public class StressHarness {
+
+    @Parameter(names = "-clients", description = "clients working at the same time")
+    private static int clientCount = 100;
+
+    @Parameter(names = "-rounds", description = "rounds, the invariants are checked after each")
+    private static int rounds = 20;
+
+    @Parameter(names = "-ops", description = "operations of each client in a round")
+    private static int opsPerRound = 50;
+
+    @Parameter(names = "-rooms", description = "room identities the clients create, join and delete")
+    private static int roomNames = 10;
+
+    @Parameter(names = "-seed", description = "seed of the clients' operations")
+    private static long seed = 1;
+
+    @Parameter(names = "-verbose", description = "keep the server's own output")
+    private static boolean verbose = false;
+
+    private static final long ANSWER_TIMEOUT_MILLIS = 10000; // a client waiting longer for an answer fails the run
+
+    private static final String[] OPERATIONS = {"join", "leave", "createroom", "delete", "rename", "reconnect", "who",
+            "list"};
+    private static final int[] WEIGHTS = {30, 10, 15, 10, 15, 5, 10, 5}; // how often each operation is drawn
+
+    private static PrintStream out = System.out;
+    private static final List<String> violations = new ArrayList<>();
+    private static final AtomicLong[] operationCounts = new AtomicLong[OPERATIONS.length];
+
+    // one direction of an in-memory connection, a ring of bytes written by one side and read by the other
+    private static class Pipe {
+        private final byte[] ring = new byte[64 * 1024];
+        private int head = 0;
+        private int count = 0;
+        private boolean closed = false;
+
+        synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                while (count == ring.length && !closed) {
+                    waitForChange();
+                }
+                if (closed) {
+                    throw new IOException("Socket closed");
+                }
+                int tail = (head + count) % ring.length;
+                int n = Math.min(length, Math.min(ring.length - count, ring.length - tail));
+                System.arraycopy(bytes, offset, ring, tail, n);
+                count += n;
+                offset += n;
+                length -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+            long deadline = System.currentTimeMillis() + ANSWER_TIMEOUT_MILLIS;
+            while (count == 0 && !closed) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new SocketTimeoutException("nothing received for " + ANSWER_TIMEOUT_MILLIS + " ms");
+                }
+                waitForChange();
+            }
+            if (count == 0) {
+                return -1;
+            }
+            int n = Math.min(length, Math.min(count, ring.length - head));
+            System.arraycopy(ring, head, bytes, offset, n);
+            head = (head + n) % ring.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized int available() {
+            return count;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        private void waitForChange() throws InterruptedIOException {
+            try {
+                wait(100);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    // one end of an in-memory connection, handed to the server like an accepted socket
+    private static class MemorySocket extends Socket {
+        private final Pipe in;
+        private final Pipe out;
+        private volatile boolean closed = false;
+
+        MemorySocket(Pipe in, Pipe out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    return length == 0 ? 0 : in.read(bytes, offset, length);
+                }
+
+                @Override
+                public int available() {
+                    return in.available();
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    out.write(bytes, offset, length);
+                }
+            };
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+            // nothing to delay in memory
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            in.close();
+            out.close();
+        }
+    }
+
+    // a client and what the server told it
+    private static class Client {
+        private final int slot;
+        private final Random random;
+        private MemorySocket socket;
+        private DataInputStream in;
+        private DataOutputStream output;
+        private Connection connection; // the server's side, for the checks
+        private String identity;       // as told by the server
+        private String room;           // as told by the server, empty once quit
+        private String requested;      // identity asked for last
+        private long nextRequestId = 0;
+        private JSONArray lastRoomList;
+
+        Client(int slot, Random random) {
+            this.slot = slot;
+            this.random = random;
+        }
+
+        void connect() throws IOException {
+            Pipe toServer = new Pipe();
+            Pipe toClient = new Pipe();
+            MemorySocket serverSide = new MemorySocket(toServer, toClient);
+            socket = new MemorySocket(toClient, toServer);
+            in = new DataInputStream(socket.getInputStream());
+            output = new DataOutputStream(socket.getOutputStream());
+            if (!Server.admission.admit(serverSide)) {
+                throw new IOException("not admitted");
+            }
+            connection = Server.connect(serverSide);
+            identity = null;
+            room = null;
+            request(message("identitychange", "identity", ""));
+            request(message("join", "roomid", "MainHall"));
+        }
+
+        void quit() throws IOException {
+            request(message("quit"));
+            socket.close();
+        }
+
+        // sends a request and reads until everything it caused for this client was received
+        void request(JSONObject request) throws IOException {
+            send(request);
+            if (!"quit".equals(request.get("type"))) {
+                sync();
+            } else {
+                // the last answer before the server closes the connection
+                while (!"".equals(room)) {
+                    apply(receive());
+                }
+            }
+        }
+
+        private void send(JSONObject request) throws IOException {
+            request.put("reqid", nextRequestId++);
+            output.writeUTF(request.toJSONString());
+            output.flush();
+        }
+
+        // a ping is answered after everything queued for this client before it
+        void sync() throws IOException {
+            JSONObject ping = message("ping");
+            send(ping);
+            Object requestId = ping.get("reqid");
+            while (true) {
+                JSONObject msg = receive();
+                if ("pong".equals(msg.get("type")) && requestId.equals(msg.get("reqid"))) {
+                    return;
+                }
+                apply(msg);
+            }
+        }
+
+        private JSONObject receive() throws IOException {
+            return (JSONObject) JSONValue.parse(in.readUTF());
+        }
+
+        @SuppressWarnings("unchecked")
+        private void apply(JSONObject msg) {
+            switch (String.valueOf(msg.get("type"))) {
+                case "newidentity":
+                    // a direct answer, or this client's rename told to its room; a rename of another user who held
+                    // this client's identity before may arrive late, but never to the identity just asked for
+                    if (msg.get("reqid") != null || (msg.get("former").equals(identity)
+                            && msg.get("identity").equals(requested))) {
+                        identity = msg.get("identity").toString();
+                    }
+                    break;
+                case "roomchange":
+                    if (msg.get("identity").equals(identity)) {
+                        room = msg.get("roomid").toString();
+                    }
+                    break;
+                case "roomchangemulti":
+                    if (((List<Object>) msg.get("identities")).contains(identity)) {
+                        room = msg.get("roomid").toString();
+                    }
+                    break;
+                case "roomlist":
+                    lastRoomList = (JSONArray) msg.get("rooms");
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        void operate() throws IOException {
+            int operation = draw(random);
+            operationCounts[operation].incrementAndGet();
+            switch (OPERATIONS[operation]) {
+                case "join":
+                    request(message("join", "roomid", roomName(random)));
+                    break;
+                case "leave":
+                    request(message("join", "roomid", "MainHall"));
+                    break;
+                case "createroom":
+                    request(message("createroom", "roomid", roomName(random)));
+                    break;
+                case "delete":
+                    request(message("delete", "roomid", roomName(random)));
+                    break;
+                case "rename":
+                    requested = "user" + random.nextInt(clientCount * 2);
+                    request(message("identitychange", "identity", requested));
+                    break;
+                case "reconnect":
+                    quit();
+                    connect();
+                    break;
+                case "who":
+                    request(message("who", "roomid", random.nextInt(4) == 0 ? "MainHall" : roomName(random)));
+                    break;
+                default:
+                    request(message("list"));
+                    break;
+            }
+        }
+    }
+
+    private static int draw(Random random) {
+        int total = 0;
+        for (int weight : WEIGHTS) {
+            total += weight;
+        }
+        int pick = random.nextInt(total);
+        for (int i = 0; i < WEIGHTS.length; i++) {
+            pick -= WEIGHTS[i];
+            if (pick < 0) {
+                return i;
+            }
+        }
+        return WEIGHTS.length - 1;
+    }
+
+    private static String roomName(Random random) {
+        return "room" + random.nextInt(roomNames);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject message(String type, String... fields) {
+        JSONObject msg = new JSONObject();
+        msg.put("type", type);
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            msg.put(fields[i], fields[i + 1]);
+        }
+        return msg;
+    }
+
+    private static void violation(String description) {
+        synchronized (violations) {
+            violations.add(description);
+        }
+    }
+
+    /**
+     * Method for checking the server against itself and against what the clients were told, while nothing happens
+     * @param clients the clients
+     * @param round number of the round just done
+     */
+    private static void check(Client[] clients, int round) {
+        int before = violations.size();
+        String when = "after round " + round + ": ";
+
+        // identities are unique and each is registered to its own connection
+        Set<String> identities = new HashSet<>();
+        for (Connection c : Server.userThreads) {
+            if (!identities.add(c.getUserId())) {
+                violation(when + "identity " + c.getUserId() + " is held by two users");
+            }
+            if (Server.users.find(c.getUserId()) != c) {
+                violation(when + "identity " + c.getUserId() + " is not registered to its user");
+            }
+        }
+        if (Server.userThreads.size() != clients.length || Server.users.size() != clients.length) {
+            violation(when + Server.userThreads.size() + " users and " + Server.users.size()
+                    + " identities registered for " + clients.length + " clients");
+        }
+
+        // each client knows its identity and room, and is a member of exactly that room
+        Map<String, Integer> believed = new HashMap<>();
+        for (Client client : clients) {
+            Connection c = client.connection;
+            if (!c.getUserId().equals(client.identity)) {
+                violation(when + "client " + client.slot + " believes it is " + client.identity + " but is "
+                        + c.getUserId());
+            }
+            Room located = c.locatedRoom;
+            if (located == null || !located.getRoomID().equals(client.room)) {
+                violation(when + c.getUserId() + " believes it is in " + client.room + " but is in "
+                        + (located == null ? "no room" : located.getRoomID()));
+            }
+            int memberships = 0;
+            for (Room room : Server.rooms) {
+                if (room.hasMember(c.getUserHandle())) {
+                    memberships++;
+                    if (room != located) {
+                        violation(when + c.getUserId() + " is a member of " + room.getRoomID() + " but located in "
+                                + (located == null ? "no room" : located.getRoomID()));
+                    }
+                }
+            }
+            if (memberships != 1) {
+                violation(when + c.getUserId() + " is a member of " + memberships + " rooms");
+            }
+            believed.merge(String.valueOf(client.room), 1, Integer::sum);
+        }
+
+        // every room is registered once, and its members are the users located in it
+        Set<String> roomIds = new HashSet<>();
+        int members = 0;
+        for (Room room : Server.rooms) {
+            if (!roomIds.add(room.getRoomID())) {
+                violation(when + "room " + room.getRoomID() + " exists twice");
+            }
+            if (Server.getRoom(room.getRoomID()) != room) {
+                violation(when + "room " + room.getRoomID() + " is not registered");
+            }
+            int count = room.countAllMembers();
+            members += count;
+            if (count != room.getMemberThreads().size()) {
+                violation(when + room.getRoomID() + " has " + count + " members but "
+                        + room.getMemberThreads().size() + " member threads");
+            }
+            for (Connection c : room.getMemberThreads()) {
+                if (c.locatedRoom != room) {
+                    violation(when + c.getUserId() + " is a member thread of " + room.getRoomID() + " located in "
+                            + (c.locatedRoom == null ? "no room" : c.locatedRoom.getRoomID()));
+                }
+            }
+        }
+        if (members != clients.length) {
+            violation(when + members + " members in all rooms for " + clients.length + " users");
+        }
+        if (Server.roomHandles.size() != Server.rooms.size()) {
+            violation(when + Server.roomHandles.size() + " room identities registered for "
+                    + Server.rooms.size() + " rooms");
+        }
+
+        // #list tells the same rooms and counts
+        Client lister = clients[0];
+        try {
+            lister.request(message("list"));
+        } catch (IOException e) {
+            violation(when + "list failed: " + e);
+            return;
+        }
+        Set<String> listed = new HashSet<>();
+        for (Object entry : lister.lastRoomList) {
+            JSONObject roomWithCount = (JSONObject) entry;
+            String roomId = roomWithCount.get("roomid").toString();
+            int count = Integer.parseInt(roomWithCount.get("count").toString());
+            listed.add(roomId);
+            int expected = believed.getOrDefault(roomId, 0);
+            if (count != expected) {
+                violation(when + "#list counts " + count + " in " + roomId + " where " + expected
+                        + " clients believe they are");
+            }
+        }
+        if (!listed.equals(roomIds)) {
+            violation(when + "#list shows rooms " + listed + " but the server has " + roomIds);
+        }
+        for (int i = before; i < violations.size() && i < before + 10; i++) {
+            out.println("  " + violations.get(i));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        JCommander.newBuilder().addObject(new StressHarness()).build().parse(args);
+        if (!verbose) {
+            // the server reports every connection and disconnection, far too much for this many
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Log.setLevel("error");
+        }
+        for (int i = 0; i < operationCounts.length; i++) {
+            operationCounts[i] = new AtomicLong();
+        }
+        Server.admission = new AdmissionControl(0, 0);
+        Server.addRoom(new Room("MainHall"));
+
+        Client[] clients = new Client[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            clients[i] = new Client(i, new Random(seed * 1000003 + i));
+            clients[i].connect();
+        }
+        out.printf("%d clients, %d rounds of %d operations each, %d rooms, seed %d%n",
+                clientCount, rounds, opsPerRound, roomNames, seed);
+
+        // the clients and this thread meet after the operations, after receiving everything and after the check
+        CyclicBarrier barrier = new CyclicBarrier(clientCount + 1);
+        List<Thread> threads = new ArrayList<>();
+        for (Client client : clients) {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = 0; i < opsPerRound; i++) {
+                            client.operate();
+                        }
+                        barrier.await();
+                        client.sync();
+                        barrier.await();
+                        barrier.await();
+                    }
+                } catch (IOException e) {
+                    violation("client " + client.slot + " failed: " + e);
+                    barrier.reset();
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    // the run was abandoned
+                }
+            }, "stress-client-" + client.slot);
+            thread.start();
+            threads.add(thread);
+        }
+
+        long totalNanos = 0;
+        boolean completed = true;
+        try {
+            for (int round = 1; round <= rounds; round++) {
+                long start = System.nanoTime();
+                barrier.await(ANSWER_TIMEOUT_MILLIS * 6, TimeUnit.MILLISECONDS);
+                long nanos = System.nanoTime() - start;
+                totalNanos += nanos;
+                barrier.await(ANSWER_TIMEOUT_MILLIS * 6, TimeUnit.MILLISECONDS);
+                check(clients, round);
+                out.printf("round %d: %.0f ops/s, %d violations so far%n",
+                        round, clientCount * (double) opsPerRound / (nanos / 1e9), violations.size());
+                barrier.await(ANSWER_TIMEOUT_MILLIS * 6, TimeUnit.MILLISECONDS);
+            }
+        } catch (BrokenBarrierException | TimeoutException e) {
+            completed = false;
+            out.println("run abandoned: " + (violations.isEmpty() ? e : violations.get(violations.size() - 1)));
+        }
+
+        if (completed) {
+            for (Client client : clients) {
+                client.quit();
+            }
+            // the server ends the connections in the background
+            long deadline = System.currentTimeMillis() + ANSWER_TIMEOUT_MILLIS;
+            while ((!Server.userThreads.isEmpty() || Server.users.size() > 0)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            if (!Server.userThreads.isEmpty() || Server.users.size() > 0) {
+                violation("after quitting: " + Server.userThreads.size() + " users and " + Server.users.size()
+                        + " identities left");
+            }
+            for (Room room : Server.rooms) {
+                if (room.countAllMembers() > 0) {
+                    violation("after quitting: " + room.getRoomID() + " still has members");
+                }
+            }
+        }
+
+        long operations = (long) clientCount * opsPerRound * rounds;
+        StringBuilder mix = new StringBuilder();
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            mix.append(i == 0 ? "" : ", ").append(OPERATIONS[i]).append(' ').append(operationCounts[i].get());
+        }
+        out.println("operations: " + mix);
+        out.printf("%d operations in %.2f s, %.0f ops/s%n", operations, totalNanos / 1e9,
+                operations / Math.max(totalNanos / 1e9, 1e-9));
+        if (violations.isEmpty() && completed) {
+            out.println("all invariants held");
+            System.exit(0);
+        }
+        out.println(violations.size() + " violations");
+        System.exit(1);
+    }
+}